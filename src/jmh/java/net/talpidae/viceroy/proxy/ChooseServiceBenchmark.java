@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.UndertowClient;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
+import lombok.val;
+import net.talpidae.viceroy.proxy.balancer.LoadBalancers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.AVAILABLE;
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.FULL;
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.PROBLEM;
+
+
+/**
+ * Backend selection (InsectProxyClient.chooseService) for varying instance counts, availability and strategies.
+ * <p>
+ * The backend table stands in for what ServiceDirectory derives from the Slave, pools report a fixed
+ * availability since the real ProxyConnectionPool may only be queried from an XNIO I/O thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChooseServiceBenchmark
+{
+    private static final PoolSettings POOL_SETTINGS = PoolSettings.builder()
+            .problemServerRetry(2)
+            .maxConnections(200)
+            .maxCachedConnections(40)
+            .sMaxConnections(20)
+            .ttl(53000L)
+            .maxQueueSize(40)
+            .h2MaxConnections(2)
+            .h2MaxStreams(100)
+            .maxRequestTime(30000)
+            .maxRetries(1)
+            .build();
+
+    @Param({"1", "10", "50", "200"})
+    private int instances;
+
+    /**
+     * all: every instance available, mixed: 50% available/25% full/25% problem, degraded: 90% problem
+     */
+    @Param({"all", "mixed", "degraded"})
+    private String availability;
+
+    @Param({"random", "least", "p2c", "ewma"})
+    private String balancer;
+
+    private RouteMatch routeMatch;
+
+    private BackendTable table;
+
+    private HttpServerExchange exchange;
+
+
+    private static AvailabilityType availabilityOf(String mix, Random random)
+    {
+        val dice = random.nextInt(100);
+        switch (mix)
+        {
+            case "mixed":
+                return (dice < 50) ? AVAILABLE : (dice < 75) ? FULL : PROBLEM;
+
+            case "degraded":
+                return (dice < 90) ? PROBLEM : AVAILABLE;
+
+            default:
+                return AVAILABLE;
+        }
+    }
+
+
+    @Setup
+    public void setUp()
+    {
+        val random = new Random(42);
+        val client = UndertowClient.getInstance();
+        val backends = new Backend[instances];
+        for (int i = 0; i < instances; ++i)
+        {
+            val address = InetSocketAddress.createUnresolved("10.0.0." + (i % 250), 8000 + i);
+            backends[i] = new Backend(null, new StubTargetPool(address, client, availabilityOf(availability, random)));
+        }
+
+        routeMatch = RouteMatch.builder().prefix("/item").route("item-service").loadBalancer(LoadBalancers.forName(balancer)).build();
+        table = new BackendTable(1L, backends);
+        exchange = new HttpServerExchange(null);
+    }
+
+
+    @Benchmark
+    public TargetPool chooseService()
+    {
+        return InsectProxyClient.chooseService(routeMatch, table, exchange, 50);
+    }
+
+
+    private static class StubTargetPool extends TargetPool
+    {
+        private final AvailabilityType availability;
+
+
+        private StubTargetPool(InetSocketAddress socketAddress, UndertowClient client, AvailabilityType availability)
+        {
+            super(socketAddress, POOL_SETTINGS, client);
+            this.availability = availability;
+        }
+
+
+        @Override
+        public AvailabilityType available()
+        {
+            return availability;
+        }
+    }
+}
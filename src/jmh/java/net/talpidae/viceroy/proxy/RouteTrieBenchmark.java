@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import net.talpidae.viceroy.proxy.balancer.RandomLoadBalancer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Route lookup (ProxyConfig.findRouteByPathPrefix) with mapping tables of realistic shape.
+ * <p>
+ * Prefixes are one or two segments deep and partly nested, request paths hit mapped prefixes, nested prefixes,
+ * near misses and the default route.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteTrieBenchmark
+{
+    private static final int PATH_COUNT = 1024;
+
+    @Param({"10", "100", "1000"})
+    private int prefixCount;
+
+    private RouteTrie trie;
+
+    private String[] paths;
+
+    private int next;
+
+
+    @Setup
+    public void setUp()
+    {
+        val random = new Random(42);
+        val routes = new ArrayList<RouteMatch>();
+        val prefixes = new ArrayList<String>();
+        routes.add(RouteMatch.builder().prefix("").route("default-service").loadBalancer(RandomLoadBalancer.INSTANCE).build());
+        for (int i = 0; i < prefixCount; ++i)
+        {
+            val prefix = (i % 3 == 2 && !prefixes.isEmpty())
+                    ? prefixes.get(random.nextInt(prefixes.size())) + "/v" + i
+                    : "/service-" + i;
+
+            prefixes.add(prefix);
+            routes.add(RouteMatch.builder().prefix(prefix).route("service-" + i).loadBalancer(RandomLoadBalancer.INSTANCE).build());
+        }
+
+        trie = RouteTrie.build(routes);
+
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; ++i)
+        {
+            val prefix = prefixes.get(random.nextInt(prefixes.size()));
+            switch (i % 4)
+            {
+                case 0:
+                    paths[i] = prefix;
+                    break;
+
+                case 1:
+                    paths[i] = prefix + "/items/" + random.nextInt(100000);
+                    break;
+
+                case 2:
+                    paths[i] = prefix + "x/items";  // near miss, not at a segment boundary
+                    break;
+
+                default:
+                    paths[i] = "/unmapped/" + i;
+                    break;
+            }
+        }
+    }
+
+
+    @Benchmark
+    public RouteMatch findLongestPrefix()
+    {
+        val path = paths[next++ & (PATH_COUNT - 1)];
+
+        return trie.findLongestPrefix(path);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpServerExchange;
+import net.talpidae.viceroy.proxy.balancer.RandomLoadBalancer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Request URI rewriting done for every proxied request.
+ * <p>
+ * Check gc.alloc.rate.norm of the gc profiler: stripPrefix must not allocate for literal prefixes, only
+ * percent-encoded prefixes copy the remaining URI once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripPrefixBenchmark
+{
+    @Param({"/app/help", "/app/help/", ""})
+    private String prefix;
+
+    @Param({"/app/help/articles/4711", "/app/%68elp/articles/4711"})
+    private String uri;
+
+    private String queryString = "lang=en";
+
+    private RouteMatch route;
+
+    private HttpServerExchange exchange;
+
+
+    @Setup
+    public void setUp()
+    {
+        route = RouteMatch.builder().prefix(prefix).route("help-service").loadBalancer(RandomLoadBalancer.INSTANCE).build();
+        exchange = new HttpServerExchange(null);
+    }
+
+
+    @Benchmark
+    public int findPrefixEnd()
+    {
+        return ProxyExchanges.findPrefixEnd(uri, 0, route.getStrippedPrefix());
+    }
+
+
+    @Benchmark
+    public String stripPrefix()
+    {
+        exchange.setRequestURI(uri);
+        exchange.setResolvedPath("");
+        ProxyExchanges.stripPrefix(exchange, route);
+
+        return exchange.getRequestURI();
+    }
+
+
+    @Benchmark
+    public String getTargetPath()
+    {
+        exchange.setRequestURI(uri);
+        exchange.setQueryString(queryString);
+
+        return ProxyExchanges.getTargetPath(exchange, route);
+    }
+}
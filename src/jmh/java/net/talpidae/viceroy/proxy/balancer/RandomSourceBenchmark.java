@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import net.talpidae.base.util.random.AtomicXorShiftRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the formerly shared AtomicXorShiftRandom with the per-thread CheapRandom under contention.
+ * <p>
+ * The nested classes repeat both benchmarks with 8, 32 and 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class RandomSourceBenchmark
+{
+    private static final int BOUND = 50;
+
+    private final AtomicXorShiftRandom sharedRandom = new AtomicXorShiftRandom();
+
+
+    @Benchmark
+    public int atomicXorShift()
+    {
+        return sharedRandom.nextInt(BOUND);
+    }
+
+
+    @Benchmark
+    public int cheapRandom()
+    {
+        return CheapRandom.nextInt(BOUND);
+    }
+
+
+    @Threads(8)
+    public static class Threads8 extends RandomSourceBenchmark
+    {
+
+    }
+
+
+    @Threads(32)
+    public static class Threads32 extends RandomSourceBenchmark
+    {
+
+    }
+
+
+    @Threads(64)
+    public static class Threads64 extends RandomSourceBenchmark
+    {
+
+    }
+}
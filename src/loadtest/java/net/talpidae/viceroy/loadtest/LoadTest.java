@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import joptsimple.OptionParser;
+import lombok.val;
+import net.talpidae.base.Base;
+
+
+/**
+ * End-to-end throughput and latency harness for the proxy pipeline.
+ * <p>
+ * Starts stub backends, serves them through stub discovery and drives keep-alive, short-lived and upgraded
+ * (h2c) connections over loopback. Run with: gradle loadTest -PloadTestArgs="--connections 128 --duration 30"
+ */
+public class LoadTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        val parser = new OptionParser();
+        val backendsOption = parser.accepts("backends").withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        val connectionsOption = parser.accepts("connections").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+        val ioThreadsOption = parser.accepts("ioThreads").withRequiredArg().ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors());
+        val bodySizeOption = parser.accepts("bodySize").withRequiredArg().ofType(Integer.class).defaultsTo(1024);
+        val warmupOption = parser.accepts("warmup").withRequiredArg().ofType(Long.class).defaultsTo(10L);
+        val durationOption = parser.accepts("duration").withRequiredArg().ofType(Long.class).defaultsTo(30L);
+        val options = parser.parse(args);
+
+        val settings = LoadTestSettings.builder()
+                .backends(backendsOption.value(options))
+                .connections(connectionsOption.value(options))
+                .ioThreads(ioThreadsOption.value(options))
+                .bodySize(bodySizeOption.value(options))
+                .warmupSeconds(warmupOption.value(options))
+                .durationSeconds(durationOption.value(options))
+                .path("/load/items/42")
+                .build();
+
+        try (val backends = new StubBackends(settings.getBackends(), settings.getBodySize()))
+        {
+            val proxyArgs = new String[]{
+                    "--insect.name", LoadTest.class.getName(),
+                    "--viceroy.map", "/load=load-service"
+            };
+
+            Base.initializeApp(proxyArgs, new LoadTestModule(new StubServiceLookup(backends.getAddresses()), settings)).run();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.DefaultByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.base.util.Application;
+import net.talpidae.viceroy.ProxyPipeline;
+import net.talpidae.viceroy.control.ControlPlane;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Runs the proxy pipeline on a local listener and drives every scenario against it.
+ */
+@Slf4j
+public class LoadTestApplication implements Application
+{
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private final ProxyPipeline proxyPipeline;
+
+    private final ControlPlane controlPlane;
+
+    private final LoadTestSettings settings;
+
+
+    @Inject
+    public LoadTestApplication(ProxyPipeline proxyPipeline, ControlPlane controlPlane, LoadTestSettings settings)
+    {
+        this.proxyPipeline = proxyPipeline;
+        this.controlPlane = controlPlane;
+        this.settings = settings;
+    }
+
+
+    private static void report(Scenario scenario, Histogram histogram, long completed, long errors, long durationNanos)
+    {
+        val seconds = durationNanos / 1e9;
+        System.out.printf("%-12s %10.0f req/s  p50 %8d us  p99 %8d us  p999 %8d us  max %8d us  errors %d%n",
+                scenario.name(),
+                completed / seconds,
+                histogram.getValueAtPercentile(50.0),
+                histogram.getValueAtPercentile(99.0),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue(),
+                errors);
+    }
+
+
+    @Override
+    public void run()
+    {
+        Undertow frontend = null;
+        try
+        {
+            val port = StubBackends.findFreePort();
+            frontend = Undertow.builder()
+                    .addHttpListener(port, LOOPBACK)
+                    .setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+                    .setHandler(proxyPipeline.createRootHandler())
+                    .build();
+            frontend.start();
+
+            val worker = Xnio.getInstance().createWorker(OptionMap.builder()
+                    .set(Options.WORKER_IO_THREADS, settings.getIoThreads())
+                    .set(Options.TCP_NODELAY, true)
+                    .getMap());
+            val bufferPool = new DefaultByteBufferPool(true, 16 * 1024);
+            try
+            {
+                for (val scenario : Scenario.values())
+                {
+                    val uri = URI.create(scenario.getScheme() + "://" + LOOPBACK + ":" + port);
+
+                    // warm up JIT, connection pools and route discovery, then measure
+                    runScenario(scenario, uri, worker, bufferPool, settings.getWarmupSeconds(), false);
+                    runScenario(scenario, uri, worker, bufferPool, settings.getDurationSeconds(), true);
+                }
+            }
+            finally
+            {
+                worker.shutdownNow();
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("load test failed: {}", e.getMessage(), e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            if (frontend != null)
+            {
+                frontend.stop();
+            }
+            controlPlane.close();
+        }
+    }
+
+
+    private void runScenario(Scenario scenario, URI uri, XnioWorker worker, DefaultByteBufferPool bufferPool, long seconds, boolean report) throws InterruptedException
+    {
+        val recorder = new Recorder(3);
+        val completed = new LongAdder();
+        val errors = new LongAdder();
+        val done = new CountDownLatch(settings.getConnections());
+
+        val start = System.nanoTime();
+        val deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < settings.getConnections(); ++i)
+        {
+            new VirtualUser(scenario, uri, settings.getPath(), worker, bufferPool, recorder, completed, errors, done).start(deadline);
+        }
+
+        done.await();
+        val elapsed = System.nanoTime() - start;
+        if (report)
+        {
+            report(scenario, recorder.getIntervalHistogram(), completed.sum(), errors.sum(), elapsed);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import com.google.inject.AbstractModule;
+import lombok.AllArgsConstructor;
+import net.talpidae.base.util.Application;
+import net.talpidae.viceroy.proxy.ServiceLookup;
+
+
+/**
+ * Wires the real proxy pipeline to stub discovery.
+ */
+@AllArgsConstructor
+public class LoadTestModule extends AbstractModule
+{
+    private final ServiceLookup serviceLookup;
+
+    private final LoadTestSettings settings;
+
+
+    @Override
+    protected void configure()
+    {
+        bind(Application.class).to(LoadTestApplication.class);
+
+        bind(ServiceLookup.class).toInstance(serviceLookup);
+        bind(LoadTestSettings.class).toInstance(settings);
+    }
+}
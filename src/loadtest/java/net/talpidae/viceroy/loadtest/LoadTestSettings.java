@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import lombok.Builder;
+import lombok.Getter;
+
+
+/**
+ * Parameters of a load test run.
+ */
+@Builder
+@Getter
+public class LoadTestSettings
+{
+    private final int backends;
+
+    private final int connections;
+
+    private final int ioThreads;
+
+    private final int bodySize;
+
+    private final long warmupSeconds;
+
+    private final long durationSeconds;
+
+    private final String path;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import io.undertow.UndertowOptions;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.xnio.OptionMap;
+
+
+/**
+ * Client connection behaviour to drive the proxy with.
+ */
+@AllArgsConstructor
+@Getter
+public enum Scenario
+{
+    /**
+     * HTTP/1.1, one persistent connection per virtual user.
+     */
+    KEEP_ALIVE("http", false, OptionMap.EMPTY),
+
+    /**
+     * HTTP/1.1, a new connection for every request (connect time is included in the latency).
+     */
+    SHORT_LIVED("http", true, OptionMap.EMPTY),
+
+    /**
+     * HTTP/2 over cleartext, upgraded from HTTP/1.1 on every new connection.
+     */
+    UPGRADED_H2C("h2c", false, OptionMap.create(UndertowOptions.ENABLE_HTTP2, true));
+
+    private final String scheme;
+
+    private final boolean reconnect;
+
+    private final OptionMap clientOptions;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.util.Headers;
+import lombok.Getter;
+import lombok.val;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * In-process Undertow servers answering every request with a fixed body.
+ */
+public class StubBackends implements Closeable
+{
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private final List<Undertow> servers = new ArrayList<>();
+
+    @Getter
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+
+
+    public StubBackends(int count, int bodySize) throws IOException
+    {
+        val payload = new byte[bodySize];
+        Arrays.fill(payload, (byte) ' ');
+        val body = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+
+        for (int i = 0; i < count; ++i)
+        {
+            val port = findFreePort();
+            val server = Undertow.builder()
+                    .addHttpListener(port, LOOPBACK)
+                    .setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+                    .setHandler(exchange ->
+                    {
+                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+                        exchange.getResponseSender().send(body.duplicate());
+                    })
+                    .build();
+
+            server.start();
+            servers.add(server);
+            addresses.add(new InetSocketAddress(LOOPBACK, port));
+        }
+    }
+
+
+    static int findFreePort() throws IOException
+    {
+        try (val socket = new ServerSocket(0))
+        {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+
+
+    @Override
+    public void close()
+    {
+        for (val server : servers)
+        {
+            server.stop();
+        }
+    }
+}
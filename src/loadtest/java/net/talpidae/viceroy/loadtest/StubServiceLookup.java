@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.base.insect.state.ServiceState;
+import net.talpidae.viceroy.proxy.ServiceLookup;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Stands in for the Insect Slave and reports the stub backends as the only instances of every route.
+ */
+public class StubServiceLookup implements ServiceLookup
+{
+    private final List<ServiceState> services;
+
+
+    public StubServiceLookup(List<InetSocketAddress> addresses)
+    {
+        val states = new ArrayList<ServiceState>(addresses.size());
+        for (val address : addresses)
+        {
+            states.add(new StubServiceState(address));
+        }
+
+        this.services = Collections.unmodifiableList(states);
+    }
+
+
+    @Override
+    public List<? extends ServiceState> findServices(String route, long timeoutMillis)
+    {
+        return services;
+    }
+
+
+    @AllArgsConstructor
+    @Getter
+    private static class StubServiceState implements ServiceState
+    {
+        private final InetSocketAddress socketAddress;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.loadtest;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.UndertowClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StringReadChannelListener;
+import lombok.val;
+import org.HdrHistogram.Recorder;
+import org.xnio.ChannelListeners;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.xnio.IoUtils.safeClose;
+
+
+/**
+ * Closed-loop client issuing one request at a time until a deadline passes.
+ */
+class VirtualUser
+{
+    private final UndertowClient client = UndertowClient.getInstance();
+
+    private final Scenario scenario;
+
+    private final URI uri;
+
+    private final String path;
+
+    private final XnioWorker worker;
+
+    private final ByteBufferPool bufferPool;
+
+    private final Recorder recorder;
+
+    private final LongAdder completed;
+
+    private final LongAdder errors;
+
+    private final CountDownLatch done;
+
+    private volatile long deadline;
+
+    private ClientConnection connection;
+
+    private long startNanos;
+
+
+    VirtualUser(Scenario scenario, URI uri, String path, XnioWorker worker, ByteBufferPool bufferPool, Recorder recorder, LongAdder completed, LongAdder errors, CountDownLatch done)
+    {
+        this.scenario = scenario;
+        this.uri = uri;
+        this.path = path;
+        this.worker = worker;
+        this.bufferPool = bufferPool;
+        this.recorder = recorder;
+        this.completed = completed;
+        this.errors = errors;
+        this.done = done;
+    }
+
+
+    void start(long deadline)
+    {
+        this.deadline = deadline;
+        startNanos = System.nanoTime();
+        connect();
+    }
+
+
+    private void connect()
+    {
+        client.connect(new ClientCallback<ClientConnection>()
+        {
+            @Override
+            public void completed(ClientConnection result)
+            {
+                connection = result;
+                send();
+            }
+
+            @Override
+            public void failed(IOException e)
+            {
+                onError();
+            }
+        }, uri, worker, bufferPool, scenario.getClientOptions());
+    }
+
+
+    private void send()
+    {
+        val request = new ClientRequest().setMethod(Methods.GET).setPath(path);
+        request.getRequestHeaders().put(Headers.HOST, uri.getHost());
+        if (scenario.isReconnect())
+        {
+            request.getRequestHeaders().put(Headers.CONNECTION, "close");
+        }
+
+        connection.sendRequest(request, new ClientCallback<ClientExchange>()
+        {
+            @Override
+            public void completed(ClientExchange exchange)
+            {
+                exchange.setResponseListener(new ClientCallback<ClientExchange>()
+                {
+                    @Override
+                    public void completed(ClientExchange result)
+                    {
+                        val status = result.getResponse().getResponseCode();
+                        new StringReadChannelListener(bufferPool)
+                        {
+                            @Override
+                            protected void stringDone(String body)
+                            {
+                                onResponse(status);
+                            }
+
+                            @Override
+                            protected void error(IOException e)
+                            {
+                                onError();
+                            }
+                        }.setup(result.getResponseChannel());
+                    }
+
+                    @Override
+                    public void failed(IOException e)
+                    {
+                        onError();
+                    }
+                });
+
+                try
+                {
+                    val requestChannel = exchange.getRequestChannel();
+                    requestChannel.shutdownWrites();
+                    if (!requestChannel.flush())
+                    {
+                        requestChannel.getWriteSetter().set(ChannelListeners.flushingChannelListener(null, null));
+                        requestChannel.resumeWrites();
+                    }
+                }
+                catch (IOException e)
+                {
+                    onError();
+                }
+            }
+
+            @Override
+            public void failed(IOException e)
+            {
+                onError();
+            }
+        });
+    }
+
+
+    private void onResponse(int status)
+    {
+        val now = System.nanoTime();
+        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        if (status == 200)
+        {
+            completed.increment();
+        }
+        else
+        {
+            errors.increment();
+        }
+
+        next(now, scenario.isReconnect());
+    }
+
+
+    private void onError()
+    {
+        errors.increment();
+        next(System.nanoTime(), true);
+    }
+
+
+    private void next(long now, boolean reconnect)
+    {
+        if (now >= deadline)
+        {
+            safeClose(connection);
+            done.countDown();
+            return;
+        }
+
+        startNanos = now;
+        if (reconnect)
+        {
+            safeClose(connection);
+            connect();
+        }
+        else
+        {
+            send();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.handlers.CanonicalPathHandler;
+import io.undertow.server.handlers.ResponseCodeHandler;
+import io.undertow.server.handlers.proxy.ProxyHandler;
+import lombok.val;
+import net.talpidae.viceroy.cache.ResponseCache;
+import net.talpidae.viceroy.cache.ResponseCacheHandler;
+import net.talpidae.viceroy.compress.Compression;
+import net.talpidae.viceroy.compress.CompressionHandler;
+import net.talpidae.viceroy.limit.ConcurrencyLimitHandler;
+import net.talpidae.viceroy.limit.ConcurrencyLimiters;
+import net.talpidae.viceroy.limit.RateLimitHandler;
+import net.talpidae.viceroy.limit.RateLimiters;
+import net.talpidae.viceroy.log.AccessLog;
+import net.talpidae.viceroy.log.AccessLogHandler;
+import net.talpidae.viceroy.proxy.CircuitBreakerHandler;
+import net.talpidae.viceroy.proxy.HedgingHandler;
+import net.talpidae.viceroy.proxy.InsectProxyClient;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+import net.talpidae.viceroy.proxy.ServerWorker;
+import net.talpidae.viceroy.proxy.StreamingHandler;
+import net.talpidae.viceroy.stream.StreamBuffers;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+
+/**
+ * Assembles the request handler chain of the proxy.
+ */
+@Singleton
+public class ProxyPipeline
+{
+    private final InsectProxyClient proxyClient;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ResponseCache responseCache;
+
+    private final ConcurrencyLimiters concurrencyLimiters;
+
+    private final RateLimiters rateLimiters;
+
+    private final StreamBuffers streamBuffers;
+
+    private final Compression compression;
+
+    private final AccessLog accessLog;
+
+    private final ServerWorker serverWorker;
+
+
+    @Inject
+    public ProxyPipeline(InsectProxyClient proxyClient, ProxyConfig proxyConfig, ResponseCache responseCache, ConcurrencyLimiters concurrencyLimiters, RateLimiters rateLimiters, StreamBuffers streamBuffers, Compression compression, AccessLog accessLog, ServerWorker serverWorker)
+    {
+        this.proxyClient = proxyClient;
+        this.proxyConfig = proxyConfig;
+        this.responseCache = responseCache;
+        this.concurrencyLimiters = concurrencyLimiters;
+        this.rateLimiters = rateLimiters;
+        this.streamBuffers = streamBuffers;
+        this.compression = compression;
+        this.accessLog = accessLog;
+        this.serverWorker = serverWorker;
+    }
+
+
+    /**
+     * Create the root handler: CanonicalPathHandler -> RoutingHandler -> AccessLogHandler (if enabled) -> RateLimitHandler -> CompressionHandler -> ResponseCacheHandler -> CircuitBreakerHandler -> ConcurrencyLimitHandler -> HedgingHandler -> StreamingHandler -> ProxyHandler -> InsectProxyClient.
+     */
+    public HttpHandler createRootHandler()
+    {
+        // maxRequestTime and maxRetries are applied per route (InFlightRequest, RouteMatch.getMaxRetries())
+        val proxyHandler = ProxyHandler.builder()
+                .setProxyClient(proxyClient)
+                .setMaxConnectionRetries(proxyConfig.getMaxRetries())
+                .setNext(ResponseCodeHandler.HANDLE_404)
+                .build();
+
+        val streamingHandler = new StreamingHandler(proxyHandler, proxyClient, streamBuffers);
+        val hedgingHandler = new HedgingHandler(streamingHandler, proxyClient);
+        val limitHandler = new ConcurrencyLimitHandler(hedgingHandler, concurrencyLimiters, proxyConfig);
+
+        // cached responses are still served while the circuit breaker of their route is open
+        val breakerHandler = new CircuitBreakerHandler(limitHandler, proxyClient);
+
+        val cacheHandler = new ResponseCacheHandler(breakerHandler, responseCache, compression);
+
+        val compressionHandler = new CompressionHandler(cacheHandler, compression);
+
+        val rateLimitHandler = new RateLimitHandler(compressionHandler, rateLimiters);
+
+        final HttpHandler accessLogHandler = accessLog.isEnabled() ? new AccessLogHandler(rateLimitHandler, accessLog) : rateLimitHandler;
+
+        // the route is resolved once, all later stages use the same RouteMatch
+        return new CanonicalPathHandler(new RoutingHandler(accessLogHandler, proxyConfig, serverWorker));
+    }
+}
@@ -24,8 +24,12 @@ import net.talpidae.base.insect.config.SlaveSettings;
 import net.talpidae.base.server.Server;
 import net.talpidae.base.server.ServerConfig;
 import net.talpidae.base.util.Application;
-import net.talpidae.viceroy.proxy.InsectProxyClient;
-import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.health.HealthChecker;
+import net.talpidae.viceroy.log.AccessLog;
+import net.talpidae.viceroy.metrics.MetricsReporter;
+import net.talpidae.viceroy.proxy.RouteTableWatcher;
+import net.talpidae.viceroy.stream.StreamBuffers;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -33,9 +37,6 @@ import java.net.InetSocketAddress;
 import javax.inject.Inject;
 import javax.servlet.ServletException;
 
-import io.undertow.server.handlers.CanonicalPathHandler;
-import io.undertow.server.handlers.ResponseCodeHandler;
-import io.undertow.server.handlers.proxy.ProxyHandler;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
@@ -54,9 +55,19 @@ public class ViceroyApplication implements Application
 
     private final Slave slave;
 
-    private final InsectProxyClient proxyClient;
+    private final ProxyPipeline proxyPipeline;
 
-    private final ProxyConfig proxyConfig;
+    private final ControlPlane controlPlane;
+
+    private final MetricsReporter metricsReporter;
+
+    private final HealthChecker healthChecker;
+
+    private final RouteTableWatcher routeTableWatcher;
+
+    private final StreamBuffers streamBuffers;
+
+    private final AccessLog accessLog;
 
 
     @Inject
@@ -64,15 +75,25 @@ public class ViceroyApplication implements Application
                               Server server,
                               SlaveSettings slaveSettings,
                               Slave slave,
-                              InsectProxyClient proxyClient,
-                              ProxyConfig proxyConfig)
+                              ProxyPipeline proxyPipeline,
+                              ControlPlane controlPlane,
+                              MetricsReporter metricsReporter,
+                              HealthChecker healthChecker,
+                              RouteTableWatcher routeTableWatcher,
+                              StreamBuffers streamBuffers,
+                              AccessLog accessLog)
     {
         this.serverConfig = serverConfig;
         this.server = server;
         this.slaveSettings = slaveSettings;
         this.slave = slave;
-        this.proxyClient = proxyClient;
-        this.proxyConfig = proxyConfig;
+        this.proxyPipeline = proxyPipeline;
+        this.controlPlane = controlPlane;
+        this.metricsReporter = metricsReporter;
+        this.healthChecker = healthChecker;
+        this.routeTableWatcher = routeTableWatcher;
+        this.streamBuffers = streamBuffers;
+        this.accessLog = accessLog;
     }
 
 
@@ -80,20 +101,19 @@ public class ViceroyApplication implements Application
     public void run()
     {
         // proxy is all we do
-        val proxyHandler = ProxyHandler.builder()
-                .setProxyClient(proxyClient)
-                .setMaxRequestTime(proxyConfig.getMaxRequestTime())
-                .setMaxConnectionRetries(proxyConfig.getMaxRetries())
-                .setNext(ResponseCodeHandler.HANDLE_404)
-                .build();
+        val rootHandler = proxyPipeline.createRootHandler();
 
-        serverConfig.setRootHandlerWrapper(handler -> new CanonicalPathHandler(proxyHandler));
+        serverConfig.setRootHandlerWrapper(handler -> rootHandler);
 
         // make sure we don't accept headers like X-Forwarded-For
         serverConfig.setBehindProxy(false);
 
         try
         {
+            accessLog.start();
+            metricsReporter.start();
+            healthChecker.start();
+            routeTableWatcher.start();
             server.start();
 
             val bindAddress = new InetSocketAddress(serverConfig.getHost(), serverConfig.getPort());
@@ -109,6 +129,9 @@ public class ViceroyApplication implements Application
             }
             finally
             {
+                accessLog.close();
+                controlPlane.close();
+                streamBuffers.close();
                 try
                 {
                     slave.close();
@@ -119,7 +142,7 @@ public class ViceroyApplication implements Application
                 }
             }
         }
-        catch (ServletException e)
+        catch (ServletException | IOException e)
         {
             log.error("failed to start server: {}", e.getMessage());
             exit(1);
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import io.undertow.util.HeaderValues;
+import lombok.Getter;
+import lombok.val;
+
+
+/**
+ * The Cache-Control directives relevant to a shared cache.
+ */
+@Getter
+final class CacheControl
+{
+    static final CacheControl NONE = new CacheControl();
+
+    private boolean noStore;
+
+    private boolean noCache;
+
+    private boolean privateResponse;
+
+    private long maxAge = -1;
+
+    private long sharedMaxAge = -1;
+
+
+    private CacheControl()
+    {
+    }
+
+
+    static CacheControl parse(HeaderValues values)
+    {
+        if (values == null || values.isEmpty())
+        {
+            return NONE;
+        }
+
+        val cacheControl = new CacheControl();
+        for (val value : values)
+        {
+            for (val directive : value.split(","))
+            {
+                cacheControl.apply(directive.trim());
+            }
+        }
+
+        return cacheControl;
+    }
+
+
+    private static long parseSeconds(String directive, int offset)
+    {
+        try
+        {
+            val value = directive.substring(offset).trim();
+
+            return Long.parseLong(value.startsWith("\"") ? value.substring(1, value.length() - 1) : value);
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException e)
+        {
+            // invalid values make the response stale (RFC 7234 section 4.2.1)
+            return 0;
+        }
+    }
+
+
+    private void apply(String directive)
+    {
+        val separator = directive.indexOf('=');
+        val name = (separator < 0) ? directive : directive.substring(0, separator).trim();
+        if (name.equalsIgnoreCase("no-store"))
+        {
+            noStore = true;
+        }
+        else if (name.equalsIgnoreCase("no-cache"))
+        {
+            noCache = true;
+        }
+        else if (name.equalsIgnoreCase("private"))
+        {
+            privateResponse = true;
+        }
+        else if (name.equalsIgnoreCase("max-age") && separator > 0)
+        {
+            maxAge = parseSeconds(directive, separator + 1);
+        }
+        else if (name.equalsIgnoreCase("s-maxage") && separator > 0)
+        {
+            sharedMaxAge = parseSeconds(directive, separator + 1);
+        }
+    }
+}
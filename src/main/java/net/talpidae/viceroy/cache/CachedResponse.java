@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.compress.ContentCoding;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A stored response variant, the body lives in a direct (off-heap) buffer.
+ */
+@Getter
+final class CachedResponse
+{
+    /**
+     * Rough per entry heap overhead accounted in addition to the body size.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private static final Set<HttpString> NOT_MODIFIED_HEADERS = Set.of(
+            Headers.CACHE_CONTROL, Headers.CONTENT_LOCATION, Headers.DATE, Headers.ETAG, Headers.EXPIRES, Headers.VARY);
+
+    private final String key;
+
+    private final HttpString[] varyNames;
+
+    private final String[] varyValues;
+
+    private final int status;
+
+    private final HttpString[] headerNames;
+
+    private final String[] headerValues;
+
+    private final ByteBuffer body;
+
+    private final String eTag;
+
+    private final String lastModified;
+
+    /**
+     * Compressed variants of body by ContentCoding ordinal, created on demand.
+     */
+    @Getter(AccessLevel.NONE)
+    private final AtomicReferenceArray<ByteBuffer> encodedBodies = new AtomicReferenceArray<>(ContentCoding.values().length);
+
+    /**
+     * Accounted size including compressed variants, guarded by the ResponseCache lock.
+     */
+    private int weight;
+
+    /**
+     * Point in time (millis) at which the response had age 0.
+     */
+    private volatile long bornAt;
+
+    private volatile long expiresAt;
+
+    /**
+     * Set on access, cleared when the eviction policy gives the entry a second chance.
+     */
+    volatile boolean referenced;
+
+    /**
+     * Guarded by the ResponseCache lock.
+     */
+    boolean inMain;
+
+    /**
+     * Guarded by the ResponseCache lock.
+     */
+    boolean removed;
+
+
+    CachedResponse(String key,
+                   HttpString[] varyNames,
+                   String[] varyValues,
+                   int status,
+                   HttpString[] headerNames,
+                   String[] headerValues,
+                   ByteBuffer body,
+                   long bornAt,
+                   long lifetimeMillis)
+    {
+        this.key = key;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.status = status;
+        this.headerNames = headerNames;
+        this.headerValues = headerValues;
+        this.body = body;
+        this.eTag = findHeader(headerNames, headerValues, Headers.ETAG);
+        this.lastModified = findHeader(headerNames, headerValues, Headers.LAST_MODIFIED);
+        this.weight = body.capacity() + ENTRY_OVERHEAD;
+        this.bornAt = bornAt;
+        this.expiresAt = bornAt + lifetimeMillis;
+    }
+
+
+    private static String findHeader(HttpString[] names, String[] values, HttpString name)
+    {
+        for (int i = 0; i < names.length; ++i)
+        {
+            if (names[i].equals(name))
+            {
+                return values[i];
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Get the value of the request header named name as used to select variants.
+     */
+    static String getVaryValue(HeaderMap requestHeaders, HttpString name)
+    {
+        val values = requestHeaders.get(name);
+        if (values == null || values.isEmpty())
+        {
+            return null;
+        }
+
+        return (values.size() == 1) ? values.getFirst() : String.join(",", values);
+    }
+
+
+    boolean matchesVariant(HeaderMap requestHeaders)
+    {
+        for (int i = 0; i < varyNames.length; ++i)
+        {
+            if (!Objects.equals(varyValues[i], getVaryValue(requestHeaders, varyNames[i])))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    boolean isSameVariant(CachedResponse other)
+    {
+        return Arrays.equals(varyNames, other.varyNames) && Arrays.equals(varyValues, other.varyValues);
+    }
+
+
+    ByteBuffer getEncodedBody(ContentCoding coding)
+    {
+        return encodedBodies.get(coding.ordinal());
+    }
+
+
+    /**
+     * Attach a compressed variant, must be called with the ResponseCache lock held.
+     */
+    void setEncodedBody(ContentCoding coding, ByteBuffer encoded)
+    {
+        encodedBodies.set(coding.ordinal(), encoded);
+        weight += encoded.capacity();
+    }
+
+
+    boolean hasValidator()
+    {
+        return eTag != null || lastModified != null;
+    }
+
+
+    long getAgeSeconds(long now)
+    {
+        return Math.max(0L, now - bornAt) / 1000L;
+    }
+
+
+    /**
+     * Check freshness, maxAge is the max-age requested by the client or -1.
+     */
+    boolean isFresh(long now, long maxAge)
+    {
+        return now < expiresAt && (maxAge < 0 || getAgeSeconds(now) <= maxAge);
+    }
+
+
+    long getLifetimeMillis()
+    {
+        return expiresAt - bornAt;
+    }
+
+
+    /**
+     * Update freshness after successful revalidation (304 Not Modified).
+     */
+    void freshen(long bornAt, long lifetimeMillis)
+    {
+        this.bornAt = bornAt;
+        this.expiresAt = bornAt + lifetimeMillis;
+    }
+
+
+    /**
+     * Set status and headers of the stored response on exchange, the caller sends the body (if any).
+     */
+    void writeHeaders(HttpServerExchange exchange, long now)
+    {
+        exchange.setStatusCode(status);
+
+        val responseHeaders = exchange.getResponseHeaders();
+        for (int i = 0; i < headerNames.length; ++i)
+        {
+            // stored values are grouped by name and replace whatever is present already
+            val name = headerNames[i];
+            if (i == 0 || !name.equals(headerNames[i - 1]))
+            {
+                responseHeaders.remove(name);
+            }
+
+            responseHeaders.add(name, headerValues[i]);
+        }
+
+        responseHeaders.put(Headers.AGE, getAgeSeconds(now));
+        responseHeaders.put(Headers.CONTENT_LENGTH, body.capacity());
+    }
+
+
+    /**
+     * Respond with 304 Not Modified and the headers required by RFC 7232 section 4.1.
+     */
+    void writeNotModified(HttpServerExchange exchange, long now)
+    {
+        exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+
+        val responseHeaders = exchange.getResponseHeaders();
+        for (int i = 0; i < headerNames.length; ++i)
+        {
+            val name = headerNames[i];
+            if (NOT_MODIFIED_HEADERS.contains(name))
+            {
+                responseHeaders.add(name, headerValues[i]);
+            }
+        }
+
+        responseHeaders.put(Headers.AGE, getAgeSeconds(now));
+    }
+}
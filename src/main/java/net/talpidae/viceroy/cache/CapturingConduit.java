@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import lombok.val;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Passes the response body through to the client while copying it into a ResponseCapture.
+ */
+final class CapturingConduit extends AbstractStreamSinkConduit<StreamSinkConduit>
+{
+    private final ResponseCapture capture;
+
+    /**
+     * Buffer positions before a gathering write, reused across calls.
+     */
+    private int[] positions = new int[0];
+
+
+    CapturingConduit(StreamSinkConduit next, ResponseCapture capture)
+    {
+        super(next);
+        this.capture = capture;
+    }
+
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        val written = next.write(src);
+        capture.append(src, written);
+
+        return written;
+    }
+
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len) throws IOException
+    {
+        if (positions.length < len)
+        {
+            positions = new int[len];
+        }
+
+        for (int i = 0; i < len; ++i)
+        {
+            positions[i] = srcs[offs + i].position();
+        }
+
+        val written = next.write(srcs, offs, len);
+        for (int i = 0; i < len; ++i)
+        {
+            val src = srcs[offs + i];
+            capture.append(src, src.position() - positions[i]);
+        }
+
+        return written;
+    }
+
+
+    @Override
+    public int writeFinal(ByteBuffer src) throws IOException
+    {
+        return Conduits.writeFinalBasic(this, src);
+    }
+
+
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException
+    {
+        return Conduits.writeFinalBasic(this, srcs, offs, len);
+    }
+
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException
+    {
+        capture.abandon();
+
+        return next.transferFrom(src, position, count);
+    }
+
+
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException
+    {
+        capture.abandon();
+
+        return next.transferFrom(source, count, throughBuffer);
+    }
+
+
+    @Override
+    public void terminateWrites() throws IOException
+    {
+        capture.finish();
+        next.terminateWrites();
+    }
+
+
+    @Override
+    public void truncateWrites() throws IOException
+    {
+        capture.abandon();
+        next.truncateWrites();
+    }
+}
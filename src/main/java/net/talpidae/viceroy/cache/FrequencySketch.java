@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free count-min sketch of 4-bit counters estimating how often keys have been seen recently (TinyLFU).
+ * <p>
+ * All counters are halved once the number of increments reaches ten times the table size, so the estimate
+ * favours recent popularity.
+ */
+final class FrequencySketch
+{
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final AtomicLongArray table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger samples = new AtomicInteger();
+
+
+    FrequencySketch(int expectedEntries)
+    {
+        val size = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        table = new AtomicLongArray(size);
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+
+    private static int spread(int hash, int depth)
+    {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+
+        return (int) h;
+    }
+
+
+    /**
+     * Get the estimated frequency of hash in [0, 15].
+     */
+    int frequency(int hash)
+    {
+        int frequency = Integer.MAX_VALUE;
+        for (int depth = 0; depth < SEEDS.length; ++depth)
+        {
+            val spread = spread(hash, depth);
+            val shift = ((spread >>> 24) & 15) << 2;
+            val counter = (int) ((table.get(spread & tableMask) >>> shift) & 15L);
+            frequency = Math.min(frequency, counter);
+        }
+
+        return frequency;
+    }
+
+
+    void increment(int hash)
+    {
+        boolean added = false;
+        for (int depth = 0; depth < SEEDS.length; ++depth)
+        {
+            val spread = spread(hash, depth);
+            added |= incrementAt(spread & tableMask, ((spread >>> 24) & 15) << 2);
+        }
+
+        if (added && samples.incrementAndGet() >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+
+    private boolean incrementAt(int index, int shift)
+    {
+        val mask = 15L << shift;
+        while (true)
+        {
+            val word = table.get(index);
+            if ((word & mask) == mask)
+            {
+                return false;
+            }
+
+            if (table.compareAndSet(index, word, word + (1L << shift)))
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Halve all counters (aging), concurrent increments during the reset may get lost which is acceptable.
+     */
+    private void reset()
+    {
+        samples.set(0);
+        for (int i = 0; i < table.length(); ++i)
+        {
+            table.set(i, (table.get(i) >>> 1) & RESET_MASK);
+        }
+    }
+}
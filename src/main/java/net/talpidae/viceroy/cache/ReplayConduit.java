@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import lombok.val;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Replaces the (empty) body of a backend 304 Not Modified response with the stored body of a revalidated entry.
+ */
+final class ReplayConduit extends AbstractStreamSinkConduit<StreamSinkConduit>
+{
+    private final ByteBuffer body;
+
+    private boolean terminating;
+
+    private boolean terminated;
+
+
+    ReplayConduit(StreamSinkConduit next, ByteBuffer body)
+    {
+        super(next);
+        this.body = body.duplicate();
+    }
+
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        // discard anything the backend sends
+        val remaining = src.remaining();
+        src.position(src.limit());
+
+        return remaining;
+    }
+
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len)
+    {
+        long discarded = 0;
+        for (int i = offs; i < offs + len; ++i)
+        {
+            discarded += write(srcs[i]);
+        }
+
+        return discarded;
+    }
+
+
+    @Override
+    public int writeFinal(ByteBuffer src) throws IOException
+    {
+        return Conduits.writeFinalBasic(this, src);
+    }
+
+
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException
+    {
+        return Conduits.writeFinalBasic(this, srcs, offs, len);
+    }
+
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count)
+    {
+        return count;
+    }
+
+
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException
+    {
+        throughBuffer.clear().limit(0);
+
+        return Channels.drain(source, count);
+    }
+
+
+    @Override
+    public void terminateWrites() throws IOException
+    {
+        terminating = true;
+        writeBodyAndTerminate();
+    }
+
+
+    @Override
+    public boolean flush() throws IOException
+    {
+        return (!terminating || writeBodyAndTerminate()) && next.flush();
+    }
+
+
+    private boolean writeBodyAndTerminate() throws IOException
+    {
+        if (!terminated)
+        {
+            while (body.hasRemaining())
+            {
+                if (next.write(body) == 0)
+                {
+                    return false;
+                }
+            }
+
+            terminated = true;
+            next.terminateWrites();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import io.undertow.util.HeaderMap;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.compress.ContentCoding;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Size bounded store of cached responses with W-TinyLFU style eviction.
+ * <p>
+ * New entries enter a small admission window, entries leaving the window only replace main region victims if the
+ * frequency sketch estimates them to be more popular. Both regions are CLOCK approximations of LRU, so hits only
+ * set a flag and bump the sketch without taking the lock. Bodies are kept in direct buffers, the accounted size
+ * bounds the amount of off-heap memory in use.
+ */
+@Singleton
+public class ResponseCache
+{
+    private static final CachedResponse[] NO_VARIANTS = new CachedResponse[0];
+
+    private final ConcurrentHashMap<String, CachedResponse[]> keyToVariants = new ConcurrentHashMap<>();
+
+    private final FrequencySketch sketch;
+
+    private final ArrayDeque<CachedResponse> window = new ArrayDeque<>();
+
+    private final ArrayDeque<CachedResponse> main = new ArrayDeque<>();
+
+    @Getter
+    private final int maxEntrySize;
+
+    private final long windowCapacity;
+
+    private final long mainCapacity;
+
+    @Getter
+    private final LongAdder hits = new LongAdder();
+
+    @Getter
+    private final LongAdder misses = new LongAdder();
+
+    @Getter
+    private final LongAdder revalidations = new LongAdder();
+
+    @Getter
+    private final LongAdder evictions = new LongAdder();
+
+    private long windowSize;
+
+    private long mainSize;
+
+
+    @Inject
+    public ResponseCache(ProxyConfig proxyConfig)
+    {
+        this(proxyConfig.getCacheSize(), proxyConfig.getCacheMaxEntrySize());
+    }
+
+
+    ResponseCache(long cacheSize, int cacheMaxEntrySize)
+    {
+        val capacity = Math.max(0L, cacheSize);
+
+        // every entry must fit the window
+        maxEntrySize = (int) Math.min(cacheMaxEntrySize, capacity / 2);
+        windowCapacity = Math.max(capacity / 100, maxEntrySize);
+        mainCapacity = capacity - windowCapacity;
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1L, capacity / 4096)));
+    }
+
+
+    public boolean isEnabled()
+    {
+        return maxEntrySize > 0;
+    }
+
+
+    /**
+     * Get the stored variant of key matching the request headers and record the access.
+     */
+    CachedResponse get(String key, HeaderMap requestHeaders)
+    {
+        sketch.increment(key.hashCode());
+
+        val variants = keyToVariants.get(key);
+        if (variants != null)
+        {
+            for (val variant : variants)
+            {
+                if (variant.matchesVariant(requestHeaders))
+                {
+                    variant.referenced = true;
+                    return variant;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Store a response, replacing the same variant if present. The entry may be rejected by the admission policy.
+     */
+    synchronized void put(CachedResponse response)
+    {
+        val key = response.getKey();
+        for (val variant : keyToVariants.getOrDefault(key, NO_VARIANTS))
+        {
+            if (variant.isSameVariant(response))
+            {
+                unlink(variant);
+                break;
+            }
+        }
+
+        val current = keyToVariants.getOrDefault(key, NO_VARIANTS);
+        val updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = response;
+        keyToVariants.put(key, updated);
+
+        window.addLast(response);
+        windowSize += response.getWeight();
+
+        while (windowSize > windowCapacity)
+        {
+            val candidate = findVictim(window);
+            if (candidate == null)
+            {
+                break;
+            }
+
+            window.pollFirst();
+            windowSize -= candidate.getWeight();
+            admit(candidate);
+        }
+    }
+
+
+    /**
+     * Remove all variants stored for key.
+     */
+    synchronized void invalidate(String key)
+    {
+        val variants = keyToVariants.get(key);
+        if (variants != null)
+        {
+            for (val variant : variants)
+            {
+                unlink(variant);
+            }
+        }
+    }
+
+
+    /**
+     * Move a candidate from the window to main, if it is estimated to be more popular than the main victims.
+     */
+    private void admit(CachedResponse candidate)
+    {
+        candidate.inMain = true;
+        mainSize += candidate.getWeight();
+
+        val candidateFrequency = sketch.frequency(candidate.getKey().hashCode());
+        while (mainSize > mainCapacity)
+        {
+            val victim = findVictim(main);
+            if (victim == null || candidateFrequency <= sketch.frequency(victim.getKey().hashCode()))
+            {
+                evict(candidate);
+                return;
+            }
+
+            evict(victim);
+        }
+
+        main.addLast(candidate);
+    }
+
+
+    /**
+     * Advance the CLOCK hand of region until an unreferenced entry is at its head, removed entries are dropped.
+     */
+    private static CachedResponse findVictim(ArrayDeque<CachedResponse> region)
+    {
+        // referenced bits are cleared on the first pass, so two passes are enough
+        for (int remaining = region.size() * 2; remaining >= 0; --remaining)
+        {
+            val head = region.peekFirst();
+            if (head == null)
+            {
+                return null;
+            }
+
+            if (head.removed)
+            {
+                region.pollFirst();
+            }
+            else if (head.referenced && remaining > 0)
+            {
+                head.referenced = false;
+                region.addLast(region.pollFirst());
+            }
+            else
+            {
+                return head;
+            }
+        }
+
+        return region.peekFirst();
+    }
+
+
+    private void evict(CachedResponse response)
+    {
+        unlink(response);
+        evictions.increment();
+    }
+
+
+    /**
+     * Remove response from the index and release its accounted size, region queues drop it lazily.
+     */
+    private void unlink(CachedResponse response)
+    {
+        if (response.removed)
+        {
+            return;
+        }
+
+        response.removed = true;
+        if (response.inMain)
+        {
+            mainSize -= response.getWeight();
+        }
+        else
+        {
+            windowSize -= response.getWeight();
+        }
+
+        val key = response.getKey();
+        val variants = keyToVariants.get(key);
+        if (variants != null)
+        {
+            int count = 0;
+            val remaining = new CachedResponse[variants.length];
+            for (val variant : variants)
+            {
+                if (variant != response)
+                {
+                    remaining[count++] = variant;
+                }
+            }
+
+            if (count == 0)
+            {
+                keyToVariants.remove(key);
+            }
+            else
+            {
+                keyToVariants.put(key, Arrays.copyOf(remaining, count));
+            }
+        }
+    }
+
+
+    /**
+     * Attach a compressed variant to a stored response and account its size, ignored if the response has been
+     * removed meanwhile or another request attached the variant first. Space is reclaimed on the next put.
+     */
+    synchronized void addEncodedBody(CachedResponse response, ContentCoding coding, ByteBuffer encoded)
+    {
+        if (response.removed || response.getEncodedBody(coding) != null)
+        {
+            return;
+        }
+
+        response.setEncodedBody(coding, encoded);
+        if (response.inMain)
+        {
+            mainSize += encoded.capacity();
+        }
+        else
+        {
+            windowSize += encoded.capacity();
+        }
+    }
+
+
+    /**
+     * Accounted size of all stored entries in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return windowSize + mainSize;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.Connectors;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.DateUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.compress.Compression;
+import net.talpidae.viceroy.compress.ContentCoding;
+import net.talpidae.viceroy.proxy.RouteMatch;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Shared HTTP cache for GET and HEAD requests in front of the proxy.
+ * <p>
+ * Only routes with a configured maximum age are cached. Freshness is derived from Cache-Control (s-maxage, max-age)
+ * or Expires, capped by the route maximum age. Responses with no-store, private, Set-Cookie or "Vary: *" are not
+ * stored, requests with Authorization bypass the cache. Stale entries are revalidated using their ETag or
+ * Last-Modified validator, a 304 Not Modified from the backend refreshes the entry and the stored body is sent.
+ * A 304 that doesn't match the stored entry is never passed on to a client that sent no validator itself, the
+ * entry is dropped and the request fails with 502 instead.
+ * Concurrent misses for the same key wait for the first request instead of hitting the backend all at once.
+ * Bodies are stored uncompressed, compressed variants are created once per entry on the first hit asking for them.
+ */
+public class ResponseCacheHandler implements HttpHandler
+{
+    /**
+     * Marks exchanges that already waited for another request and must not wait again.
+     */
+    private static final AttachmentKey<Boolean> COALESCED_KEY = AttachmentKey.create(Boolean.class);
+
+    private static final Set<HttpString> UNSAFE_METHODS = Set.of(Methods.POST, Methods.PUT, Methods.DELETE, Methods.PATCH);
+
+    private static final Set<HttpString> UNSTORED_HEADERS = Set.of(
+            Headers.AGE,
+            Headers.CONNECTION,
+            Headers.CONTENT_LENGTH,
+            Headers.KEEP_ALIVE,
+            Headers.PROXY_AUTHENTICATE,
+            Headers.TE,
+            Headers.TRANSFER_ENCODING,
+            Headers.UPGRADE);
+
+    private final ConcurrentHashMap<String, Flight> keyToFlight = new ConcurrentHashMap<>();
+
+    private final HttpHandler next;
+
+    private final ResponseCache cache;
+
+    private final Compression compression;
+
+
+    public ResponseCacheHandler(HttpHandler next, ResponseCache cache, Compression compression)
+    {
+        this.next = next;
+        this.cache = cache;
+        this.compression = compression;
+    }
+
+
+    private static String getKey(HttpServerExchange exchange)
+    {
+        val query = exchange.getQueryString();
+
+        return (query == null || query.isEmpty()) ? exchange.getRequestURI() : exchange.getRequestURI() + '?' + query;
+    }
+
+
+    private static long parseDate(String value)
+    {
+        val date = (value != null) ? DateUtils.parseDate(value) : null;
+
+        return (date != null) ? date.getTime() : -1L;
+    }
+
+
+    private static long parseNonNegative(String value)
+    {
+        try
+        {
+            return (value != null) ? Math.max(0L, Long.parseLong(value.trim())) : 0L;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0L;
+        }
+    }
+
+
+    private static String stripWeak(String eTag)
+    {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+
+    /**
+     * Evaluate If-None-Match (weak comparison) and If-Modified-Since against a stored response.
+     */
+    private static boolean isNotModified(HeaderMap requestHeaders, CachedResponse cached)
+    {
+        val ifNoneMatch = requestHeaders.getFirst(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null)
+        {
+            val eTag = cached.getETag();
+            if (eTag == null)
+            {
+                return false;
+            }
+
+            for (val candidate : ifNoneMatch.split(","))
+            {
+                val trimmed = candidate.trim();
+                if (trimmed.equals("*") || stripWeak(trimmed).equals(stripWeak(eTag)))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        val ifModifiedSince = parseDate(requestHeaders.getFirst(Headers.IF_MODIFIED_SINCE));
+        val lastModified = parseDate(cached.getLastModified());
+
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified <= ifModifiedSince;
+    }
+
+
+    /**
+     * Get the freshness lifetime in milliseconds capped by the route maximum age or -1, if there is none.
+     */
+    private static long getLifetimeMillis(HeaderMap responseHeaders, CacheControl cacheControl, RouteMatch route)
+    {
+        long lifetime;
+        if (cacheControl.isNoCache())
+        {
+            lifetime = 0L;
+        }
+        else if (cacheControl.getSharedMaxAge() >= 0)
+        {
+            lifetime = cacheControl.getSharedMaxAge();
+        }
+        else if (cacheControl.getMaxAge() >= 0)
+        {
+            lifetime = cacheControl.getMaxAge();
+        }
+        else
+        {
+            val expires = responseHeaders.getFirst(Headers.EXPIRES);
+            if (expires == null)
+            {
+                return -1L;
+            }
+
+            val expiresAt = parseDate(expires);
+            val date = parseDate(responseHeaders.getFirst(Headers.DATE));
+            lifetime = (expiresAt >= 0) ? (expiresAt - ((date >= 0) ? date : System.currentTimeMillis())) / 1000L : 0L;
+        }
+
+        return Math.max(0L, Math.min(lifetime, route.getCacheMaxAge())) * 1000L;
+    }
+
+
+    private void serve(HttpServerExchange exchange, CachedResponse cached, RouteMatch route, long now)
+    {
+        if (isNotModified(exchange.getRequestHeaders(), cached))
+        {
+            cached.writeNotModified(exchange, now);
+            exchange.endExchange();
+            return;
+        }
+
+        cached.writeHeaders(exchange, now);
+        if (Methods.HEAD.equals(exchange.getRequestMethod()))
+        {
+            exchange.endExchange();
+            return;
+        }
+
+        val coding = Compression.negotiate(exchange.getRequestHeaders());
+        if (coding != null && compression.isCompressible(exchange, route, exchange.getResponseHeaders()))
+        {
+            if (cached.getEncodedBody(coding) == null && exchange.isInIoThread())
+            {
+                // compress once on a worker thread, following hits are served the stored variant
+                exchange.dispatch(() -> sendEncoded(exchange, cached, coding));
+                return;
+            }
+
+            sendEncoded(exchange, cached, coding);
+            return;
+        }
+
+        exchange.getResponseSender().send(cached.getBody().duplicate());
+    }
+
+
+    private void sendEncoded(HttpServerExchange exchange, CachedResponse cached, ContentCoding coding)
+    {
+        ByteBuffer encoded = cached.getEncodedBody(coding);
+        if (encoded == null)
+        {
+            encoded = coding.encode(cached.getBody(), compression.getLevel());
+            cache.addEncodedBody(cached, coding, encoded);
+        }
+
+        val responseHeaders = exchange.getResponseHeaders();
+        Compression.applyCoding(responseHeaders, coding);
+        responseHeaders.put(Headers.CONTENT_LENGTH, encoded.capacity());
+        exchange.getResponseSender().send(encoded.duplicate());
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route == null || route.getCacheMaxAge() <= 0 || !cache.isEnabled())
+        {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val method = exchange.getRequestMethod();
+        val isGet = Methods.GET.equals(method);
+        if (!isGet && !Methods.HEAD.equals(method))
+        {
+            if (UNSAFE_METHODS.contains(method))
+            {
+                // RFC 7234 section 4.4
+                cache.invalidate(getKey(exchange));
+            }
+
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val requestHeaders = exchange.getRequestHeaders();
+        val requestCacheControl = CacheControl.parse(requestHeaders.get(Headers.CACHE_CONTROL));
+        if (requestCacheControl.isNoStore()
+                || requestHeaders.contains(Headers.AUTHORIZATION)
+                || requestHeaders.contains(Headers.UPGRADE))
+        {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val key = getKey(exchange);
+        val now = System.currentTimeMillis();
+        val cached = cache.get(key, requestHeaders);
+        if (cached != null && !requestCacheControl.isNoCache() && cached.isFresh(now, requestCacheControl.getMaxAge()))
+        {
+            cache.getHits().increment();
+            serve(exchange, cached, route, now);
+            return;
+        }
+
+        Flight flight = null;
+        if (isGet && exchange.getAttachment(COALESCED_KEY) == null)
+        {
+            flight = new Flight(this::resume);
+            val leader = keyToFlight.putIfAbsent(key, flight);
+            if (leader != null)
+            {
+                // wait for the leader to populate the cache, then start over
+                exchange.putAttachment(COALESCED_KEY, Boolean.TRUE);
+                exchange.dispatch(SameThreadExecutor.INSTANCE, () ->
+                {
+                    if (!leader.park(exchange))
+                    {
+                        resume(exchange);
+                    }
+                });
+                return;
+            }
+        }
+
+        cache.getMisses().increment();
+
+        val pending = new PendingResponse(key, route, isGet, cached, flight);
+        if (cached != null
+                && cached.hasValidator()
+                && !requestHeaders.contains(Headers.IF_NONE_MATCH)
+                && !requestHeaders.contains(Headers.IF_MODIFIED_SINCE))
+        {
+            pending.revalidating = true;
+            if (cached.getETag() != null)
+            {
+                requestHeaders.put(Headers.IF_NONE_MATCH, cached.getETag());
+            }
+            else
+            {
+                requestHeaders.put(Headers.IF_MODIFIED_SINCE, cached.getLastModified());
+            }
+        }
+
+        exchange.addResponseWrapper(pending);
+        exchange.addExchangeCompleteListener(pending);
+        next.handleRequest(exchange);
+    }
+
+
+    /**
+     * A 304 refers to the stored entry if it carries the same ETag, or no ETag in reply to our own validator.
+     */
+    static boolean isSameRepresentation(HeaderMap responseHeaders, CachedResponse cached, boolean revalidating)
+    {
+        val eTag = responseHeaders.getFirst(Headers.ETAG);
+
+        return (eTag != null) ? eTag.equals(cached.getETag()) : revalidating;
+    }
+
+
+    private void resume(HttpServerExchange exchange)
+    {
+        exchange.getIoThread().execute(() -> Connectors.executeRootHandler(this, exchange));
+    }
+
+
+    /**
+     * Exchanges waiting for the leading request of a key.
+     */
+    static final class Flight
+    {
+        private final List<HttpServerExchange> waiters = new ArrayList<>();
+
+        private final Consumer<HttpServerExchange> resumer;
+
+        private boolean released;
+
+
+        Flight(Consumer<HttpServerExchange> resumer)
+        {
+            this.resumer = resumer;
+        }
+
+
+        /**
+         * Park exchange until the leader finished.
+         *
+         * @return false if the leader finished already, the caller has to resume exchange itself
+         */
+        synchronized boolean park(HttpServerExchange exchange)
+        {
+            if (released)
+            {
+                return false;
+            }
+
+            waiters.add(exchange);
+            return true;
+        }
+
+
+        void release()
+        {
+            synchronized (this)
+            {
+                released = true;
+            }
+
+            for (val waiter : waiters)
+            {
+                resumer.accept(waiter);
+            }
+        }
+    }
+
+
+    /**
+     * Per exchange state deciding about storing, refreshing or replaying once the response headers are known.
+     */
+    private final class PendingResponse implements ConduitWrapper<StreamSinkConduit>, ExchangeCompletionListener
+    {
+        private final String key;
+
+        private final RouteMatch route;
+
+        private final boolean storable;
+
+        private final CachedResponse cached;
+
+        private final Flight flight;
+
+        private boolean revalidating;
+
+        private ResponseCapture capture;
+
+        private long contentLength;
+
+        private HttpString[] headerNames;
+
+        private String[] headerValues;
+
+        private HttpString[] varyNames;
+
+        private String[] varyValues;
+
+        private long bornAt;
+
+        private long lifetimeMillis;
+
+
+        private PendingResponse(String key, RouteMatch route, boolean storable, CachedResponse cached, Flight flight)
+        {
+            this.key = key;
+            this.route = route;
+            this.storable = storable;
+            this.cached = cached;
+            this.flight = flight;
+        }
+
+
+        @Override
+        public StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange)
+        {
+            val status = exchange.getStatusCode();
+            val responseHeaders = exchange.getResponseHeaders();
+            val now = System.currentTimeMillis();
+            if (status == StatusCodes.NOT_MODIFIED && revalidating && !isSameRepresentation(responseHeaders, cached, true))
+            {
+                // the client sent no validator of its own and must not get a 304, but we lack the body of the
+                // representation the backend refers to: drop the stale entry and fail this request
+                cache.invalidate(key);
+                responseHeaders.clear();
+                responseHeaders.put(Headers.CONTENT_LENGTH, 0L);
+                exchange.setStatusCode(StatusCodes.BAD_GATEWAY);
+
+                return factory.create();
+            }
+
+            if (status == StatusCodes.NOT_MODIFIED && cached != null && isSameRepresentation(responseHeaders, cached, revalidating))
+            {
+                val lifetime = getLifetimeMillis(responseHeaders, CacheControl.parse(responseHeaders.get(Headers.CACHE_CONTROL)), route);
+                cached.freshen(now - parseNonNegative(responseHeaders.getFirst(Headers.AGE)) * 1000L, (lifetime >= 0) ? lifetime : cached.getLifetimeMillis());
+                cache.getRevalidations().increment();
+
+                if (revalidating)
+                {
+                    cached.writeHeaders(exchange, now);
+                    return new ReplayConduit(factory.create(), cached.getBody());
+                }
+            }
+            else if (storable && status == StatusCodes.OK && prepareStore(exchange, responseHeaders, now))
+            {
+                capture = new ResponseCapture(contentLength, cache.getMaxEntrySize());
+                if (!capture.isAbandoned())
+                {
+                    return new CapturingConduit(factory.create(), capture);
+                }
+            }
+
+            return factory.create();
+        }
+
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+        {
+            try
+            {
+                val body = (capture != null) ? capture.getBody() : null;
+                if (body != null && (contentLength < 0 || body.capacity() == contentLength))
+                {
+                    cache.put(new CachedResponse(key, varyNames, varyValues, StatusCodes.OK, headerNames, headerValues, body, bornAt, lifetimeMillis));
+                }
+            }
+            finally
+            {
+                if (flight != null)
+                {
+                    keyToFlight.remove(key, flight);
+                    flight.release();
+                }
+
+                nextListener.proceed();
+            }
+        }
+
+
+        /**
+         * Check whether the response may be stored and snapshot everything needed to do so later.
+         */
+        private boolean prepareStore(HttpServerExchange exchange, HeaderMap responseHeaders, long now)
+        {
+            val cacheControl = CacheControl.parse(responseHeaders.get(Headers.CACHE_CONTROL));
+            if (cacheControl.isNoStore() || cacheControl.isPrivateResponse() || responseHeaders.contains(Headers.SET_COOKIE))
+            {
+                return false;
+            }
+
+            lifetimeMillis = getLifetimeMillis(responseHeaders, cacheControl, route);
+            if (lifetimeMillis < 0
+                    || (lifetimeMillis == 0 && responseHeaders.getFirst(Headers.ETAG) == null && responseHeaders.getFirst(Headers.LAST_MODIFIED) == null))
+            {
+                return false;
+            }
+
+            val varyNameList = new ArrayList<HttpString>();
+            val varyHeaders = responseHeaders.get(Headers.VARY);
+            for (val vary : (varyHeaders != null) ? varyHeaders : List.<String>of())
+            {
+                for (val name : vary.split(","))
+                {
+                    val trimmed = name.trim();
+                    if (trimmed.equals("*"))
+                    {
+                        return false;
+                    }
+
+                    if (!trimmed.isEmpty())
+                    {
+                        varyNameList.add(new HttpString(trimmed));
+                    }
+                }
+            }
+
+            val requestHeaders = exchange.getRequestHeaders();
+            varyNames = varyNameList.toArray(new HttpString[0]);
+            varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; ++i)
+            {
+                varyValues[i] = CachedResponse.getVaryValue(requestHeaders, varyNames[i]);
+            }
+
+            val headerNameList = new ArrayList<HttpString>();
+            val headerValueList = new ArrayList<String>();
+            for (val header : responseHeaders)
+            {
+                if (!UNSTORED_HEADERS.contains(header.getHeaderName()))
+                {
+                    for (val value : header)
+                    {
+                        headerNameList.add(header.getHeaderName());
+                        headerValueList.add(value);
+                    }
+                }
+            }
+
+            headerNames = headerNameList.toArray(new HttpString[0]);
+            headerValues = headerValueList.toArray(new String[0]);
+            contentLength = responseHeaders.contains(Headers.CONTENT_LENGTH) ? parseNonNegative(responseHeaders.getFirst(Headers.CONTENT_LENGTH)) : -1L;
+            bornAt = now - parseNonNegative(responseHeaders.getFirst(Headers.AGE)) * 1000L;
+
+            return true;
+        }
+    }
+}
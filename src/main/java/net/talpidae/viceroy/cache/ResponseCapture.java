@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import lombok.Getter;
+import lombok.val;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Copy of a response body written to the client, collected into a direct buffer of bounded size.
+ */
+final class ResponseCapture
+{
+    private static final int INITIAL_SIZE = 8192;
+
+    private final int maxSize;
+
+    private ByteBuffer buffer;
+
+    @Getter
+    private boolean abandoned;
+
+    @Getter
+    private boolean finished;
+
+
+    /**
+     * @param expectedSize Content-Length of the response or -1, if unknown.
+     */
+    ResponseCapture(long expectedSize, int maxSize)
+    {
+        this.maxSize = maxSize;
+        if (expectedSize > maxSize)
+        {
+            abandoned = true;
+        }
+        else
+        {
+            buffer = ByteBuffer.allocateDirect((expectedSize >= 0) ? (int) expectedSize : Math.min(INITIAL_SIZE, maxSize));
+        }
+    }
+
+
+    /**
+     * Append the count bytes of src preceding its current position.
+     */
+    void append(ByteBuffer src, int count)
+    {
+        if (abandoned || count <= 0)
+        {
+            return;
+        }
+
+        if (!ensureRemaining(count))
+        {
+            abandon();
+            return;
+        }
+
+        val position = src.position();
+        val limit = src.limit();
+        src.position(position - count);
+        src.limit(position);
+        buffer.put(src);
+        src.limit(limit);
+    }
+
+
+    void abandon()
+    {
+        abandoned = true;
+        buffer = null;
+    }
+
+
+    void finish()
+    {
+        finished = true;
+    }
+
+
+    /**
+     * Get the captured body as an exactly sized read-only buffer, null if capturing did not succeed.
+     */
+    ByteBuffer getBody()
+    {
+        if (abandoned || !finished)
+        {
+            return null;
+        }
+
+        buffer.flip();
+        if (buffer.limit() != buffer.capacity())
+        {
+            buffer = ByteBuffer.allocateDirect(buffer.limit()).put(buffer);
+            buffer.flip();
+        }
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+
+    private boolean ensureRemaining(int count)
+    {
+        if (buffer.remaining() >= count)
+        {
+            return true;
+        }
+
+        val required = (long) buffer.position() + count;
+        if (required > maxSize)
+        {
+            return false;
+        }
+
+        val grown = ByteBuffer.allocateDirect((int) Math.min(maxSize, Math.max(required, 2L * buffer.capacity())));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+
+        return true;
+    }
+}
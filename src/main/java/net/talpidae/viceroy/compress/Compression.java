@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.compress;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.RouteMatch;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Content negotiation and per-route thresholds for response compression.
+ */
+@Singleton
+public class Compression
+{
+    /**
+     * Content type prefixes compressed by default, "+json" and "+xml" types are always included.
+     */
+    private static final List<String> DEFAULT_TYPES = List.of(
+            "text/", "application/json", "application/javascript", "application/xml", "image/svg+xml");
+
+    private static final ContentCoding[] CODINGS = ContentCoding.values();
+
+    @Getter
+    private final int level;
+
+
+    @Inject
+    public Compression(ProxyConfig proxyConfig)
+    {
+        this.level = proxyConfig.getCompressLevel();
+    }
+
+
+    /**
+     * Select the coding the client prefers according to Accept-Encoding, null if it only accepts identity.
+     */
+    public static ContentCoding negotiate(HeaderMap requestHeaders)
+    {
+        val acceptEncodings = requestHeaders.get(Headers.ACCEPT_ENCODING);
+        if (acceptEncodings == null)
+        {
+            return null;
+        }
+
+        val qualities = new double[CODINGS.length];
+        Arrays.fill(qualities, -1.0);
+        double wildcardQuality = -1.0;
+        for (val acceptEncoding : acceptEncodings)
+        {
+            for (val element : acceptEncoding.split(","))
+            {
+                val parameters = element.split(";");
+                val name = parameters[0].trim();
+                double quality = 1.0;
+                for (int i = 1; i < parameters.length; ++i)
+                {
+                    val parameter = parameters[i].trim();
+                    if (parameter.startsWith("q="))
+                    {
+                        try
+                        {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            quality = 0.0;
+                        }
+                    }
+                }
+
+                if (name.equals("*"))
+                {
+                    wildcardQuality = quality;
+                }
+                else
+                {
+                    val coding = ContentCoding.forName(name);
+                    if (coding != null)
+                    {
+                        qualities[coding.ordinal()] = quality;
+                    }
+                }
+            }
+        }
+
+        ContentCoding selected = null;
+        double selectedQuality = 0.0;
+        for (val coding : CODINGS)
+        {
+            val specified = qualities[coding.ordinal()];
+            val quality = (specified >= 0.0) ? specified : Math.max(0.0, wildcardQuality);
+            if (quality > selectedQuality)
+            {
+                selected = coding;
+                selectedQuality = quality;
+            }
+        }
+
+        return selected;
+    }
+
+
+    private static boolean matchesType(String contentType, List<String> types)
+    {
+        if (contentType == null)
+        {
+            return false;
+        }
+
+        val mediaType = contentType.toLowerCase(Locale.ROOT);
+        for (val type : (types != null) ? types : DEFAULT_TYPES)
+        {
+            if (mediaType.startsWith(type))
+            {
+                return true;
+            }
+        }
+
+        val parametersStart = mediaType.indexOf(';');
+        val baseType = (parametersStart >= 0) ? mediaType.substring(0, parametersStart).trim() : mediaType;
+
+        return types == null && (baseType.endsWith("+json") || baseType.endsWith("+xml"));
+    }
+
+
+    private static boolean isNoTransform(HeaderMap responseHeaders)
+    {
+        val cacheControls = responseHeaders.get(Headers.CACHE_CONTROL);
+        if (cacheControls != null)
+        {
+            for (val cacheControl : cacheControls)
+            {
+                if (cacheControl.toLowerCase(Locale.ROOT).contains("no-transform"))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Check whether the response of exchange on route may be compressed, based on the route thresholds and
+     * the response status and headers.
+     */
+    public boolean isCompressible(HttpServerExchange exchange, RouteMatch route, HeaderMap responseHeaders)
+    {
+        val status = exchange.getStatusCode();
+        if (route.getCompressMinSize() <= 0
+                || status < StatusCodes.OK
+                || status == StatusCodes.NO_CONTENT
+                || status == StatusCodes.PARTIAL_CONTENT
+                || status == StatusCodes.NOT_MODIFIED
+                || Methods.HEAD.equals(exchange.getRequestMethod())
+                || responseHeaders.contains(Headers.CONTENT_ENCODING)
+                || responseHeaders.contains(Headers.CONTENT_RANGE)
+                || isNoTransform(responseHeaders))
+        {
+            return false;
+        }
+
+        val contentLength = responseHeaders.getFirst(Headers.CONTENT_LENGTH);
+        try
+        {
+            if (contentLength != null && Long.parseLong(contentLength.trim()) < route.getCompressMinSize())
+            {
+                return false;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+
+        return matchesType(responseHeaders.getFirst(Headers.CONTENT_TYPE), route.getCompressTypes());
+    }
+
+
+    /**
+     * Mark the response as varying with Accept-Encoding.
+     */
+    public static void addVary(HeaderMap responseHeaders)
+    {
+        val varies = responseHeaders.get(Headers.VARY);
+        if (varies != null)
+        {
+            for (val vary : varies)
+            {
+                if (vary.toLowerCase(Locale.ROOT).contains("accept-encoding"))
+                {
+                    return;
+                }
+            }
+        }
+
+        responseHeaders.add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+    }
+
+
+    /**
+     * Set the headers of a response encoded with coding, the caller sets Content-Length if known.
+     */
+    public static void applyCoding(HeaderMap responseHeaders, ContentCoding coding)
+    {
+        addVary(responseHeaders);
+        responseHeaders.put(Headers.CONTENT_ENCODING, coding.getName());
+        responseHeaders.remove(Headers.CONTENT_LENGTH);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.compress;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import lombok.val;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+
+
+/**
+ * Compresses responses of routes with a compression threshold while they are streamed to the client.
+ * <p>
+ * The coding is negotiated with Accept-Encoding (gzip preferred over deflate), responses are only compressed if
+ * they are at least as large as the route threshold (or of unknown length) and have a matching content type.
+ * Bodies are compressed on the fly, they are never buffered as a whole. Responses already carrying a
+ * Content-Encoding, like precompressed variants served by the response cache, are passed through.
+ */
+public class CompressionHandler implements HttpHandler
+{
+    private final HttpHandler next;
+
+    private final Compression compression;
+
+
+    public CompressionHandler(HttpHandler next, Compression compression)
+    {
+        this.next = next;
+        this.compression = compression;
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route != null && route.getCompressMinSize() > 0)
+        {
+            val coding = Compression.negotiate(exchange.getRequestHeaders());
+            exchange.addResponseWrapper((factory, wrappedExchange) ->
+            {
+                val responseHeaders = wrappedExchange.getResponseHeaders();
+                if (!compression.isCompressible(wrappedExchange, route, responseHeaders))
+                {
+                    return factory.create();
+                }
+
+                if (coding == null)
+                {
+                    Compression.addVary(responseHeaders);
+                    return factory.create();
+                }
+
+                Compression.applyCoding(responseHeaders, coding);
+
+                return coding.wrap(factory, wrappedExchange, compression.getLevel());
+            });
+        }
+
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.compress;
+
+import io.undertow.conduits.DeflatingStreamSinkConduit;
+import io.undertow.conduits.GzipStreamSinkConduit;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import lombok.Getter;
+import lombok.val;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Supported content codings in order of preference.
+ */
+public enum ContentCoding
+{
+    GZIP("gzip")
+            {
+                @Override
+                StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange, int level)
+                {
+                    return new GzipStreamSinkConduit(factory, exchange, level);
+                }
+
+
+                @Override
+                OutputStream createStream(OutputStream out, int level) throws IOException
+                {
+                    return new GZIPOutputStream(out)
+                    {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                }
+            },
+
+    DEFLATE("deflate")
+            {
+                @Override
+                StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange, int level)
+                {
+                    return new DeflatingStreamSinkConduit(factory, exchange, level);
+                }
+
+
+                @Override
+                OutputStream createStream(OutputStream out, int level)
+                {
+                    return new DeflaterOutputStream(out, new Deflater(level))
+                    {
+                        @Override
+                        public void close() throws IOException
+                        {
+                            try
+                            {
+                                super.close();
+                            }
+                            finally
+                            {
+                                def.end();
+                            }
+                        }
+                    };
+                }
+            };
+
+    private static final ContentCoding[] VALUES = values();
+
+    @Getter
+    private final String name;
+
+
+    ContentCoding(String name)
+    {
+        this.name = name;
+    }
+
+
+    static ContentCoding forName(String name)
+    {
+        for (val coding : VALUES)
+        {
+            if (coding.name.equalsIgnoreCase(name))
+            {
+                return coding;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Wrap the response conduit of exchange to compress everything written to it on the fly.
+     */
+    abstract StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange, int level);
+
+
+    abstract OutputStream createStream(OutputStream out, int level) throws IOException;
+
+
+    /**
+     * Compress a complete body into a new direct buffer.
+     */
+    public ByteBuffer encode(ByteBuffer body, int level)
+    {
+        val input = new byte[body.remaining()];
+        body.duplicate().get(input);
+
+        val out = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+        try (OutputStream stream = createStream(out, level))
+        {
+            stream.write(input);
+        }
+        catch (IOException e)
+        {
+            // never happens with in-memory streams
+            throw new IllegalStateException("failed to encode body", e);
+        }
+
+        val encoded = out.toByteArray();
+
+        return ByteBuffer.allocateDirect(encoded.length).put(encoded).flip();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.control;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Executes control plane work (discovery, maintenance) away from the XNIO I/O threads.
+ * <p>
+ * On JDKs with virtual threads a single platform thread keeps time and every task run gets its own virtual thread,
+ * so blocking tasks (discovery lookups, health probes) run concurrently instead of queueing for a pool thread.
+ * Older JDKs run tasks on a small pool of daemon threads.
+ * <p>
+ * Tasks that block for long (discovery lookups) get a lane of their own, so they can't occupy the shared pool and
+ * delay periodic tasks like access log draining, health probes or metrics flushing.
+ */
+@Singleton
+@Slf4j
+public class ControlPlane implements Closeable
+{
+    private static final int THREADS = 4;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Virtual thread per task executor, null if not supported by the JDK.
+     */
+    private final ExecutorService workers;
+
+    private final List<ExecutorService> lanes = new CopyOnWriteArrayList<>();
+
+
+    public ControlPlane()
+    {
+        workers = createVirtualThreadExecutor();
+        timer = new ScheduledThreadPoolExecutor((workers != null) ? 1 : THREADS, new DaemonThreadFactory("viceroy-control-"));
+        timer.setRemoveOnCancelPolicy(true);
+
+        log.info("control plane tasks run on {}", (workers != null) ? "virtual threads" : THREADS + " platform threads");
+    }
+
+
+    /**
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(...).factory()) through reflection, we compile for
+     * JDKs that don't have it.
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            val builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "viceroy-control-v", 1L);
+            val factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // not available or preview feature not enabled
+            return null;
+        }
+    }
+
+
+    private static Runnable logFailures(String name, Runnable task)
+    {
+        return () ->
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                log.error("control plane task {} failed: {}", name, e.getMessage(), e);
+            }
+        };
+    }
+
+
+    private void dispatch(Runnable task)
+    {
+        if (workers != null)
+        {
+            workers.execute(task);
+        }
+        else
+        {
+            task.run();
+        }
+    }
+
+
+    /**
+     * Run a one-shot task as soon as possible. The task may block.
+     */
+    public void execute(String name, Runnable task)
+    {
+        val wrappedTask = logFailures(name, task);
+        if (workers != null)
+        {
+            workers.execute(wrappedTask);
+        }
+        else
+        {
+            timer.execute(wrappedTask);
+        }
+    }
+
+
+    /**
+     * Run a one-shot task after the specified delay. The task may block.
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable task, long delay, TimeUnit unit)
+    {
+        val wrappedTask = logFailures(name, task);
+
+        return timer.schedule(() -> dispatch(wrappedTask), delay, unit);
+    }
+
+
+    /**
+     * Run a task periodically. Failures are logged and do not cancel subsequent runs.
+     * Runs never overlap, a run still in progress when the next one is due skips that one.
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task, long delay, TimeUnit unit)
+    {
+        val periodicTask = new PeriodicTask(logFailures(name, task));
+
+        return timer.scheduleWithFixedDelay(() -> periodicTask.trigger(this), delay, delay, unit);
+    }
+
+
+    /**
+     * Create a lane that runs blocking tasks of one kind on its own daemon threads, at most concurrency at a time.
+     * Further tasks queue in the lane. The lane is shut down with the control plane.
+     */
+    public Executor newLane(String name, int concurrency)
+    {
+        val lane = new ThreadPoolExecutor(concurrency, concurrency, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory("viceroy-" + name + "-"));
+        lane.allowCoreThreadTimeOut(true);
+        lanes.add(lane);
+
+        return task -> lane.execute(logFailures(name, task));
+    }
+
+
+    @Override
+    public void close()
+    {
+        timer.shutdownNow();
+        for (val lane : lanes)
+        {
+            lane.shutdownNow();
+        }
+        if (workers != null)
+        {
+            workers.shutdownNow();
+        }
+    }
+
+
+    private static class PeriodicTask implements Runnable
+    {
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        private final Runnable task;
+
+
+        private PeriodicTask(Runnable task)
+        {
+            this.task = task;
+        }
+
+
+        private void trigger(ControlPlane controlPlane)
+        {
+            if (running.compareAndSet(false, true))
+            {
+                controlPlane.dispatch(this);
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                running.set(false);
+            }
+        }
+    }
+
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final String prefix;
+
+
+        private DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            val thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.val;
+import net.talpidae.viceroy.proxy.balancer.CheapRandom;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Ejection state of a single backend, fed by passive outlier detection and active health probes.
+ * <p>
+ * If warm-up is enabled a new backend starts out warming and enters slow-start once warm-up finished.
+ * <p>
+ * An ejected backend is not selected until its ejection time passed and (if active checks are enabled) a probe
+ * succeeded. It then receives a share of its normal traffic that grows linearly over the slow-start period.
+ * Selection of healthy backends only reads a single volatile field.
+ */
+public final class BackendHealth
+{
+    private static final int HEALTHY = 0;
+
+    private static final int EJECTED = 1;
+
+    private static final int RECOVERING = 2;
+
+    private static final int WARMING = 3;
+
+    /**
+     * Share of traffic at the start of the slow-start period.
+     */
+    private static final double MIN_WEIGHT = 0.1;
+
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private final HealthPolicy policy;
+
+    private final AtomicInteger state;
+
+    private final AtomicInteger consecutiveErrors = new AtomicInteger();
+
+    private final AtomicInteger ejections = new AtomicInteger();
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private final LongAdder latencySum = new LongAdder();
+
+    private final LongAdder samples = new LongAdder();
+
+    private volatile long ejectedUntil;
+
+    private volatile long recoveringSince;
+
+    private volatile boolean probeFailed;
+
+
+    public BackendHealth(HealthPolicy policy)
+    {
+        this.policy = policy;
+        this.state = new AtomicInteger(policy.isWarmup() ? WARMING : HEALTHY);
+    }
+
+
+    /**
+     * Check whether a request may be sent to this backend now.
+     */
+    public boolean isSelectable()
+    {
+        val currentState = state.get();
+
+        return currentState == HEALTHY || isSelectableSlow(currentState, System.nanoTime());
+    }
+
+
+    /**
+     * Check whether this backend is ejected, a backend in slow-start is not.
+     */
+    public boolean isEjected()
+    {
+        return state.get() == EJECTED && (probeFailed || System.nanoTime() < ejectedUntil);
+    }
+
+
+    private boolean isSelectableSlow(int currentState, long now)
+    {
+        if (currentState == WARMING)
+        {
+            return false;
+        }
+
+        if (currentState == EJECTED)
+        {
+            if (probeFailed || now < ejectedUntil)
+            {
+                return false;
+            }
+
+            recoveringSince = ejectedUntil;
+            state.compareAndSet(EJECTED, RECOVERING);
+        }
+
+        val elapsed = now - recoveringSince;
+        if (elapsed >= policy.getSlowStartNanos())
+        {
+            state.compareAndSet(RECOVERING, HEALTHY);
+            return true;
+        }
+
+        val weight = MIN_WEIGHT + (1.0 - MIN_WEIGHT) * elapsed / policy.getSlowStartNanos();
+
+        return CheapRandom.nextInt(1000) < weight * 1000;
+    }
+
+
+    /**
+     * Warm-up finished, start slow-start.
+     */
+    public void warmedUp(long now)
+    {
+        recoveringSince = now;
+        state.compareAndSet(WARMING, RECOVERING);
+    }
+
+
+    /**
+     * Record a completed response.
+     *
+     * @return true if this response caused the backend to be ejected
+     */
+    public boolean onResponse(int status, long latencyNanos, long now)
+    {
+        if (status >= 500)
+        {
+            return onFailure(now);
+        }
+
+        if (consecutiveErrors.get() != 0)
+        {
+            consecutiveErrors.set(0);
+        }
+
+        latencySum.add(latencyNanos);
+        samples.increment();
+
+        return false;
+    }
+
+
+    /**
+     * Record a failed request (5xx or connect failure).
+     *
+     * @return true if this failure caused the backend to be ejected
+     */
+    public boolean onFailure(long now)
+    {
+        val threshold = policy.getConsecutiveErrors();
+
+        return threshold > 0 && consecutiveErrors.incrementAndGet() >= threshold && eject(now);
+    }
+
+
+    /**
+     * Eject this backend for the base ejection time multiplied by the number of recent ejections.
+     *
+     * @return false if the backend has already been ejected
+     */
+    public boolean eject(long now)
+    {
+        if (state.get() == EJECTED)
+        {
+            return false;
+        }
+
+        val multiplier = Math.min(MAX_EJECTION_MULTIPLIER, ejections.incrementAndGet());
+        consecutiveErrors.set(0);
+
+        // publish the deadline before the state so readers never see a stale one
+        ejectedUntil = now + policy.getEjectionNanos() * multiplier;
+        state.set(EJECTED);
+
+        return true;
+    }
+
+
+    /**
+     * Record the result of an active health probe.
+     *
+     * @return true if the health state changed
+     */
+    public boolean onProbe(boolean healthy, long now)
+    {
+        if (healthy)
+        {
+            if (probeFailed)
+            {
+                // slow-start from now on, not from some point in the past
+                ejectedUntil = Math.max(ejectedUntil, now);
+                probeFailed = false;
+                return true;
+            }
+        }
+        else if (!probeFailed)
+        {
+            probeFailed = true;
+            state.set(EJECTED);
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Allow a single probe at a time.
+     */
+    public boolean tryBeginProbe()
+    {
+        return probing.compareAndSet(false, true);
+    }
+
+
+    public void endProbe()
+    {
+        probing.set(false);
+    }
+
+
+    /**
+     * Get the mean latency since the last call and reset the window, also lets ejections of healthy backends decay.
+     *
+     * @return The mean latency in nanoseconds or -1, if less than minSamples have been recorded.
+     */
+    public double drainMeanLatency(long minSamples)
+    {
+        if (state.get() == HEALTHY && ejections.get() > 0)
+        {
+            ejections.decrementAndGet();
+        }
+
+        val count = samples.sumThenReset();
+        val sum = latencySum.sumThenReset();
+
+        return (count >= minSamples && count > 0) ? (double) sum / count : -1.0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.ServerWorker;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Warms up newly discovered backends before they are selected.
+ * <p>
+ * Opens the configured number of multiplexed connections on every I/O thread (and probes the health check endpoint,
+ * if configured) so that the instance has accepted connections and served a request before it gets any traffic.
+ * The connections are kept in the pool and carry the first requests, unless the backend doesn't support HTTP/2:
+ * Undertow's ProxyConnectionPool only connects on behalf of an exchange, so these are closed again. The backend
+ * then enters slow-start, which spreads the remaining connection setup of the pool over time. A backend that
+ * can't be warmed up within a few attempts is released anyway and left to outlier detection.
+ */
+@Singleton
+@Slf4j
+public class BackendWarmer
+{
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final ControlPlane controlPlane;
+
+    private final ServerWorker serverWorker;
+
+    private final int connections;
+
+    private final int timeout;
+
+    private final String path;
+
+
+    @Inject
+    public BackendWarmer(ControlPlane controlPlane, ServerWorker serverWorker, ProxyConfig proxyConfig)
+    {
+        this.controlPlane = controlPlane;
+        this.serverWorker = serverWorker;
+        this.connections = proxyConfig.getWarmupConnections();
+        this.timeout = proxyConfig.getHealthCheckTimeout();
+        this.path = proxyConfig.getHealthCheckPath();
+    }
+
+
+    /**
+     * Start warming up a new pool, does nothing if warm-up is disabled.
+     */
+    public void warm(TargetPool pool)
+    {
+        if (connections > 0)
+        {
+            attempt(pool, 1);
+        }
+    }
+
+
+    private void attempt(TargetPool pool, int attempt)
+    {
+        // connections are opened on the I/O threads, the (blocking) probe runs on the control plane
+        serverWorker.openIdle(pool, connections, connected ->
+                controlPlane.execute("backend warm-up", () -> finish(pool, attempt, connected)));
+    }
+
+
+    private void finish(TargetPool pool, int attempt, boolean connected)
+    {
+        val address = pool.getSocketAddress();
+        if (connected && (path == null || path.isEmpty() || HttpProbe.isHealthy(address, path, timeout)))
+        {
+            log.debug("backend {} warmed up", address);
+        }
+        else if (attempt < MAX_ATTEMPTS)
+        {
+            controlPlane.schedule("backend warm-up", () -> attempt(pool, attempt + 1), RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+            return;
+        }
+        else
+        {
+            log.warn("failed to warm up backend {}, releasing it anyway", address);
+        }
+
+        pool.getHealth().warmedUp(System.nanoTime());
+    }
+}
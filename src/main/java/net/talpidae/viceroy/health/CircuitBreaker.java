@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Circuit breaker of a route, trips once connecting to its backends failed a number of times in a row.
+ * <p>
+ * While open, requests are rejected without trying any backend. Once the open time passed a single request is let
+ * through as a probe (half-open): if it connects the breaker closes, otherwise it opens again. A probe that never
+ * reports back is replaced by another one after the open time. Admitting requests of a closed breaker only reads
+ * a single volatile field.
+ */
+public final class CircuitBreaker
+{
+    private static final int CLOSED = 0;
+
+    private static final int OPEN = 1;
+
+    private static final int HALF_OPEN = 2;
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * End of the open period, or deadline of the probe in progress.
+     */
+    private final AtomicLong openUntil = new AtomicLong();
+
+
+    /**
+     * @param failureThreshold Consecutive connect failures after which the breaker opens, 0 disables it.
+     * @param openNanos        Time requests are rejected before a probe is let through.
+     */
+    public CircuitBreaker(int failureThreshold, long openNanos)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+
+    /**
+     * Check whether a request may try the backends now, the caller becomes the probe of a half-open breaker.
+     */
+    public boolean tryAcquire(long now)
+    {
+        val currentState = state.get();
+        if (currentState == CLOSED)
+        {
+            return true;
+        }
+
+        val deadline = openUntil.get();
+        if (now - deadline < 0)
+        {
+            return false;
+        }
+
+        // open period (or deadline of a lost probe) passed, only one caller gets to probe
+        if (!openUntil.compareAndSet(deadline, now + openNanos))
+        {
+            return false;
+        }
+
+        state.compareAndSet(currentState, HALF_OPEN);
+
+        return true;
+    }
+
+
+    /**
+     * Time until the next probe is let through, for Retry-After.
+     */
+    public long getRemainingNanos(long now)
+    {
+        return Math.max(0L, openUntil.get() - now);
+    }
+
+
+    /**
+     * Record a successful connection attempt.
+     */
+    public void onSuccess()
+    {
+        if (consecutiveFailures.get() != 0)
+        {
+            consecutiveFailures.set(0);
+        }
+
+        if (state.get() != CLOSED)
+        {
+            state.set(CLOSED);
+        }
+    }
+
+
+    /**
+     * Record a failed connection attempt.
+     *
+     * @return true if this failure opened the breaker
+     */
+    public boolean onFailure(long now)
+    {
+        if (failureThreshold <= 0)
+        {
+            return false;
+        }
+
+        if (state.get() == HALF_OPEN)
+        {
+            // probe failed
+            openUntil.set(now + openNanos);
+            return state.compareAndSet(HALF_OPEN, OPEN);
+        }
+
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.get() == CLOSED)
+        {
+            consecutiveFailures.set(0);
+
+            // publish the deadline before the state so readers never see a stale one
+            openUntil.set(now + openNanos);
+            return state.compareAndSet(CLOSED, OPEN);
+        }
+
+        return false;
+    }
+}
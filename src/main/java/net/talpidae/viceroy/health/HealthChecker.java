@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.ServiceDirectory;
+import net.talpidae.viceroy.proxy.TargetPool;
+import net.talpidae.viceroy.proxy.TargetPools;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Actively probes all backends and ejects latency outliers of each route.
+ * <p>
+ * Probes are plain blocking HTTP GET requests executed on the control plane, a backend is considered healthy if
+ * the configured endpoint responds with 2xx in time. Latency outliers are backends whose mean latency over the
+ * last interval exceeds the median of their route by the configured factor. Outlier detection ejects at most
+ * maxEjectionPercent of the backends of a route at any time.
+ */
+@Singleton
+@Slf4j
+public class HealthChecker
+{
+    /**
+     * Minimum number of responses in an interval for a backend to take part in outlier detection.
+     */
+    private static final long MIN_SAMPLES = 10;
+
+    /**
+     * Minimum number of backends with enough samples to determine a meaningful median.
+     */
+    private static final int MIN_BACKENDS = 3;
+
+    private final ServiceDirectory directory;
+
+    private final TargetPools targetPools;
+
+    private final ControlPlane controlPlane;
+
+    private final String path;
+
+    private final long interval;
+
+    private final int timeout;
+
+    private final double latencyFactor;
+
+    private final int maxEjectionPercent;
+
+
+    @Inject
+    public HealthChecker(ServiceDirectory directory, TargetPools targetPools, ControlPlane controlPlane, ProxyConfig proxyConfig)
+    {
+        this.directory = directory;
+        this.targetPools = targetPools;
+        this.controlPlane = controlPlane;
+        this.path = proxyConfig.getHealthCheckPath();
+        this.interval = proxyConfig.getHealthCheckInterval();
+        this.timeout = proxyConfig.getHealthCheckTimeout();
+        this.latencyFactor = proxyConfig.getOutlierLatencyFactor();
+        this.maxEjectionPercent = proxyConfig.getMaxEjectionPercent();
+    }
+
+
+    private static double median(double[] values, int count)
+    {
+        Arrays.sort(values, 0, count);
+        val middle = count / 2;
+
+        return (count % 2 == 1) ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+
+    /**
+     * Start probing and outlier detection, does nothing if the interval is not positive.
+     */
+    public void start()
+    {
+        if (interval <= 0)
+        {
+            return;
+        }
+
+        if (path != null && !path.isEmpty())
+        {
+            controlPlane.scheduleWithFixedDelay("health probes", this::probeAll, interval, TimeUnit.MILLISECONDS);
+        }
+
+        if (latencyFactor > 0)
+        {
+            controlPlane.scheduleWithFixedDelay("outlier detection", this::detectOutliers, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    private void probeAll()
+    {
+        for (val pool : targetPools.getPools())
+        {
+            if (pool.getHealth().tryBeginProbe())
+            {
+                controlPlane.execute("health probe", () -> probe(pool));
+            }
+        }
+    }
+
+
+    private void probe(TargetPool pool)
+    {
+        val health = pool.getHealth();
+        try
+        {
+            val healthy = HttpProbe.isHealthy(pool.getSocketAddress(), path, timeout);
+            if (health.onProbe(healthy, System.nanoTime()))
+            {
+                log.info("backend {} is {}", pool.getSocketAddress(), healthy ? "healthy again" : "unhealthy");
+            }
+        }
+        finally
+        {
+            health.endProbe();
+        }
+    }
+
+
+    private void detectOutliers()
+    {
+        val now = System.nanoTime();
+        val meanLatencies = new IdentityHashMap<TargetPool, Double>();
+        for (val pool : targetPools.getPools())
+        {
+            meanLatencies.put(pool, pool.getHealth().drainMeanLatency(MIN_SAMPLES));
+        }
+
+        for (val state : directory.getRouteStates())
+        {
+            val table = state.getTable();
+            if (table == null || table.size() < MIN_BACKENDS)
+            {
+                continue;
+            }
+
+            val latencies = new double[table.size()];
+            int count = 0;
+            int ejected = 0;
+            for (val backend : table.getBackends())
+            {
+                val pool = backend.getPool();
+                if (pool.getHealth().isEjected())
+                {
+                    ++ejected;
+                }
+
+                val latency = meanLatencies.getOrDefault(pool, -1.0);
+                if (latency >= 0)
+                {
+                    latencies[count++] = latency;
+                }
+            }
+
+            if (count < MIN_BACKENDS)
+            {
+                continue;
+            }
+
+            val threshold = median(latencies, count) * latencyFactor;
+            for (val backend : table.getBackends())
+            {
+                val pool = backend.getPool();
+                if ((ejected + 1) * 100 > table.size() * maxEjectionPercent)
+                {
+                    // ejecting another one would exceed the limit
+                    break;
+                }
+
+                if (meanLatencies.getOrDefault(pool, -1.0) > threshold && pool.getHealth().eject(now))
+                {
+                    ++ejected;
+                    pool.getMetrics().ejected();
+                    log.info("ejected backend {} of route {}: latency above {}x route median", pool.getSocketAddress(), state.getRoute(), latencyFactor);
+                }
+            }
+        }
+    }
+}
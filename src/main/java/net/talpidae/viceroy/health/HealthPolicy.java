@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.Builder;
+import lombok.Getter;
+
+
+/**
+ * Parameters of outlier ejection and recovery shared by all backends.
+ */
+@Builder
+@Getter
+public class HealthPolicy
+{
+    public static final HealthPolicy DISABLED = HealthPolicy.builder().build();
+
+    /**
+     * Consecutive 5xx responses (or connect failures) after which a backend is ejected, 0 disables.
+     */
+    private final int consecutiveErrors;
+
+    /**
+     * Base ejection time, multiplied by the number of recent ejections of the backend.
+     */
+    private final long ejectionNanos;
+
+    /**
+     * New backends are not selected until they have been warmed up.
+     */
+    private final boolean warmup;
+
+    /**
+     * Time over which the share of traffic of a recovered backend ramps up to 100%.
+     */
+    private final long slowStartNanos;
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.val;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+
+/**
+ * Blocking HTTP GET probe of a backend endpoint.
+ */
+final class HttpProbe
+{
+    private HttpProbe()
+    {
+
+    }
+
+
+    /**
+     * Check whether GET path on address responds with 2xx within timeout milliseconds (connect and read each).
+     */
+    static boolean isHealthy(InetSocketAddress address, String path, int timeout)
+    {
+        HttpURLConnection connection = null;
+        try
+        {
+            connection = (HttpURLConnection) new URL("http", address.getHostString(), address.getPort(), path).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+
+            val status = connection.getResponseCode();
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+
+            return status >= 200 && status < 300;
+        }
+        catch (IOException e)
+        {
+            if (connection != null)
+            {
+                connection.disconnect();
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Consume the response body so the connection can be kept alive.
+     */
+    private static void drain(InputStream body) throws IOException
+    {
+        if (body != null)
+        {
+            try (body)
+            {
+                val buffer = new byte[512];
+                while (body.read(buffer) >= 0)
+                {
+                    // discard
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+
+
+/**
+ * Sheds requests with 503 Service Unavailable once the adaptive concurrency limit of their route is reached.
+ * Shed requests are asked to retry after a second, by then the requests in flight usually completed.
+ * <p>
+ * The priority tier is taken from the configured request header or defaults to the tier of the route.
+ * Upgraded (long-lived) connections are not limited.
+ */
+public class ConcurrencyLimitHandler implements HttpHandler
+{
+    private static final long RETRY_AFTER_SECONDS = 1L;
+
+    private final HttpHandler next;
+
+    private final ConcurrencyLimiters limiters;
+
+    private final ProxyConfig proxyConfig;
+
+    private final HttpString priorityHeader;
+
+
+    public ConcurrencyLimitHandler(HttpHandler next, ConcurrencyLimiters limiters, ProxyConfig proxyConfig)
+    {
+        this.next = next;
+        this.limiters = limiters;
+        this.proxyConfig = proxyConfig;
+        this.priorityHeader = new HttpString(proxyConfig.getPriorityHeader());
+    }
+
+
+    private static boolean isFailure(int status)
+    {
+        return status == StatusCodes.BAD_GATEWAY || status == StatusCodes.SERVICE_UNAVAILABLE || status == StatusCodes.GATEWAY_TIME_OUT;
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route == null || !limiters.isEnabled() || exchange.getRequestHeaders().contains(Headers.UPGRADE))
+        {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val requestedPriority = Priority.forName(exchange.getRequestHeaders().getFirst(priorityHeader));
+        val priority = (requestedPriority != null) ? requestedPriority : route.getPriority();
+
+        val limiter = limiters.get(route.getRoute());
+        if (!limiter.tryAcquire(priority))
+        {
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            exchange.getResponseHeaders().put(Headers.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            exchange.endExchange();
+            return;
+        }
+
+        val startNanos = System.nanoTime();
+        exchange.addExchangeCompleteListener((completedExchange, nextListener) ->
+        {
+            try
+            {
+                val now = System.nanoTime();
+                limiter.release(now - startNanos, isFailure(completedExchange.getStatusCode()), now);
+            }
+            finally
+            {
+                nextListener.proceed();
+            }
+        });
+
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.Getter;
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Adaptive concurrency limit of a route based on the latency gradient.
+ * <p>
+ * Latency samples are aggregated per window. At the end of each window the limit moves towards
+ * {@code limit * (baseline / latency) + sqrt(limit)}, where the baseline is a slowly decaying average of the window
+ * latencies. Rising latency (queueing) shrinks the limit, a window containing backend errors or timeouts backs off
+ * multiplicatively. The limit only grows while it is actually used.
+ */
+public class ConcurrencyLimiter
+{
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double BASELINE_DECAY = 0.05;
+
+    private static final double MIN_GRADIENT = 0.5;
+
+    private static final double BACKOFF = 0.9;
+
+    private static final int MIN_LIMIT = 1;
+
+    @Getter
+    private final String route;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder latencySum = new LongAdder();
+
+    private final LongAdder samples = new LongAdder();
+
+    @Getter
+    private final LongAdder shed = new LongAdder();
+
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    @Getter
+    private volatile int limit;
+
+    private volatile boolean dropped;
+
+    private volatile long windowStart = System.nanoTime();
+
+    /**
+     * Guarded by updating.
+     */
+    private double exactLimit;
+
+    /**
+     * Guarded by updating.
+     */
+    private double baselineNanos;
+
+
+    public ConcurrencyLimiter(String route, int initialLimit, int maxLimit)
+    {
+        this.route = route;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.exactLimit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+        this.limit = (int) exactLimit;
+    }
+
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+
+    /**
+     * Try to admit a request of the specified priority.
+     *
+     * @return true if the request was admitted and release() must be called once it is done, false if it should be shed
+     */
+    public boolean tryAcquire(Priority priority)
+    {
+        val admissible = Math.max(MIN_LIMIT, (int) (limit * priority.getShare()));
+        while (true)
+        {
+            val current = inFlight.get();
+            if (current >= admissible)
+            {
+                shed.increment();
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Release an admitted request.
+     *
+     * @param latencyNanos Time since the request was admitted.
+     * @param failed       The backend failed, timed out or was overloaded.
+     */
+    public void release(long latencyNanos, boolean failed, long now)
+    {
+        if (failed)
+        {
+            dropped = true;
+        }
+        else
+        {
+            latencySum.add(latencyNanos);
+            samples.increment();
+        }
+
+        if (now - windowStart >= WINDOW_NANOS && updating.compareAndSet(false, true))
+        {
+            try
+            {
+                update(now);
+            }
+            finally
+            {
+                updating.set(false);
+            }
+        }
+
+        // decrement last so the in-flight count used by update() includes this request
+        inFlight.decrementAndGet();
+    }
+
+
+    private void update(long now)
+    {
+        windowStart = now;
+        val count = samples.sumThenReset();
+        val sum = latencySum.sumThenReset();
+
+        if (dropped)
+        {
+            dropped = false;
+            setLimit(exactLimit * BACKOFF);
+            return;
+        }
+
+        if (count == 0)
+        {
+            return;
+        }
+
+        val latencyNanos = (double) sum / count;
+        baselineNanos = (baselineNanos > 0) ? Math.min(latencyNanos, baselineNanos * (1.0 - BASELINE_DECAY) + latencyNanos * BASELINE_DECAY) : latencyNanos;
+
+        val gradient = Math.max(MIN_GRADIENT, Math.min(1.0, baselineNanos / latencyNanos));
+        val target = exactLimit * gradient + Math.sqrt(exactLimit);
+        if (target > exactLimit && inFlight.get() < exactLimit / 2)
+        {
+            // not limited by us, don't grow into an unverified range
+            return;
+        }
+
+        setLimit(exactLimit * (1.0 - SMOOTHING) + target * SMOOTHING);
+    }
+
+
+    private void setLimit(double newLimit)
+    {
+        exactLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+        limit = (int) exactLimit;
+    }
+}
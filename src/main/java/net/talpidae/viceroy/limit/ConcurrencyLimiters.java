@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import net.talpidae.viceroy.proxy.ProxyConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Registry of the concurrency limiters of all routes, routes mapped from multiple prefixes share one limiter.
+ */
+@Singleton
+public class ConcurrencyLimiters
+{
+    private final ConcurrentHashMap<String, ConcurrencyLimiter> routeToLimiter = new ConcurrentHashMap<>();
+
+    private final int initialLimit;
+
+    private final int maxLimit;
+
+
+    @Inject
+    public ConcurrencyLimiters(ProxyConfig proxyConfig)
+    {
+        this.initialLimit = proxyConfig.getConcurrencyLimit();
+        this.maxLimit = proxyConfig.getMaxConcurrencyLimit();
+    }
+
+
+    public boolean isEnabled()
+    {
+        return initialLimit > 0;
+    }
+
+
+    /**
+     * Get the limiter of route, creating it if necessary.
+     */
+    public ConcurrencyLimiter get(String route)
+    {
+        return routeToLimiter.computeIfAbsent(route, r -> new ConcurrencyLimiter(r, initialLimit, maxLimit));
+    }
+
+
+    public Collection<ConcurrencyLimiter> getLimiters()
+    {
+        return routeToLimiter.values();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+
+/**
+ * Priority tier of a request, lower tiers may only use a share of the concurrency limit and are shed first.
+ */
+@RequiredArgsConstructor
+@Getter
+public enum Priority
+{
+    CRITICAL(1.0),
+
+    NORMAL(0.9),
+
+    BACKGROUND(0.5);
+
+    private static final Priority[] PRIORITIES = values();
+
+    /**
+     * Share of the concurrency limit available to requests of this tier.
+     */
+    private final double share;
+
+
+    /**
+     * Get the tier named by name (critical, normal, background), case insensitive.
+     *
+     * @return The matching tier or null, if name is null or unknown.
+     */
+    public static Priority forName(String name)
+    {
+        if (name != null)
+        {
+            for (Priority priority : PRIORITIES)
+            {
+                if (priority.name().equalsIgnoreCase(name.trim()))
+                {
+                    return priority;
+                }
+            }
+        }
+
+        return null;
+    }
+}
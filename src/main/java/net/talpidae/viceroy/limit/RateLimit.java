@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.proxy.balancer.AffinityKey;
+import net.talpidae.viceroy.proxy.balancer.HashRing;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Request rate limit of a route: sustained rate, burst size and the key requests are counted by.
+ */
+@Getter
+public final class RateLimit
+{
+    /**
+     * Time in nanoseconds it takes to refill one token.
+     */
+    private final long intervalNanos;
+
+    /**
+     * Time in nanoseconds a bucket may run ahead of the sustained rate, (burst - 1) * intervalNanos.
+     */
+    private final long toleranceNanos;
+
+    /**
+     * Hash of the route prefix, separates the buckets of routes.
+     */
+    private final long prefixHash;
+
+    /**
+     * Key the requests are counted by, null to count all requests of the route together.
+     */
+    private final AffinityKey key;
+
+
+    private RateLimit(long intervalNanos, long toleranceNanos, long prefixHash, AffinityKey key)
+    {
+        this.intervalNanos = intervalNanos;
+        this.toleranceNanos = toleranceNanos;
+        this.prefixHash = prefixHash;
+        this.key = key;
+    }
+
+
+    /**
+     * Parse a limit (RATE[:BURST] in requests per second) and key (ip, header:NAME, cookie:NAME, path:INDEX or route)
+     * of the route mapped from prefix. The burst defaults to one second worth of requests.
+     */
+    public static RateLimit parse(String prefix, String rate, String key)
+    {
+        val separator = rate.indexOf(':');
+        try
+        {
+            val requestsPerSecond = Double.parseDouble((separator >= 0) ? rate.substring(0, separator) : rate);
+            val burst = (separator >= 0) ? Long.parseLong(rate.substring(separator + 1)) : Math.max(1L, (long) Math.ceil(requestsPerSecond));
+            if (requestsPerSecond > 0 && burst >= 1)
+            {
+                val intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+
+                return new RateLimit(intervalNanos,
+                        (burst - 1) * intervalNanos,
+                        HashRing.hash(prefix, 0, prefix.length()),
+                        "route".equals(key) ? null : AffinityKey.parse(key));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // throw below
+        }
+
+        throw new IllegalArgumentException("invalid rate limit specified: " + rate);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Rejects requests with 429 Too Many Requests once their client (or route) exceeds the rate limit of their route.
+ * <p>
+ * Retry-After tells the client when its next request would be admitted (in whole seconds, at least 1).
+ */
+public class RateLimitHandler implements HttpHandler
+{
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HttpHandler next;
+
+    private final RateLimiters limiters;
+
+
+    public RateLimitHandler(HttpHandler next, RateLimiters limiters)
+    {
+        this.next = next;
+        this.limiters = limiters;
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        val rateLimit = (route != null) ? route.getRateLimit() : null;
+        if (rateLimit != null)
+        {
+            val waitNanos = limiters.tryAcquire(rateLimit, exchange, System.nanoTime());
+            if (waitNanos > 0)
+            {
+                exchange.setStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+                exchange.getResponseHeaders().put(Headers.RETRY_AFTER, (waitNanos + SECOND_NANOS - 1) / SECOND_NANOS);
+                exchange.endExchange();
+                return;
+            }
+        }
+
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import io.undertow.server.HttpServerExchange;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.balancer.AffinityKey;
+import net.talpidae.viceroy.proxy.balancer.HashRing;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Token buckets of all rate limited routes and keys, shared in one table of fixed size.
+ * <p>
+ * Requests without the key of their route (no such header, for example) share one bucket per route.
+ */
+@Singleton
+public class RateLimiters
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final TokenBucketTable buckets;
+
+    @Getter
+    private final LongAdder limited = new LongAdder();
+
+
+    @Inject
+    public RateLimiters(ProxyConfig proxyConfig)
+    {
+        this.buckets = new TokenBucketTable(proxyConfig.getRateKeys());
+    }
+
+
+    /**
+     * Take a token for exchange from its bucket under limit.
+     *
+     * @return 0 if the request may proceed, the time in nanoseconds until it would be admitted otherwise.
+     */
+    public long tryAcquire(RateLimit limit, HttpServerExchange exchange, long now)
+    {
+        val key = limit.getKey();
+        val keyHash = (key != null) ? key.hash(exchange) : AffinityKey.NO_KEY;
+        val bucketKey = HashRing.mix(limit.getPrefixHash() + keyHash * GOLDEN_GAMMA);
+
+        val wait = buckets.tryAcquire((bucketKey != 0L) ? bucketKey : 1L, limit.getIntervalNanos(), limit.getToleranceNanos(), now);
+        if (wait > 0)
+        {
+            limited.increment();
+        }
+
+        return wait;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free hash table of token buckets kept in a primitive array.
+ * <p>
+ * Each slot holds a key and the theoretical arrival time (TAT) of its bucket, the bucket is empty at TAT + tolerance
+ * and full at or before now (GCRA). A slot whose TAT lies in the past holds a full bucket that is indistinguishable
+ * from a new one, so it may be taken over by another key at any time: idle keys are evicted without a sweep.
+ * If all probed slots hold busy buckets, the fullest one is replaced.
+ * <p>
+ * Key and TAT are updated with separate CAS operations, a bucket replaced while in use may absorb one request of
+ * its previous key.
+ */
+final class TokenBucketTable
+{
+    private static final int MAX_PROBES = 8;
+
+    private static final long EMPTY = 0L;
+
+    private final AtomicLongArray slots;
+
+    private final int mask;
+
+
+    TokenBucketTable(int capacity)
+    {
+        val size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1) << 1);
+
+        this.slots = new AtomicLongArray(2 * size);
+        this.mask = size - 1;
+    }
+
+
+    int getCapacity()
+    {
+        return mask + 1;
+    }
+
+
+    /**
+     * Take a token from the bucket of key (must not be 0).
+     *
+     * @return 0 if a token was taken, the time in nanoseconds until the next token becomes available otherwise.
+     */
+    long tryAcquire(long key, long intervalNanos, long toleranceNanos, long now)
+    {
+        val start = (int) (key ^ (key >>> 32));
+        for (;;)
+        {
+            int free = -1;
+            int fullest = -1;
+            long fullestTat = Long.MAX_VALUE;
+            long freeKey = EMPTY;
+            long fullestKey = EMPTY;
+            for (int probe = 0; probe < MAX_PROBES; ++probe)
+            {
+                val index = ((start + probe) & mask) << 1;
+                val slotKey = slots.get(index);
+                if (slotKey == key)
+                {
+                    return take(index + 1, intervalNanos, toleranceNanos, now);
+                }
+
+                val tat = slots.get(index + 1);
+                if (free < 0 && (slotKey == EMPTY || tat - now <= 0))
+                {
+                    free = index;
+                    freeKey = slotKey;
+                }
+                else if (fullest < 0 || tat - fullestTat < 0)
+                {
+                    fullest = index;
+                    fullestTat = tat;
+                    fullestKey = slotKey;
+                }
+            }
+
+            val victim = (free >= 0) ? free : fullest;
+            val victimKey = (free >= 0) ? freeKey : fullestKey;
+            if (slots.compareAndSet(victim, victimKey, key))
+            {
+                // new buckets start full
+                slots.set(victim + 1, now);
+
+                return take(victim + 1, intervalNanos, toleranceNanos, now);
+            }
+        }
+    }
+
+
+    private long take(int tatIndex, long intervalNanos, long toleranceNanos, long now)
+    {
+        for (;;)
+        {
+            val tat = slots.get(tatIndex);
+            val base = (tat - now > 0) ? tat : now;
+            val wait = base - now - toleranceNanos;
+            if (wait > 0)
+            {
+                return wait;
+            }
+
+            if (slots.compareAndSet(tatIndex, tat, base + intervalNanos))
+            {
+                return 0L;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.log;
+
+import io.undertow.util.HttpString;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Access log decoupled from the I/O threads by a preallocated ring buffer.
+ * <p>
+ * I/O threads claim a slot with a single CAS and only store primitives and references to existing objects, if the
+ * ring is full the record is dropped and counted. A control plane task drains the ring periodically, formats the
+ * records and writes them to the log file in batches (see AccessLogWriter).
+ */
+@Singleton
+@Slf4j
+public class AccessLog implements Closeable
+{
+    private static final long DRAIN_INTERVAL_MILLIS = 100L;
+
+    private static final String NONE = "-";
+
+    private final ControlPlane controlPlane;
+
+    private final Path file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final int mask;
+
+    /**
+     * Slot i is free for position p if its sequence is p, it holds the record of position p if its sequence is p + 1.
+     */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final long[] timestamps;
+
+    private final HttpString[] methods;
+
+    private final String[] paths;
+
+    private final String[] routes;
+
+    private final InetSocketAddress[] backends;
+
+    private final int[] statusCodes;
+
+    private final long[] bytesSent;
+
+    private final long[] connectNanos;
+
+    private final long[] totalNanos;
+
+    @Getter
+    private final LongAdder dropped = new LongAdder();
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Next position to drain, only accessed by the (single) drain task.
+     */
+    private long head;
+
+    private AccessLogWriter writer;
+
+
+    @Inject
+    public AccessLog(ProxyConfig proxyConfig, ControlPlane controlPlane)
+    {
+        this(proxyConfig.getAccessLog(), proxyConfig.getAccessLogMaxSize(), proxyConfig.getAccessLogFiles(), proxyConfig.getAccessLogBuffer(), controlPlane);
+    }
+
+
+    AccessLog(Path file, long maxFileSize, int maxFiles, int bufferSize, ControlPlane controlPlane)
+    {
+        this.controlPlane = controlPlane;
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        val capacity = (file != null) ? Integer.highestOneBit(Math.max(2, bufferSize - 1) << 1) : 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i)
+        {
+            sequences.set(i, i);
+        }
+
+        this.timestamps = new long[capacity];
+        this.methods = new HttpString[capacity];
+        this.paths = new String[capacity];
+        this.routes = new String[capacity];
+        this.backends = new InetSocketAddress[capacity];
+        this.statusCodes = new int[capacity];
+        this.bytesSent = new long[capacity];
+        this.connectNanos = new long[capacity];
+        this.totalNanos = new long[capacity];
+    }
+
+
+    public boolean isEnabled()
+    {
+        return file != null;
+    }
+
+
+    /**
+     * Open the log file and start draining, does nothing if no access log was specified.
+     *
+     * @throws IOException if the log file can't be opened
+     */
+    public void start() throws IOException
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        writer = new AccessLogWriter(file, maxFileSize, maxFiles);
+        controlPlane.scheduleWithFixedDelay("access log", this::drain, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Append a record without blocking, the record is dropped if the ring buffer is full.
+     * Route and backend may be null.
+     */
+    public void append(long timestamp, HttpString method, String path, String route, InetSocketAddress backend, int statusCode, long bytes, long connectNanos, long totalNanos)
+    {
+        for (;;)
+        {
+            val position = tail.get();
+            val index = (int) position & mask;
+            val sequence = sequences.get(index);
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    timestamps[index] = timestamp;
+                    methods[index] = method;
+                    paths[index] = path;
+                    routes[index] = route;
+                    backends[index] = backend;
+                    statusCodes[index] = statusCode;
+                    bytesSent[index] = bytes;
+                    this.connectNanos[index] = connectNanos;
+                    this.totalNanos[index] = totalNanos;
+
+                    // publish
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            }
+            else if (sequence < position)
+            {
+                // not drained yet, ring is full
+                dropped.increment();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Write all published records in one batch.
+     */
+    synchronized void drain()
+    {
+        if (writer == null)
+        {
+            return;
+        }
+
+        try
+        {
+            for (;;)
+            {
+                val index = (int) head & mask;
+                if (sequences.get(index) != head + 1)
+                {
+                    break;
+                }
+
+                format(index);
+                writer.append(line);
+
+                methods[index] = null;
+                paths[index] = null;
+                routes[index] = null;
+                backends[index] = null;
+                sequences.set(index, head + mask + 1);
+                ++head;
+            }
+
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            log.error("failed to write access log {}: {}", file, e.getMessage());
+        }
+    }
+
+
+    private void format(int index)
+    {
+        line.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(timestamps[index]), line);
+        line.append(' ').append((methods[index] != null) ? methods[index].toString() : NONE)
+                .append(' ').append((paths[index] != null) ? paths[index] : NONE)
+                .append(' ').append(statusCodes[index])
+                .append(' ').append(bytesSent[index])
+                .append(' ').append((routes[index] != null) ? routes[index] : NONE)
+                .append(' ');
+
+        val backend = backends[index];
+        if (backend != null)
+        {
+            line.append(backend.getHostString()).append(':').append(backend.getPort());
+        }
+        else
+        {
+            line.append(NONE);
+        }
+
+        // microseconds
+        line.append(' ').append(connectNanos[index] / 1000L)
+                .append(' ').append(totalNanos[index] / 1000L)
+                .append('\n');
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        if (writer != null)
+        {
+            drain();
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                log.error("failed to close access log {}: {}", file, e.getMessage());
+            }
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.log;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import lombok.val;
+import net.talpidae.viceroy.proxy.RoutingHandler;
+
+import java.net.InetSocketAddress;
+
+
+/**
+ * Records every exchange in the access log once it completes.
+ * <p>
+ * The proxy reports the backend it connected to through upstream(), the record is appended on completion.
+ */
+public class AccessLogHandler implements HttpHandler
+{
+    private static final AttachmentKey<Entry> ENTRY_KEY = AttachmentKey.create(Entry.class);
+
+    private final HttpHandler next;
+
+    private final AccessLog accessLog;
+
+
+    public AccessLogHandler(HttpHandler next, AccessLog accessLog)
+    {
+        this.next = next;
+        this.accessLog = accessLog;
+    }
+
+
+    /**
+     * Record the backend exchange is forwarded to and the time it took to connect, does nothing if logging is disabled.
+     */
+    public static void upstream(HttpServerExchange exchange, InetSocketAddress backend, long connectNanos)
+    {
+        val entry = exchange.getAttachment(ENTRY_KEY);
+        if (entry != null)
+        {
+            entry.backend = backend;
+            entry.connectNanos = connectNanos;
+        }
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        // the route that serves the request, a reload until completion must not change what is logged
+        val route = RoutingHandler.getRoute(exchange);
+        val entry = new Entry(System.nanoTime(), (route != null) ? route.getRoute() : null);
+        exchange.putAttachment(ENTRY_KEY, entry);
+        exchange.addExchangeCompleteListener(entry);
+
+        next.handleRequest(exchange);
+    }
+
+
+    private class Entry implements ExchangeCompletionListener
+    {
+        private final long startNanos;
+
+        private final String route;
+
+        private InetSocketAddress backend;
+
+        private long connectNanos;
+
+
+        private Entry(long startNanos, String route)
+        {
+            this.startNanos = startNanos;
+            this.route = route;
+        }
+
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+        {
+            try
+            {
+                accessLog.append(System.currentTimeMillis(),
+                        exchange.getRequestMethod(),
+                        exchange.getRequestPath(),
+                        route,
+                        backend,
+                        exchange.getStatusCode(),
+                        exchange.getResponseBytesSent(),
+                        connectNanos,
+                        System.nanoTime() - startNanos);
+            }
+            finally
+            {
+                nextListener.proceed();
+            }
+        }
+    }
+}
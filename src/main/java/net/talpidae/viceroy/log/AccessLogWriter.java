@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.log;
+
+import lombok.val;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Appends lines to a log file through a direct staging buffer, rotating the file once it exceeds maxFileSize.
+ * <p>
+ * Rotated files are renamed to FILE.1 (newest) up to FILE.maxFiles, older ones are deleted. Not thread-safe.
+ */
+final class AccessLogWriter implements Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private FileChannel channel;
+
+    private long size;
+
+
+    AccessLogWriter(Path file, long maxFileSize, int maxFiles) throws IOException
+    {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        open();
+    }
+
+
+    private void open() throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+
+    /**
+     * Append a line (including its line separator).
+     */
+    void append(CharSequence line) throws IOException
+    {
+        val chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow())
+        {
+            flush();
+        }
+        encoder.flush(buffer);
+    }
+
+
+    /**
+     * Write the staged lines to the file.
+     */
+    void flush() throws IOException
+    {
+        if (buffer.position() == 0)
+        {
+            return;
+        }
+
+        buffer.flip();
+        if (maxFileSize > 0 && size > 0 && size + buffer.remaining() > maxFileSize)
+        {
+            rotate();
+        }
+
+        while (buffer.hasRemaining())
+        {
+            size += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    private void rotate() throws IOException
+    {
+        channel.close();
+
+        if (maxFiles > 0)
+        {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; --i)
+            {
+                val source = rotated(i);
+                if (Files.exists(source))
+                {
+                    Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+        {
+            Files.deleteIfExists(file);
+        }
+
+        open();
+    }
+
+
+    private Path rotated(int index)
+    {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
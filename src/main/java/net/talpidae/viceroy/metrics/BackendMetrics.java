@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.metrics;
+
+import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
+import lombok.val;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Metrics of a single backend instance (TargetPool).
+ */
+public final class BackendMetrics extends ExchangeMetrics
+{
+    private static final AvailabilityType[] AVAILABILITY_TYPES = AvailabilityType.values();
+
+    private final AtomicLongArray availabilityTransitions = new AtomicLongArray(AVAILABILITY_TYPES.length);
+
+    /**
+     * Requests waiting for a connection to this backend.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicLong ejections = new AtomicLong();
+
+
+    public BackendMetrics(InetSocketAddress socketAddress)
+    {
+        super("viceroy.backend." + socketAddress.getHostString() + ":" + socketAddress.getPort() + ".");
+    }
+
+
+    /**
+     * Count a transition of the pool availability seen by an I/O thread, the caller tracks the state per thread.
+     */
+    public void availabilityChanged(AvailabilityType availability)
+    {
+        availabilityTransitions.incrementAndGet(availability.ordinal());
+    }
+
+
+    public void enqueued()
+    {
+        queueDepth.incrementAndGet();
+    }
+
+
+    public void dequeued()
+    {
+        queueDepth.decrementAndGet();
+    }
+
+
+    /**
+     * The backend has been ejected by outlier detection.
+     */
+    public void ejected()
+    {
+        ejections.incrementAndGet();
+    }
+
+
+    @Override
+    void flush(MetricsReporter reporter, long timestamp)
+    {
+        super.flush(reporter, timestamp);
+
+        reporter.emit(prefix + "queueDepth", timestamp, queueDepth.get());
+        reporter.emit(prefix + "ejections", timestamp, ejections.getAndSet(0L));
+        for (val availability : AVAILABILITY_TYPES)
+        {
+            reporter.emit(prefix + "availability." + availability.name(), timestamp, availabilityTransitions.getAndSet(availability.ordinal(), 0L));
+        }
+    }
+}
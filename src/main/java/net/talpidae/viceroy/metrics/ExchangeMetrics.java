@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.metrics;
+
+import lombok.val;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Request counters and latencies shared by route and backend metrics.
+ */
+public abstract class ExchangeMetrics
+{
+    private static final String[] STATUS_CLASSES = {"status.other", "status.1xx", "status.2xx", "status.3xx", "status.4xx", "status.5xx"};
+
+    protected final String prefix;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private final LongAdder connectFailures = new LongAdder();
+
+
+    protected ExchangeMetrics(String prefix)
+    {
+        this.prefix = prefix;
+        for (int i = 0; i < statusClasses.length; ++i)
+        {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+
+    private static int statusClassOf(int statusCode)
+    {
+        val statusClass = statusCode / 100;
+
+        return (statusClass >= 1 && statusClass <= 5) ? statusClass : 0;
+    }
+
+
+    public void connected(long connectNanos)
+    {
+        connectLatency.record(connectNanos);
+    }
+
+
+    public void connectFailed()
+    {
+        connectFailures.increment();
+    }
+
+
+    public void completed(int statusCode, long totalNanos)
+    {
+        requests.increment();
+        statusClasses[statusClassOf(statusCode)].increment();
+        totalLatency.record(totalNanos);
+    }
+
+
+    /**
+     * Emit all values accumulated since the last flush and reset them.
+     */
+    void flush(MetricsReporter reporter, long timestamp)
+    {
+        reporter.emit(prefix + "requests", timestamp, requests.sumThenReset());
+        for (int i = 0; i < statusClasses.length; ++i)
+        {
+            reporter.emit(prefix + STATUS_CLASSES[i], timestamp, statusClasses[i].sumThenReset());
+        }
+        reporter.emit(prefix + "connectFailures", timestamp, connectFailures.sumThenReset());
+
+        emitLatency(reporter, timestamp, "connectLatency.", connectLatency.snapshotAndReset());
+        emitLatency(reporter, timestamp, "latency.", totalLatency.snapshotAndReset());
+    }
+
+
+    private void emitLatency(MetricsReporter reporter, long timestamp, String name, LatencyHistogram.Snapshot snapshot)
+    {
+        if (snapshot.getCount() > 0)
+        {
+            reporter.emit(prefix + name + "p50", timestamp, snapshot.getValueAtPercentile(50.0));
+            reporter.emit(prefix + name + "p99", timestamp, snapshot.getValueAtPercentile(99.0));
+            reporter.emit(prefix + name + "p999", timestamp, snapshot.getValueAtPercentile(99.9));
+            reporter.emit(prefix + name + "max", timestamp, snapshot.getMaxValue());
+        }
+    }
+}
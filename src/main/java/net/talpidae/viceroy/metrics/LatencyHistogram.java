@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.metrics;
+
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free, allocation free log-linear histogram of latencies with microsecond resolution.
+ * <p>
+ * Every power of two range is split into four buckets, so reported percentiles are off by at most 25%.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKET_MASK = (1 << SUB_BUCKET_BITS) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+
+    private static int indexOf(long micros)
+    {
+        if (micros <= SUB_BUCKET_MASK)
+        {
+            return (int) Math.max(0L, micros);
+        }
+
+        val exponent = 63 - Long.numberOfLeadingZeros(micros);
+        val subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+
+    private static long upperBoundOf(int index)
+    {
+        if (index <= SUB_BUCKET_MASK)
+        {
+            return index;
+        }
+
+        val exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        val subBucket = index & SUB_BUCKET_MASK;
+
+        return ((long) ((1 << SUB_BUCKET_BITS) + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+
+    public void record(long nanos)
+    {
+        buckets.incrementAndGet(indexOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+
+    /**
+     * Move all recorded values into a snapshot and reset this histogram.
+     */
+    public Snapshot snapshotAndReset()
+    {
+        val counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            counts[i] = buckets.getAndSet(i, 0L);
+            total += counts[i];
+        }
+
+        return new Snapshot(counts, total);
+    }
+
+
+    public static final class Snapshot
+    {
+        private final long[] counts;
+
+        private final long total;
+
+
+        private Snapshot(long[] counts, long total)
+        {
+            this.counts = counts;
+            this.total = total;
+        }
+
+
+        public long getCount()
+        {
+            return total;
+        }
+
+
+        /**
+         * Get the (upper bound of the) value at percentile in microseconds.
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            val threshold = (long) Math.ceil(total * percentile / 100.0);
+            long cumulative = 0L;
+            for (int i = 0; i < counts.length; ++i)
+            {
+                cumulative += counts[i];
+                if (cumulative >= threshold && cumulative > 0)
+                {
+                    return upperBoundOf(i);
+                }
+            }
+
+            return 0L;
+        }
+
+
+        public long getMaxValue()
+        {
+            for (int i = counts.length - 1; i >= 0; --i)
+            {
+                if (counts[i] != 0)
+                {
+                    return upperBoundOf(i);
+                }
+            }
+
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.base.insect.metrics.MetricsSink;
+import net.talpidae.base.util.performance.Metric;
+import net.talpidae.viceroy.cache.ResponseCache;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.limit.ConcurrencyLimiters;
+import net.talpidae.viceroy.limit.RateLimiters;
+import net.talpidae.viceroy.log.AccessLog;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+import net.talpidae.viceroy.proxy.ServiceDirectory;
+import net.talpidae.viceroy.proxy.TargetPools;
+import net.talpidae.viceroy.stream.StreamBuffers;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Periodically flushes route and backend metrics to the MetricsSink.
+ */
+@Singleton
+@Slf4j
+public class MetricsReporter
+{
+    private final MetricsSink metricsSink;
+
+    private final ServiceDirectory directory;
+
+    private final TargetPools targetPools;
+
+    private final ControlPlane controlPlane;
+
+    private final ResponseCache responseCache;
+
+    private final ConcurrencyLimiters concurrencyLimiters;
+
+    private final RateLimiters rateLimiters;
+
+    private final StreamBuffers streamBuffers;
+
+    private final AccessLog accessLog;
+
+    private final long interval;
+
+
+    @Inject
+    public MetricsReporter(MetricsSink metricsSink, ServiceDirectory directory, TargetPools targetPools, ControlPlane controlPlane, ResponseCache responseCache, ConcurrencyLimiters concurrencyLimiters, RateLimiters rateLimiters, StreamBuffers streamBuffers, AccessLog accessLog, ProxyConfig proxyConfig)
+    {
+        this.metricsSink = metricsSink;
+        this.directory = directory;
+        this.targetPools = targetPools;
+        this.controlPlane = controlPlane;
+        this.responseCache = responseCache;
+        this.concurrencyLimiters = concurrencyLimiters;
+        this.rateLimiters = rateLimiters;
+        this.streamBuffers = streamBuffers;
+        this.accessLog = accessLog;
+        this.interval = proxyConfig.getMetricsInterval();
+    }
+
+
+    /**
+     * Start periodic flushing, does nothing if the flush interval is not positive.
+     */
+    public void start()
+    {
+        if (interval > 0)
+        {
+            controlPlane.scheduleWithFixedDelay("metrics flush", this::flush, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    void emit(String path, long timestamp, double value)
+    {
+        metricsSink.forward(Metric.builder().path(path).ts(timestamp).value(value).build());
+    }
+
+
+    private void flush()
+    {
+        val timestamp = System.currentTimeMillis();
+        for (val routeState : directory.getRouteStates())
+        {
+            routeState.getMetrics().flush(this, timestamp);
+        }
+
+        for (val pool : targetPools.getPools())
+        {
+            pool.getMetrics().flush(this, timestamp);
+        }
+
+        for (val limiter : concurrencyLimiters.getLimiters())
+        {
+            val prefix = "viceroy.limit." + limiter.getRoute() + ".";
+            emit(prefix + "limit", timestamp, limiter.getLimit());
+            emit(prefix + "inFlight", timestamp, limiter.getInFlight());
+            emit(prefix + "shed", timestamp, limiter.getShed().sumThenReset());
+        }
+
+        for (val budget : streamBuffers.getBudgets())
+        {
+            val prefix = "viceroy.stream." + budget.getRoute() + ".";
+            emit(prefix + "bytes", timestamp, budget.getReserved().get());
+            emit(prefix + "rejected", timestamp, budget.getRejected().sumThenReset());
+        }
+
+        emit("viceroy.rate.limited", timestamp, rateLimiters.getLimited().sumThenReset());
+        emit("viceroy.pools.live", timestamp, targetPools.getLivePoolCount());
+
+        if (accessLog.isEnabled())
+        {
+            emit("viceroy.accessLog.dropped", timestamp, accessLog.getDropped().sumThenReset());
+        }
+
+        if (responseCache.isEnabled())
+        {
+            emit("viceroy.cache.hits", timestamp, responseCache.getHits().sumThenReset());
+            emit("viceroy.cache.misses", timestamp, responseCache.getMisses().sumThenReset());
+            emit("viceroy.cache.revalidations", timestamp, responseCache.getRevalidations().sumThenReset());
+            emit("viceroy.cache.evictions", timestamp, responseCache.getEvictions().sumThenReset());
+            emit("viceroy.cache.bytes", timestamp, responseCache.getSize());
+        }
+    }
+}
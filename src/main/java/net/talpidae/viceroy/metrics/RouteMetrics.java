@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Metrics of a single route, across all of its backends.
+ */
+public final class RouteMetrics extends ExchangeMetrics
+{
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder unresolved = new LongAdder();
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private final LongAdder breakerOpenings = new LongAdder();
+
+    private final LongAdder breakerRejections = new LongAdder();
+
+
+    public RouteMetrics(String route)
+    {
+        super("viceroy.route." + route + ".");
+    }
+
+
+    public void retried()
+    {
+        retries.increment();
+    }
+
+
+    /**
+     * No backend could be found for a request (couldNotResolveBackend).
+     */
+    public void unresolved()
+    {
+        unresolved.increment();
+    }
+
+
+    public void hedged()
+    {
+        hedges.increment();
+    }
+
+
+    /**
+     * The response of a hedge arrived before the one of the original attempt.
+     */
+    public void hedgeWon()
+    {
+        hedgeWins.increment();
+    }
+
+
+    public void breakerOpened()
+    {
+        breakerOpenings.increment();
+    }
+
+
+    /**
+     * A request was answered with 503 because the circuit breaker of the route is open.
+     */
+    public void breakerRejected()
+    {
+        breakerRejections.increment();
+    }
+
+
+    @Override
+    void flush(MetricsReporter reporter, long timestamp)
+    {
+        super.flush(reporter, timestamp);
+
+        reporter.emit(prefix + "retries", timestamp, retries.sumThenReset());
+        reporter.emit(prefix + "unresolved", timestamp, unresolved.sumThenReset());
+        reporter.emit(prefix + "hedges", timestamp, hedges.sumThenReset());
+        reporter.emit(prefix + "hedgeWins", timestamp, hedgeWins.sumThenReset());
+        reporter.emit(prefix + "breakerOpenings", timestamp, breakerOpenings.sumThenReset());
+        reporter.emit(prefix + "breakerRejections", timestamp, breakerRejections.sumThenReset());
+    }
+}
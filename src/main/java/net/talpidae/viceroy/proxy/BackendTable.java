@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.base.insect.state.ServiceState;
+import net.talpidae.viceroy.proxy.balancer.HashRing;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Immutable set of backends of a route, rebuilt whenever discovery reports a membership change.
+ * <p>
+ * Only the consistent hash ring is derived lazily, on first use by an affinity route. Until then the table holds on
+ * to the ring of its predecessor to build from, after that only to its own.
+ */
+@Getter
+public final class BackendTable
+{
+    /**
+     * Incremented with every membership (or pool settings) change of the route.
+     */
+    private final long version;
+
+    private final Backend[] backends;
+
+    /**
+     * Route settings the pools were requested with.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final PoolSettings poolSettings;
+
+    /**
+     * Addresses of the backends, for membership comparison.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Set<InetSocketAddress> members;
+
+    /**
+     * Ring of the previous table to rebuild from incrementally, cleared once the ring of this table has been built.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile HashRing previousRing;
+
+    /**
+     * Consistent hash ring, built on first use by affinity routes only.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile HashRing ring;
+
+
+    BackendTable(long version, Backend[] backends)
+    {
+        this(version, backends, null, null);
+    }
+
+
+    private BackendTable(long version, Backend[] backends, PoolSettings poolSettings, HashRing previousRing)
+    {
+        this.version = version;
+        this.backends = backends;
+        this.poolSettings = poolSettings;
+        this.previousRing = previousRing;
+
+        this.members = new HashSet<>(backends.length * 2);
+        for (val backend : backends)
+        {
+            members.add(backend.getPool().getSocketAddress());
+        }
+    }
+
+
+    /**
+     * Build a new table for services, resolving their pools through targetPools (new pools use poolSettings).
+     * The latest hash ring of previous (may be null) is reused.
+     */
+    static BackendTable build(long version, List<? extends ServiceState> services, TargetPools targetPools, PoolSettings poolSettings, BackendTable previous)
+    {
+        val backends = new Backend[services.size()];
+        for (int i = 0; i < backends.length; ++i)
+        {
+            val serviceState = services.get(i);
+            backends[i] = new Backend(serviceState, targetPools.get(serviceState.getSocketAddress(), poolSettings));
+        }
+
+        return new BackendTable(version, backends, poolSettings, (previous != null) ? previous.getLatestRing() : null);
+    }
+
+
+    /**
+     * Ring of this table if built already, the ring this table would be built from otherwise (may be null).
+     */
+    private HashRing getLatestRing()
+    {
+        val ring = this.ring;
+
+        return (ring != null) ? ring : previousRing;
+    }
+
+
+    /**
+     * Get the consistent hash ring of this table, racing builders produce equal rings.
+     */
+    public HashRing getRing()
+    {
+        HashRing ring = this.ring;
+        if (ring == null)
+        {
+            // a racing builder may have cleared previousRing already, building from scratch yields the same ring
+            ring = HashRing.build(previousRing, backends);
+            this.ring = ring;
+            previousRing = null;
+        }
+
+        return ring;
+    }
+
+
+    public int size()
+    {
+        return backends.length;
+    }
+
+
+    public Backend get(int index)
+    {
+        return backends[index];
+    }
+
+
+    /**
+     * Check if services has exactly the same members as this table (in any order).
+     */
+    boolean hasSameMembers(List<? extends ServiceState> services)
+    {
+        if (services.size() != backends.length)
+        {
+            return false;
+        }
+
+        for (val serviceState : services)
+        {
+            if (!members.contains(serviceState.getSocketAddress()))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
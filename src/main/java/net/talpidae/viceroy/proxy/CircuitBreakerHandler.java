@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Answers requests with 503 Service Unavailable right away while the circuit breaker of their route is open.
+ * <p>
+ * This spares I/O threads the connect attempts and retries against a route that is down. Retry-After tells the
+ * client when the next probe is let through (in whole seconds, at least 1).
+ */
+public class CircuitBreakerHandler implements HttpHandler
+{
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HttpHandler next;
+
+    private final InsectProxyClient proxyClient;
+
+
+    public CircuitBreakerHandler(HttpHandler next, InsectProxyClient proxyClient)
+    {
+        this.next = next;
+        this.proxyClient = proxyClient;
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route != null)
+        {
+            val routeState = proxyClient.getDirectory().getRouteState(route);
+            val now = System.nanoTime();
+            val circuitBreaker = routeState.getCircuitBreaker();
+            if (!circuitBreaker.tryAcquire(now))
+            {
+                routeState.getMetrics().breakerRejected();
+
+                val remainingNanos = circuitBreaker.getRemainingNanos(now);
+                exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+                exchange.getResponseHeaders().put(Headers.RETRY_AFTER, Math.max(1L, (remainingNanos + SECOND_NANOS - 1) / SECOND_NANOS));
+                exchange.endExchange();
+                return;
+            }
+        }
+
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import net.talpidae.viceroy.metrics.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Hedging state of a single route: the hedge budget and the latency estimate used as hedge delay.
+ * <p>
+ * Every hedgeable request deposits ratio into the budget and every hedge withdraws one. The budget is capped,
+ * so hedges never exceed ratio times the request rate plus a small burst, no matter how slow backends get.
+ */
+final class HedgeState
+{
+    /**
+     * Budget units withdrawn per hedge, allows ratios down to 0.001.
+     */
+    private static final long UNIT = 1000L;
+
+    private static final long MAX_BUDGET = 10 * UNIT;
+
+    private static final long MIN_SAMPLES = 50;
+
+    private static final long ESTIMATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double PERCENTILE = 95.0;
+
+    private final AtomicLong budget = new AtomicLong();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final AtomicLong samples = new AtomicLong();
+
+    private final AtomicBoolean estimating = new AtomicBoolean();
+
+    private volatile long estimatedAt = System.nanoTime();
+
+    /**
+     * Estimated p95 response latency of the route, 0 until enough samples have been recorded.
+     */
+    private volatile long delayNanos;
+
+
+    void deposit(double ratio)
+    {
+        val amount = (long) (ratio * UNIT);
+        long current;
+        do
+        {
+            current = budget.get();
+            if (current >= MAX_BUDGET)
+            {
+                return;
+            }
+        }
+        while (!budget.compareAndSet(current, Math.min(MAX_BUDGET, current + amount)));
+    }
+
+
+    boolean tryWithdraw()
+    {
+        long current;
+        do
+        {
+            current = budget.get();
+            if (current < UNIT)
+            {
+                return false;
+            }
+        }
+        while (!budget.compareAndSet(current, current - UNIT));
+
+        return true;
+    }
+
+
+    /**
+     * Record the time until a backend responded, the estimate is updated at most once per interval.
+     * Attempts cancelled in favour of a faster one are recorded with the time they waited, a lower bound of their
+     * latency, so the estimate still leans somewhat low while hedges win.
+     */
+    void record(long latencyNanos, long now)
+    {
+        latencies.record(latencyNanos);
+        if (samples.incrementAndGet() >= MIN_SAMPLES
+                && now - estimatedAt > ESTIMATE_INTERVAL_NANOS
+                && estimating.compareAndSet(false, true))
+        {
+            try
+            {
+                val snapshot = latencies.snapshotAndReset();
+                samples.set(0L);
+                estimatedAt = now;
+                delayNanos = TimeUnit.MICROSECONDS.toNanos(snapshot.getValueAtPercentile(PERCENTILE));
+            }
+            finally
+            {
+                estimating.set(false);
+            }
+        }
+    }
+
+
+    long getDelayNanos()
+    {
+        return delayNanos;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.log.AccessLogHandler;
+import org.xnio.XnioExecutor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.xnio.IoUtils.safeClose;
+
+
+/**
+ * The backend attempts of a single hedged exchange.
+ * <p>
+ * The primary attempt is started immediately, the hedge once the delay of the route passed without a response and
+ * the hedge budget of the route allows it. The first response wins and is streamed to the client, the other attempt
+ * is cancelled: HTTP/1.1 connections are closed, HTTP/2 streams are reset. Failed attempts are replaced up to
+ * maxRetries times. All callbacks run on the I/O thread of the exchange, the connection pools are per I/O thread.
+ */
+final class HedgedRequest implements ExchangeCompletionListener
+{
+    private final HttpServerExchange exchange;
+
+    private final RouteMatch route;
+
+    private final RouteState routeState;
+
+    private final BackendTable table;
+
+    private final InsectProxyClient proxyClient;
+
+    private final HedgeState hedgeState;
+
+    private final String targetPath;
+
+    private final long startNanos = System.nanoTime();
+
+    private final List<Attempt> attempts = new ArrayList<>(2);
+
+    private Attempt winner;
+
+    private int live;
+
+    private int failures;
+
+    private boolean done;
+
+    private XnioExecutor.Key hedgeTimer;
+
+    private XnioExecutor.Key timeoutTimer;
+
+
+    HedgedRequest(HttpServerExchange exchange, RouteMatch route, RouteState routeState, BackendTable table, InsectProxyClient proxyClient)
+    {
+        this.exchange = exchange;
+        this.route = route;
+        this.routeState = routeState;
+        this.table = table;
+        this.proxyClient = proxyClient;
+        this.hedgeState = routeState.getHedgeState();
+        this.targetPath = ProxyExchanges.getTargetPath(exchange, route);
+    }
+
+
+    void start()
+    {
+        val config = proxyClient.getConfig();
+        val ioThread = exchange.getIoThread();
+
+        exchange.addExchangeCompleteListener(this);
+        hedgeState.deposit(config.getHedgeRatio());
+
+        val maxRequestTime = route.getPoolSettings().getMaxRequestTime();
+        if (maxRequestTime > 0)
+        {
+            timeoutTimer = ioThread.executeAfter(this::timeout, maxRequestTime, TimeUnit.MILLISECONDS);
+        }
+
+        if (!launch(false))
+        {
+            routeState.getMetrics().unresolved();
+            respond(StatusCodes.SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        val delayNanos = (route.getHedgeDelay() > 0) ? TimeUnit.MILLISECONDS.toNanos(route.getHedgeDelay()) : hedgeState.getDelayNanos();
+        if (delayNanos > 0 && winner == null && !done)
+        {
+            hedgeTimer = ioThread.executeAfter(this::hedge, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Start an attempt on a backend not tried before.
+     *
+     * @return false if there is no such backend
+     */
+    private boolean launch(boolean hedge)
+    {
+        val pool = proxyClient.selectBackend(route, table, exchange);
+        if (pool == null)
+        {
+            return false;
+        }
+
+        val attempt = new Attempt(pool, hedge);
+        attempts.add(attempt);
+        ++live;
+
+        val maxRequestTime = route.getPoolSettings().getMaxRequestTime();
+        val remainingMillis = (maxRequestTime > 0)
+                ? Math.max(1L, maxRequestTime - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+                : -1L;
+
+        pool.connect(route, exchange, attempt, remainingMillis, TimeUnit.MILLISECONDS, false);
+
+        return true;
+    }
+
+
+    private void hedge()
+    {
+        hedgeTimer = null;
+        if (winner == null && !done && hedgeState.tryWithdraw() && launch(true))
+        {
+            routeState.getMetrics().hedged();
+        }
+    }
+
+
+    private void timeout()
+    {
+        timeoutTimer = null;
+        if (winner == null && !done)
+        {
+            respond(StatusCodes.GATEWAY_TIME_OUT);
+        }
+    }
+
+
+    private void cancelTimers()
+    {
+        if (hedgeTimer != null)
+        {
+            hedgeTimer.remove();
+            hedgeTimer = null;
+        }
+
+        if (timeoutTimer != null)
+        {
+            timeoutTimer.remove();
+            timeoutTimer = null;
+        }
+    }
+
+
+    private void cancelOthers(Attempt keep)
+    {
+        for (val attempt : attempts)
+        {
+            if (attempt != keep)
+            {
+                attempt.cancel();
+            }
+        }
+    }
+
+
+    /**
+     * Finish the exchange without backend response.
+     */
+    private void respond(int statusCode)
+    {
+        done = true;
+        cancelTimers();
+        cancelOthers(null);
+
+        if (!exchange.isResponseStarted())
+        {
+            exchange.setStatusCode(statusCode);
+        }
+
+        exchange.endExchange();
+    }
+
+
+    private void onFailed(Attempt attempt)
+    {
+        if (!attempt.finish())
+        {
+            return;
+        }
+
+        attempt.pool.getStats().abandon();
+        if (done || winner != null || live > 0)
+        {
+            // the other attempt may still answer
+            return;
+        }
+
+        if (failures++ < route.getMaxRetries() && launch(false))
+        {
+            routeState.getMetrics().retried();
+            return;
+        }
+
+        respond(StatusCodes.SERVICE_UNAVAILABLE);
+    }
+
+
+    private void onResponse(Attempt attempt)
+    {
+        if (done || winner != null || attempt.finished)
+        {
+            attempt.cancel();
+            return;
+        }
+
+        winner = attempt;
+        cancelTimers();
+
+        // attempts still waiting have taken at least this long, leaving them out would bias the estimate low
+        val now = System.nanoTime();
+        for (val pending : attempts)
+        {
+            if (!pending.finished)
+            {
+                hedgeState.record(now - pending.beginNanos, now);
+            }
+        }
+
+        cancelOthers(attempt);
+        if (attempt.hedge)
+        {
+            routeState.getMetrics().hedgeWon();
+        }
+
+        AccessLogHandler.upstream(exchange, attempt.pool.getSocketAddress(), attempt.connectNanos);
+
+        ProxyExchanges.forwardResponse(attempt.clientExchange, exchange, exchange.getConnection().getByteBufferPool());
+    }
+
+
+    @Override
+    public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+    {
+        try
+        {
+            done = true;
+            cancelTimers();
+            cancelOthers(winner);
+
+            val now = System.nanoTime();
+            val statusCode = exchange.getStatusCode();
+            if (winner != null && winner.finish())
+            {
+                ProxyExchanges.completed(winner.pool, statusCode, now - winner.beginNanos, now);
+            }
+
+            routeState.getMetrics().completed(statusCode, now - startNanos);
+        }
+        finally
+        {
+            nextListener.proceed();
+        }
+    }
+
+
+    /**
+     * A single backend attempt, first receives the pooled connection and then the response.
+     */
+    private final class Attempt implements ProxyCallback<ProxyConnection>, ClientCallback<ClientExchange>
+    {
+        private final TargetPool pool;
+
+        private final boolean hedge;
+
+        private final long beginNanos = System.nanoTime();
+
+        private ClientConnection connection;
+
+        private long connectNanos;
+
+        private ClientExchange clientExchange;
+
+        /**
+         * Failed, cancelled or accounted as winner.
+         */
+        private boolean finished;
+
+
+        private Attempt(TargetPool pool, boolean hedge)
+        {
+            this.pool = pool;
+            this.hedge = hedge;
+            pool.getStats().begin();
+        }
+
+
+        /**
+         * Mark this attempt finished.
+         *
+         * @return false if it was finished already
+         */
+        private boolean finish()
+        {
+            if (finished)
+            {
+                return false;
+            }
+
+            finished = true;
+            --live;
+
+            return true;
+        }
+
+
+        private void cancel()
+        {
+            if (finish())
+            {
+                pool.getStats().abandon();
+            }
+
+            if (clientExchange != null && clientExchange.getResponse() != null)
+            {
+                // resets HTTP/2 streams, HTTP/1.1 connections are closed if the body wasn't read completely
+                safeClose(clientExchange.getResponseChannel());
+            }
+            else if (clientExchange != null && !connection.isMultiplexingSupported())
+            {
+                // request in flight, the only way to cancel it
+                safeClose(connection);
+            }
+
+            // HTTP/2 streams without response yet are reset once the response arrives,
+            // connections still being acquired are returned to the pool unused
+        }
+
+
+        @Override
+        public void completed(HttpServerExchange exchange, ProxyConnection result)
+        {
+            connection = result.getConnection();
+            if (exchange.isComplete())
+            {
+                // the pool returns exclusive connections on exchange completion, which already happened
+                if (!connection.isMultiplexingSupported())
+                {
+                    safeClose(connection);
+                }
+
+                return;
+            }
+
+            if (finished)
+            {
+                return;
+            }
+
+            connectNanos = System.nanoTime() - beginNanos;
+            pool.getMetrics().connected(connectNanos);
+            routeState.connected(connectNanos);
+            pool.openStream(exchange, result);
+
+            connection.sendRequest(ProxyExchanges.createRequest(exchange, targetPath), new ClientCallback<ClientExchange>()
+            {
+                @Override
+                public void completed(ClientExchange result)
+                {
+                    clientExchange = result;
+                    result.setResponseListener(Attempt.this);
+                }
+
+
+                @Override
+                public void failed(IOException e)
+                {
+                    Attempt.this.failed(e);
+                }
+            });
+        }
+
+
+        @Override
+        public void failed(HttpServerExchange exchange)
+        {
+            pool.getMetrics().connectFailed();
+            routeState.connectFailed(System.nanoTime());
+            ProxyExchanges.failed(pool);
+
+            onFailed(this);
+        }
+
+
+        @Override
+        public void queuedRequestFailed(HttpServerExchange exchange)
+        {
+            onFailed(this);
+        }
+
+
+        @Override
+        public void couldNotResolveBackend(HttpServerExchange exchange)
+        {
+            onFailed(this);
+        }
+
+
+        @Override
+        public void completed(ClientExchange result)
+        {
+            onResponse(this);
+        }
+
+
+        @Override
+        public void failed(IOException e)
+        {
+            safeClose(connection);
+            ProxyExchanges.failed(pool);
+
+            onFailed(this);
+        }
+    }
+}
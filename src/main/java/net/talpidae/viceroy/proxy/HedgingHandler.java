@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.SameThreadExecutor;
+import lombok.val;
+
+
+/**
+ * Races a second copy of idempotent requests against another backend if the first one is slow to respond.
+ * <p>
+ * Applies to GET and HEAD requests without body on routes with a hedge delay and at least two backends.
+ * Other requests are passed on to next unchanged.
+ */
+public class HedgingHandler implements HttpHandler
+{
+    private final HttpHandler next;
+
+    private final InsectProxyClient proxyClient;
+
+
+    public HedgingHandler(HttpHandler next, InsectProxyClient proxyClient)
+    {
+        this.next = next;
+        this.proxyClient = proxyClient;
+    }
+
+
+    private static boolean isHedgeable(HttpServerExchange exchange)
+    {
+        val method = exchange.getRequestMethod();
+        val requestHeaders = exchange.getRequestHeaders();
+
+        return (Methods.GET.equals(method) || Methods.HEAD.equals(method))
+                && exchange.getRequestContentLength() <= 0
+                && !requestHeaders.contains(Headers.TRANSFER_ENCODING)
+                && !requestHeaders.contains(Headers.UPGRADE);
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route != null && route.getHedgeDelay() != 0 && isHedgeable(exchange))
+        {
+            val directory = proxyClient.getDirectory();
+            val routeState = directory.getRouteState(route);
+            val table = directory.lookup(routeState);
+            if (table != null && table.size() > 1)
+            {
+                val request = new HedgedRequest(exchange, route, routeState, table, proxyClient);
+                exchange.dispatch(SameThreadExecutor.INSTANCE, request::start);
+                return;
+            }
+        }
+
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.UndertowLogger;
+import io.undertow.client.ClientConnection;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.log.AccessLogHandler;
+import org.xnio.XnioExecutor;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.xnio.IoUtils.safeClose;
+
+
+/**
+ * Per exchange bookkeeping of the backend attempt in progress.
+ * <p>
+ * Keeps load balancer counters and metrics of route and backend up to date. Allocated once per exchange and
+ * reused across retries, it also serves as the ProxyCallback for connection attempts to avoid another wrapper.
+ * Enforces the maxRequestTime of the route (as a Runnable for the timer), ProxyHandler only knows a global one.
+ */
+final class InFlightRequest implements ExchangeCompletionListener, ProxyCallback<ProxyConnection>, Runnable
+{
+    private static final AttachmentKey<InFlightRequest> IN_FLIGHT_KEY = AttachmentKey.create(InFlightRequest.class);
+
+    private final HttpServerExchange exchange;
+
+    private final RouteState routeState;
+
+    private final long startNanos = System.nanoTime();
+
+    private ProxyCallback<ProxyConnection> callback;
+
+    private TargetPool pool;
+
+    private long attemptNanos;
+
+    private boolean connecting;
+
+    private ClientConnection connection;
+
+    private XnioExecutor.Key timeoutKey;
+
+
+    private InFlightRequest(HttpServerExchange exchange, RouteState routeState)
+    {
+        this.exchange = exchange;
+        this.routeState = routeState;
+    }
+
+
+    /**
+     * Account an attempt to forward exchange to pool, a previous attempt is considered failed.
+     * The first attempt starts the maxRequestTime (milliseconds, 0 for no limit) timer.
+     *
+     * @return The callback to pass to the connection pool.
+     */
+    static InFlightRequest begin(HttpServerExchange exchange, RouteState routeState, TargetPool pool, ProxyCallback<ProxyConnection> callback, long maxRequestTime)
+    {
+        InFlightRequest request = exchange.getAttachment(IN_FLIGHT_KEY);
+        if (request == null)
+        {
+            request = new InFlightRequest(exchange, routeState);
+            exchange.putAttachment(IN_FLIGHT_KEY, request);
+            exchange.addExchangeCompleteListener(request);
+            if (maxRequestTime > 0)
+            {
+                request.timeoutKey = exchange.getIoThread().executeAfter(request, maxRequestTime, TimeUnit.MILLISECONDS);
+            }
+        }
+        else if (request.pool != null)
+        {
+            // retry, the previous backend failed
+            request.endConnecting();
+            request.pool.getStats().abandon();
+            routeState.getMetrics().retried();
+        }
+
+        pool.getStats().begin();
+        request.pool = pool;
+        request.callback = callback;
+        request.attemptNanos = System.nanoTime();
+        request.connecting = true;
+        pool.getMetrics().enqueued();
+
+        return request;
+    }
+
+
+    private void endConnecting()
+    {
+        if (connecting)
+        {
+            connecting = false;
+            pool.getMetrics().dequeued();
+        }
+    }
+
+
+    @Override
+    public void completed(HttpServerExchange exchange, ProxyConnection result)
+    {
+        endConnecting();
+
+        val connectNanos = System.nanoTime() - attemptNanos;
+        pool.getMetrics().connected(connectNanos);
+        routeState.connected(connectNanos);
+        pool.openStream(exchange, result);
+        connection = result.getConnection();
+        AccessLogHandler.upstream(exchange, pool.getSocketAddress(), connectNanos);
+
+        callback.completed(exchange, result);
+    }
+
+
+    @Override
+    public void failed(HttpServerExchange exchange)
+    {
+        endConnecting();
+        pool.getMetrics().connectFailed();
+        routeState.connectFailed(System.nanoTime());
+        ProxyExchanges.failed(pool);
+
+        callback.failed(exchange);
+    }
+
+
+    @Override
+    public void queuedRequestFailed(HttpServerExchange exchange)
+    {
+        endConnecting();
+
+        callback.queuedRequestFailed(exchange);
+    }
+
+
+    @Override
+    public void couldNotResolveBackend(HttpServerExchange exchange)
+    {
+        endConnecting();
+
+        callback.couldNotResolveBackend(exchange);
+    }
+
+
+    /**
+     * Request timed out, abort the backend request like ProxyHandler does.
+     */
+    @Override
+    public void run()
+    {
+        timeoutKey = null;
+        UndertowLogger.PROXY_REQUEST_LOGGER.timingOutRequest(exchange.getRequestURI());
+        if (connection != null)
+        {
+            safeClose(connection);
+        }
+
+        if (exchange.isResponseStarted())
+        {
+            safeClose(exchange.getConnection());
+        }
+        else
+        {
+            exchange.setStatusCode(StatusCodes.GATEWAY_TIME_OUT);
+            exchange.endExchange();
+        }
+    }
+
+
+    @Override
+    public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+    {
+        try
+        {
+            if (timeoutKey != null)
+            {
+                timeoutKey.remove();
+                timeoutKey = null;
+            }
+
+            if (pool != null)
+            {
+                endConnecting();
+
+                val now = System.nanoTime();
+                val statusCode = exchange.getStatusCode();
+                ProxyExchanges.completed(pool, statusCode, now - attemptNanos, now);
+                routeState.getMetrics().completed(statusCode, now - startNanos);
+                pool = null;
+            }
+        }
+        finally
+        {
+            nextListener.proceed();
+        }
+    }
+}
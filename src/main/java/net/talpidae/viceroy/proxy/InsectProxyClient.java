@@ -18,34 +18,23 @@
 package net.talpidae.viceroy.proxy;
 
 import io.undertow.UndertowLogger;
-import io.undertow.UndertowOptions;
-import io.undertow.client.UndertowClient;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.ServerConnection;
-import io.undertow.server.handlers.proxy.ConnectionPoolErrorHandler;
-import io.undertow.server.handlers.proxy.ConnectionPoolManager;
 import io.undertow.server.handlers.proxy.ExclusivityChecker;
 import io.undertow.server.handlers.proxy.ProxyCallback;
 import io.undertow.server.handlers.proxy.ProxyClient;
 import io.undertow.server.handlers.proxy.ProxyConnection;
-import io.undertow.server.handlers.proxy.ProxyConnectionPool;
 import io.undertow.util.AttachmentKey;
 import io.undertow.util.AttachmentList;
 import io.undertow.util.Headers;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.val;
-import net.talpidae.base.insect.Slave;
-import net.talpidae.base.insect.state.ServiceState;
-import net.talpidae.base.util.random.AtomicXorShiftRandom;
-import org.xnio.OptionMap;
+import net.talpidae.viceroy.proxy.balancer.AffinityKey;
+import net.talpidae.viceroy.proxy.balancer.CheapRandom;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.net.InetSocketAddress;
-import java.net.URI;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.AVAILABLE;
@@ -61,7 +50,7 @@ import static org.xnio.IoUtils.safeClose;
 @Singleton
 public class InsectProxyClient implements ProxyClient
 {
-    private static final AttachmentKey<AttachmentList<InetSocketAddress>> TRIED_SERVICES_KEY = AttachmentKey.createList(InetSocketAddress.class);
+    private static final AttachmentKey<AttachmentList<TargetPool>> TRIED_SERVICES_KEY = AttachmentKey.createList(TargetPool.class);
 
     // we set upgraded HTTP(S) connections aside
     private static final ExclusivityChecker EXCLUSIVITY_CHECKER = exchange -> exchange.getRequestHeaders().contains(Headers.UPGRADE);
@@ -69,125 +58,184 @@ public class InsectProxyClient implements ProxyClient
     // associates a ProxyConnection with the HttpServerExchange
     private final AttachmentKey<ConnectionHolder> connectionKey = AttachmentKey.create(ConnectionHolder.class);
 
-    private static final AtomicXorShiftRandom CHEAP_RANDOM = new AtomicXorShiftRandom();
-
-    private static final OptionMap DEFAULT_HTTP2_BACKEND_OPTIONS = OptionMap.builder()
-            .set(UndertowOptions.BUFFER_PIPELINED_DATA, true)
-            .set(UndertowOptions.ENABLE_HTTP2, true)
-            .set(UndertowOptions.HTTP2_SETTINGS_ENABLE_PUSH, false)
-            .getMap();
-
     @Getter
-    private final Slave slave;
+    private final ServiceDirectory directory;
 
     @Getter
     private final ProxyConfig config;
 
-    private final UndertowClient client = UndertowClient.getInstance();
-
-    private final ConcurrentHashMap<InetSocketAddress, TargetPool> serviceToState = new ConcurrentHashMap<>();
-
 
     @Inject
-    public InsectProxyClient(Slave slave, ProxyConfig proxyConfig)
+    public InsectProxyClient(ServiceDirectory directory, ProxyConfig proxyConfig)
     {
-        this.slave = slave;
+        this.directory = directory;
         this.config = proxyConfig;
     }
 
-    private static String stripPrefix(String s, String prefix)
+    /**
+     * Get the route of exchange resolved by RoutingHandler. ProxyHandler calls this once per exchange (unlike
+     * getConnection which is called again for retries), so this is where the backend path is derived from the
+     * matched prefix.
+     */
+    @Override
+    public ProxyTarget findTarget(HttpServerExchange exchange)
     {
-        if (s.startsWith(prefix))
+        val routeMatch = RoutingHandler.getRoute(exchange);
+        if (routeMatch != null)
         {
-            val stripped = s.substring(prefix.length());
-
-            return (prefix.endsWith("/")) ? "/" + stripped : stripped;
+            ProxyExchanges.stripPrefix(exchange, routeMatch);
         }
 
-        return s;
+        return routeMatch;
     }
 
+
     @Override
-    public ProxyTarget findTarget(HttpServerExchange exchange)
+    public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit)
     {
-        return config.findRouteByPathPrefix(exchange.getRelativePath());
+        val routeMatch = (RouteMatch) target;
+        val connectionHolder = exchange.getConnection().getAttachment(connectionKey);
+        if (connectionHolder != null
+                && connectionHolder.route.equals(routeMatch.getRoute())
+                && connectionHolder.connection.getConnection().isOpen())
+        {
+            // we already got a connection on the correct route, use it
+            callback.completed(exchange, connectionHolder.connection);
+            return;
+        }
+
+        val routeState = directory.getRouteState(routeMatch);
+        val table = directory.lookup(routeState);
+        if (table != null)
+        {
+            connect(routeMatch, routeState, table, connectionHolder, exchange, callback, timeout, timeUnit);
+            return;
+        }
+
+        // route not resolved yet, park the exchange instead of blocking the I/O thread
+        directory.await(routeState, () -> exchange.getIoThread().execute(() ->
+                connect(routeMatch, routeState, routeState.getTable(), connectionHolder, exchange, callback, timeout, timeUnit)));
     }
 
 
-    @Override
-    public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit)
+    private void connect(RouteMatch routeMatch,
+                         RouteState routeState,
+                         BackendTable table,
+                         ConnectionHolder connectionHolder,
+                         HttpServerExchange exchange,
+                         ProxyCallback<ProxyConnection> callback,
+                         long timeout,
+                         TimeUnit timeUnit)
     {
-        val routeMatch = (RouteMatch) target;
-        try
+        val selectedService = (table != null) ? chooseService(routeMatch, table, exchange, config.getMaxEjectionPercent()) : null;
+        if (selectedService != null)
         {
-            val connectionHolder = exchange.getConnection().getAttachment(connectionKey);
-            if (connectionHolder != null
-                    && connectionHolder.route.equals(routeMatch.getRoute())
-                    && connectionHolder.connection.getConnection().isOpen())
+            exchange.addToAttachmentList(TRIED_SERVICES_KEY, selectedService);
+            selectedService.markUsed();
+            val inFlightRequest = InFlightRequest.begin(exchange, routeState, selectedService, callback, routeMatch.getPoolSettings().getMaxRequestTime());
+
+            if (connectionHolder != null || EXCLUSIVITY_CHECKER.isExclusivityRequired(exchange))
             {
-                // we already got a connection on the correct route, use it
-                callback.completed(exchange, connectionHolder.connection);
-                return;
+                val proxyCallbackWrapper = new ConnectionProxyCallbackWrapper(selectedService, connectionHolder, inFlightRequest, routeMatch.getRoute());
+                selectedService.connect(routeMatch, exchange, proxyCallbackWrapper, timeout, timeUnit, true);
             }
-
-            val services = slave.findServices(routeMatch.getRoute(), timeUnit.toMillis(timeout));
-            val selectedService = chooseService(services, exchange);
-            if (selectedService != null)
+            else
             {
-                exchange.addToAttachmentList(TRIED_SERVICES_KEY, selectedService.getSocketAddress());
+                selectedService.connect(routeMatch, exchange, inFlightRequest, timeout, timeUnit, false);
+            }
+
+            // successfully forwarded connection
+            return;
+        }
 
-                // rewrite exchange path (remove prefix)
-                exchange.setRequestURI(stripPrefix(exchange.getRequestURI(), routeMatch.getPrefix()));
+        routeState.getMetrics().unresolved();
+        callback.couldNotResolveBackend(exchange);
+    }
 
-                val connectionPool = selectedService.getConnectionPool();
-                if (connectionHolder != null || EXCLUSIVITY_CHECKER.isExclusivityRequired(exchange))
-                {
-                    val proxyCallbackWrapper = new ConnectionProxyCallbackWrapper(selectedService, connectionHolder, callback, routeMatch.getRoute());
-                    connectionPool.connect(target, exchange, proxyCallbackWrapper, timeout, timeUnit, true);
-                }
-                else
-                {
-                    connectionPool.connect(target, exchange, callback, timeout, timeUnit, false);
-                }
 
-                // successfully forwarded connection
-                return;
-            }
-        }
-        catch (InterruptedException e)
+    /**
+     * Select a backend for an additional attempt on exchange, backends tried before are skipped.
+     */
+    TargetPool selectBackend(RouteMatch routeMatch, BackendTable table, HttpServerExchange exchange)
+    {
+        val selected = chooseService(routeMatch, table, exchange, config.getMaxEjectionPercent());
+        if (selected != null)
         {
-            Thread.currentThread().interrupt();
+            exchange.addToAttachmentList(TRIED_SERVICES_KEY, selected);
+            selected.markUsed();
         }
 
-        callback.couldNotResolveBackend(exchange);
+        return selected;
     }
 
 
-    private TargetPool chooseService(List<? extends ServiceState> services, HttpServerExchange exchange)
+    /**
+     * Select a backend, preferring the choice of the load balancer of the route. If more than maxEjectionPercent of
+     * the backends are ejected and no other one can take the request, an ejected backend is tried (panic mode).
+     */
+    static TargetPool chooseService(RouteMatch routeMatch, BackendTable table, HttpServerExchange exchange, int maxEjectionPercent)
     {
-        TargetPool candidateFull = null;   // host reached connection limit, still possible
-        TargetPool candidateIssues = null; // host got issues before, may be usable now
-
         val attemptedServices = exchange.getAttachment(TRIED_SERVICES_KEY);
-        val size = services.size();
+        val affinity = routeMatch.getAffinity();
+        if (affinity != null)
+        {
+            // pinned backend or its successors on the ring, the load balancer only picks keyless requests
+            val keyHash = affinity.hash(exchange);
+            if (keyHash != AffinityKey.NO_KEY)
+            {
+                val pinned = table.getRing().select(keyHash, attemptedServices);
+                if (pinned != null)
+                {
+                    return pinned;
+                }
+            }
+        }
+
+        val backends = table.getBackends();
+        val selected = routeMatch.getLoadBalancer().select(backends, attemptedServices);
+        if (selected != null)
+        {
+            return selected;
+        }
+
+        TargetPool candidateFull = null;    // host reached connection limit, still possible
+        TargetPool candidateWarming = null; // host is warming up or in slow-start, but can take requests
+        TargetPool candidateIssues = null;  // host got issues before, may be usable now
+        TargetPool candidateEjected = null; // host is ejected, only used if too many are
+        int ejected = 0;
+
+        val size = backends.length;
         if (size > 0)
         {
-            val startIndex = CHEAP_RANDOM.nextInt(size);
+            val startIndex = CheapRandom.nextInt(size);
             for (int i = 0; i < size; ++i)
             {
-                val serviceState = services.get((startIndex + i) % size);
-                if (attemptedServices == null || !attemptedServices.contains(serviceState.getSocketAddress()))
+                int index = startIndex + i;
+                if (index >= size)
+                {
+                    index -= size;
+                }
+
+                val service = backends[index].getPool();
+                if (service.getHealth().isEjected())
                 {
-                    val service = getTargetPool(serviceState.getSocketAddress());
-                    val availability = service.getConnectionPool().available();
-                    if (availability == AVAILABLE)
+                    ++ejected;
+                    if (candidateEjected == null && (attemptedServices == null || !attemptedServices.contains(service)))
                     {
-                        return service;
+                        candidateEjected = service;
                     }
-                    else if (candidateFull == null && availability == FULL)
+                }
+                else if (attemptedServices == null || !attemptedServices.contains(service))
+                {
+                    val availability = service.available();
+                    if (candidateFull == null && availability == FULL)
                     {
                         candidateFull = service;
                     }
+                    else if (candidateWarming == null && availability == AVAILABLE)
+                    {
+                        candidateWarming = service;
+                    }
                     else if (candidateIssues == null && (availability == PROBLEM || availability == FULL_QUEUE))
                     {
                         candidateIssues = service;
@@ -196,13 +244,22 @@ public class InsectProxyClient implements ProxyClient
             }
         }
 
-        return (candidateFull != null) ? candidateFull : candidateIssues;
-    }
+        if (candidateFull != null)
+        {
+            return candidateFull;
+        }
 
+        if (candidateWarming != null)
+        {
+            return candidateWarming;
+        }
 
-    private TargetPool getTargetPool(InetSocketAddress targetServiceAddress)
-    {
-        return serviceToState.computeIfAbsent(targetServiceAddress, TargetPool::new);
+        if (candidateIssues != null)
+        {
+            return candidateIssues;
+        }
+
+        return (ejected * 100 > size * maxEjectionPercent) ? candidateEjected : null;
     }
 
 
@@ -226,63 +283,6 @@ public class InsectProxyClient implements ProxyClient
     }
 
 
-    @Getter
-    private class TargetPool extends ConnectionPoolErrorHandler.SimpleConnectionPoolErrorHandler implements ConnectionPoolManager
-    {
-        private final InetSocketAddress socketAddress;
-
-        private final ProxyConnectionPool connectionPool;
-
-
-        private TargetPool(InetSocketAddress socketAddress)
-        {
-            this.socketAddress = socketAddress;
-
-            val uri = URI.create("http://" + socketAddress.getHostString() + ":" + socketAddress.getPort());
-            val optionMap = OptionMap.builder().addAll(DEFAULT_HTTP2_BACKEND_OPTIONS)
-                    .getMap();
-
-            this.connectionPool = new ProxyConnectionPool(this, uri, client, optionMap);
-        }
-
-        @Override
-        public int getProblemServerRetry()
-        {
-            return config.getProblemServerRetry();
-        }
-
-        @Override
-        public int getMaxConnections()
-        {
-            return config.getMaxConnections();
-        }
-
-        @Override
-        public int getMaxCachedConnections()
-        {
-            return config.getMaxCachedConnections();
-        }
-
-        @Override
-        public int getSMaxConnections()
-        {
-            return config.getSMaxConnections();
-        }
-
-        @Override
-        public long getTtl()
-        {
-            return config.getTtl();
-        }
-
-        @Override
-        public int getMaxQueueSize()
-        {
-            return config.getMaxQueueSize();
-        }
-    }
-
-
     @AllArgsConstructor
     private class ConnectionProxyCallbackWrapper implements ProxyCallback<ProxyConnection>
     {
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.val;
+import org.xnio.XnioIoThread;
+
+import java.util.ArrayList;
+
+import static org.xnio.IoUtils.safeClose;
+
+
+/**
+ * Multiplexed (HTTP/2) connections of a backend on one I/O thread and the number of streams active on each.
+ * <p>
+ * Connections handed out by the ProxyConnectionPool are tracked once they turn out to be multiplexed, additional
+ * connections opened by the TargetPool itself (on demand or to keep a minimum idle) are owned and closed once they
+ * are no longer needed. Also holds the availability of the backend last observed on the thread, availability is
+ * per I/O thread.
+ * Only accessed from the owning I/O thread.
+ */
+final class MultiplexedConnections
+{
+    @Getter
+    private final XnioIoThread ioThread;
+
+    private final ArrayList<Entry> entries = new ArrayList<>();
+
+    private boolean opening;
+
+    /**
+     * An idle connection opened in advance turned out not to be multiplexed, no further ones are opened.
+     */
+    private boolean multiplexingUnsupported;
+
+    /**
+     * All connections have been closed, idle connections still being opened are closed right away.
+     */
+    private boolean closed;
+
+    @Getter
+    @Setter
+    private AvailabilityType lastAvailability = AvailabilityType.AVAILABLE;
+
+
+    MultiplexedConnections(XnioIoThread ioThread)
+    {
+        this.ioThread = ioThread;
+    }
+
+
+    private int indexOf(ProxyConnection connection)
+    {
+        for (int i = 0; i < entries.size(); ++i)
+        {
+            if (entries.get(i).connection == connection)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    boolean contains(ProxyConnection connection)
+    {
+        return indexOf(connection) >= 0;
+    }
+
+
+    /**
+     * Get the least loaded open connection with less than maxStreams active streams.
+     *
+     * @return The connection or null, if all are busy.
+     */
+    ProxyConnection select(int maxStreams)
+    {
+        Entry leastLoaded = null;
+        for (int i = entries.size() - 1; i >= 0; --i)
+        {
+            val entry = entries.get(i);
+            if (!entry.connection.getConnection().isOpen())
+            {
+                entries.remove(i);
+            }
+            else if (entry.streams < maxStreams && entry.connection.getConnection().isMultiplexingSupported()
+                    && (leastLoaded == null || entry.streams < leastLoaded.streams))
+            {
+                leastLoaded = entry;
+            }
+        }
+
+        return (leastLoaded != null) ? leastLoaded.connection : null;
+    }
+
+
+    /**
+     * Get the number of open connections without active streams.
+     */
+    int countIdle()
+    {
+        int idle = 0;
+        for (int i = 0; i < entries.size(); ++i)
+        {
+            val entry = entries.get(i);
+            if (entry.streams <= 0 && entry.connection.getConnection().isOpen())
+            {
+                ++idle;
+            }
+        }
+
+        return idle;
+    }
+
+
+    /**
+     * Check if all of at least maxConnections connections carry maxStreams streams.
+     */
+    boolean isSaturated(int maxConnections, int maxStreams)
+    {
+        if (opening || entries.size() < maxConnections)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < entries.size(); ++i)
+        {
+            if (entries.get(i).streams < maxStreams)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Try to claim opening another connection, only one is opened at a time and only while below maxConnections.
+     */
+    boolean tryBeginOpen(int maxConnections)
+    {
+        if (opening || entries.isEmpty() || entries.size() >= maxConnections)
+        {
+            return false;
+        }
+
+        opening = true;
+
+        return true;
+    }
+
+
+    /**
+     * Try to claim opening an idle connection in advance, while less than minIdle connections are idle and less than
+     * maxConnections are open. Only one connection is opened at a time.
+     */
+    boolean tryBeginOpenIdle(int minIdle, int maxConnections)
+    {
+        if (opening || closed || multiplexingUnsupported)
+        {
+            return false;
+        }
+
+        for (int i = entries.size() - 1; i >= 0; --i)
+        {
+            if (!entries.get(i).connection.getConnection().isOpen())
+            {
+                entries.remove(i);
+            }
+        }
+
+        if (entries.size() >= maxConnections || countIdle() >= Math.min(minIdle, maxConnections))
+        {
+            return false;
+        }
+
+        opening = true;
+
+        return true;
+    }
+
+
+    /**
+     * Finish opening an idle connection, connection is null if opening failed. Connections that are not multiplexed
+     * (or opened after closeAll()) are closed.
+     *
+     * @return true if the connection was kept
+     */
+    boolean endOpenIdle(ProxyConnection connection)
+    {
+        opening = false;
+        if (connection == null)
+        {
+            return false;
+        }
+
+        if (closed)
+        {
+            safeClose(connection.getConnection());
+            return false;
+        }
+
+        if (!connection.getConnection().isMultiplexingSupported())
+        {
+            multiplexingUnsupported = true;
+            safeClose(connection.getConnection());
+            return false;
+        }
+
+        entries.add(new Entry(connection, true));
+
+        return true;
+    }
+
+
+    /**
+     * Finish opening a connection, connection is null if opening failed.
+     */
+    void endOpen(ProxyConnection connection)
+    {
+        opening = false;
+        if (connection != null)
+        {
+            entries.add(new Entry(connection, true));
+        }
+    }
+
+
+    /**
+     * Account a stream started on connection.
+     */
+    void begin(ProxyConnection connection)
+    {
+        val index = indexOf(connection);
+        if (index >= 0)
+        {
+            ++entries.get(index).streams;
+        }
+        else
+        {
+            val entry = new Entry(connection, false);
+            entry.streams = 1;
+            entries.add(entry);
+        }
+    }
+
+
+    /**
+     * Account a stream ended on connection, owned connections are closed once they turn out not to be multiplexed
+     * or if they became idle while others remain and more than minIdle are idle.
+     */
+    void end(ProxyConnection connection, int minIdle)
+    {
+        val index = indexOf(connection);
+        if (index < 0)
+        {
+            return;
+        }
+
+        val entry = entries.get(index);
+        --entry.streams;
+        if (entry.owned && (!connection.getConnection().isMultiplexingSupported() || (entry.streams <= 0 && entries.size() > 1 && countIdle() > minIdle)))
+        {
+            entries.remove(index);
+            safeClose(connection.getConnection());
+        }
+    }
+
+
+    /**
+     * Close all owned connections and forget the others (which belong to the ProxyConnectionPool).
+     */
+    void closeAll()
+    {
+        closed = true;
+        for (val entry : entries)
+        {
+            if (entry.owned)
+            {
+                safeClose(entry.connection.getConnection());
+            }
+        }
+
+        entries.clear();
+    }
+
+
+    private static final class Entry
+    {
+        private final ProxyConnection connection;
+
+        private final boolean owned;
+
+        private int streams;
+
+
+        private Entry(ProxyConnection connection, boolean owned)
+        {
+            this.connection = connection;
+            this.owned = owned;
+        }
+    }
+}
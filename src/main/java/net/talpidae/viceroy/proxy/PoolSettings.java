@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.handlers.proxy.ProxyConnectionPoolConfig;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.val;
+
+
+/**
+ * Connection pool and request parameters of a route or backend, resolved from the global options and overrides.
+ */
+@Builder(toBuilder = true)
+@Getter
+public class PoolSettings implements ProxyConnectionPoolConfig
+{
+    private final int problemServerRetry;
+
+    private final int maxConnections;
+
+    private final int maxCachedConnections;
+
+    private final int sMaxConnections;
+
+    private final long ttl;
+
+    private final int maxQueueSize;
+
+    /**
+     * Maximum number of multiplexed (HTTP/2) connections per backend and I/O thread, maxConnections applies to HTTP/1.1.
+     */
+    private final int h2MaxConnections;
+
+    /**
+     * Maximum number of concurrent streams per multiplexed connection.
+     */
+    private final int h2MaxStreams;
+
+    /**
+     * Number of idle multiplexed connections kept open per backend and I/O thread (at most h2MaxConnections).
+     */
+    private final int minIdleConnections;
+
+    /**
+     * Maximum duration of a request in milliseconds, applies per route only.
+     */
+    private final int maxRequestTime;
+
+    /**
+     * Maximum number of retries of a request on another backend, applies per route only.
+     */
+    private final int maxRetries;
+
+
+    /**
+     * Apply overrides in NAME=VALUE[,NAME=VALUE...] form, names are those of the global options (maxConnections, ...).
+     *
+     * @throws IllegalArgumentException if overrides are malformed or name an unknown parameter
+     */
+    public PoolSettings withOverrides(String overrides)
+    {
+        val builder = toBuilder();
+        for (val override : overrides.split(","))
+        {
+            val separator = override.indexOf('=');
+            if (separator <= 0)
+            {
+                throw new IllegalArgumentException("invalid NAME=VALUE pool parameter specified: " + override);
+            }
+
+            val name = override.substring(0, separator).trim();
+            val value = override.substring(separator + 1).trim();
+            try
+            {
+                switch (name)
+                {
+                    case "problemServerRetry":
+                        builder.problemServerRetry(Integer.parseInt(value));
+                        break;
+
+                    case "maxConnections":
+                        builder.maxConnections(Integer.parseInt(value));
+                        break;
+
+                    case "maxCachedConnections":
+                        builder.maxCachedConnections(Integer.parseInt(value));
+                        break;
+
+                    case "softMaxConnections":
+                        builder.sMaxConnections(Integer.parseInt(value));
+                        break;
+
+                    case "ttl":
+                        builder.ttl(Long.parseLong(value));
+                        break;
+
+                    case "maxQueueSize":
+                        builder.maxQueueSize(Integer.parseInt(value));
+                        break;
+
+                    case "h2MaxConnections":
+                        builder.h2MaxConnections(Integer.parseInt(value));
+                        break;
+
+                    case "h2MaxStreams":
+                        builder.h2MaxStreams(Integer.parseInt(value));
+                        break;
+
+                    case "minIdleConnections":
+                        builder.minIdleConnections(Integer.parseInt(value));
+                        break;
+
+                    case "maxRequestTime":
+                        builder.maxRequestTime(Integer.parseInt(value));
+                        break;
+
+                    case "maxRetries":
+                        builder.maxRetries(Integer.parseInt(value));
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("unknown pool parameter specified: " + name);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("invalid value specified for pool parameter " + name + ": " + value, e);
+            }
+        }
+
+        return builder.build().validate();
+    }
+
+
+    /**
+     * Check whether other configures a connection pool the same way, the per route parameters are ignored.
+     */
+    boolean hasSamePoolLimits(PoolSettings other)
+    {
+        return problemServerRetry == other.problemServerRetry
+                && maxConnections == other.maxConnections
+                && maxCachedConnections == other.maxCachedConnections
+                && sMaxConnections == other.sMaxConnections
+                && ttl == other.ttl
+                && maxQueueSize == other.maxQueueSize
+                && h2MaxConnections == other.h2MaxConnections
+                && h2MaxStreams == other.h2MaxStreams
+                && minIdleConnections == other.minIdleConnections;
+    }
+
+
+    /**
+     * Check whether other specifies the same pool and request parameters.
+     */
+    boolean isSameAs(PoolSettings other)
+    {
+        return hasSamePoolLimits(other)
+                && maxRequestTime == other.maxRequestTime
+                && maxRetries == other.maxRetries;
+    }
+
+
+    /**
+     * @throws IllegalArgumentException if the HTTP/2 limits are not positive or the idle minimum is negative
+     */
+    PoolSettings validate()
+    {
+        if (h2MaxConnections < 1 || h2MaxStreams < 1)
+        {
+            throw new IllegalArgumentException("invalid HTTP/2 pool size specified: " + h2MaxConnections + " connections, " + h2MaxStreams + " streams");
+        }
+
+        if (minIdleConnections < 0)
+        {
+            throw new IllegalArgumentException("invalid minimum number of idle connections specified: " + minIdleConnections);
+        }
+
+        return this;
+    }
+}
@@ -19,14 +19,21 @@ package net.talpidae.viceroy.proxy;
 
 import com.google.common.base.Strings;
 import io.undertow.server.handlers.proxy.ProxyConnectionPoolConfig;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.val;
 import net.talpidae.base.util.BaseArguments;
+import net.talpidae.viceroy.health.HealthPolicy;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NavigableMap;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 
@@ -35,11 +42,20 @@ import java.util.concurrent.TimeUnit;
 public class ProxyConfig implements ProxyConnectionPoolConfig
 {
     /**
-     * Map of path prefixes to routes. Only include routes here that are supposed to be exported to the outside world.
+     * Holds the current route table, replaced as a whole when the routes file changes.
      */
-    private final NavigableMap<String, RouteMatch> pathPrefixToRoute = new TreeMap<>();
+    @Getter(AccessLevel.NONE)
+    private final RouteTableLoader routes;
 
-    private final RouteMatch defaultRoute;
+    /**
+     * Path of the routes file, null if none was specified.
+     */
+    private final Path routesFile;
+
+    /**
+     * Interval in milliseconds at which the routes file is checked for modifications, 0 to disable reloading.
+     */
+    private final long routesReload;
 
     private final int problemServerRetry;
 
@@ -51,10 +67,168 @@ public class ProxyConfig implements ProxyConnectionPoolConfig
 
     private final int sMaxConnections;
 
+    /**
+     * Maximum number of multiplexed (HTTP/2) connections per backend and I/O thread, maxConnections applies to HTTP/1.1.
+     */
+    private final int h2MaxConnections;
+
+    /**
+     * Maximum number of concurrent streams per multiplexed connection.
+     */
+    private final int h2MaxStreams;
+
+    /**
+     * Number of idle multiplexed connections kept open per backend and I/O thread, 0 disables.
+     */
+    private final int minIdleConnections;
+
     private final int maxRequestTime;
 
     private final int maxRetries;
 
+    /**
+     * Pool and request parameters of routes without overrides.
+     */
+    private final PoolSettings poolSettings;
+
+    /**
+     * Pool parameter overrides by backend HOST:PORT.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<String, String> backendPoolOverrides;
+
+    /**
+     * Maximum age of cached service discovery results in milliseconds before they are refreshed asynchronously.
+     */
+    private final long discoveryRefresh;
+
+    /**
+     * Maximum time in milliseconds a single service discovery lookup may block.
+     */
+    private final long discoveryTimeout;
+
+    /**
+     * Maximum number of service discovery lookups running at the same time.
+     */
+    private final int discoveryConcurrency;
+
+    /**
+     * Time in milliseconds after which pools of unused or vanished backends are closed and removed.
+     */
+    private final long poolIdleGrace;
+
+    /**
+     * Interval in milliseconds at which metrics are flushed to the MetricsSink, 0 to disable.
+     */
+    private final long metricsInterval;
+
+    /**
+     * Maximum size in bytes of the response cache (bodies are stored off-heap).
+     */
+    private final long cacheSize;
+
+    /**
+     * Maximum size in bytes of a single cached response body.
+     */
+    private final int cacheMaxEntrySize;
+
+    /**
+     * Initial adaptive concurrency limit per route, 0 disables concurrency limiting.
+     */
+    private final int concurrencyLimit;
+
+    private final int maxConcurrencyLimit;
+
+    /**
+     * Name of the request header carrying the priority tier.
+     */
+    private final String priorityHeader;
+
+    /**
+     * Path of the access log, null if access logging is disabled.
+     */
+    private final Path accessLog;
+
+    /**
+     * Number of access log records buffered in memory, further records are dropped.
+     */
+    private final int accessLogBuffer;
+
+    /**
+     * Size in bytes after which the access log is rotated, 0 disables rotation.
+     */
+    private final long accessLogMaxSize;
+
+    /**
+     * Number of rotated access log files kept.
+     */
+    private final int accessLogFiles;
+
+    /**
+     * Number of token buckets kept for rate limited routes, idle buckets are reused.
+     */
+    private final int rateKeys;
+
+    /**
+     * Maximum number of hedged requests per hedgeable request of a route.
+     */
+    private final double hedgeRatio;
+
+    /**
+     * Size in bytes of the direct buffers used by routes in streaming mode.
+     */
+    private final int streamBufferSize;
+
+    /**
+     * Maximum number of idle stream buffers kept for reuse.
+     */
+    private final int streamPooledBuffers;
+
+    /**
+     * Deflate level (1-9) used for gzip and deflate response compression.
+     */
+    private final int compressLevel;
+
+    /**
+     * Path of the HTTP endpoint probed on every backend, empty to disable active health checks.
+     */
+    private final String healthCheckPath;
+
+    /**
+     * Interval in milliseconds of health probes and latency outlier detection.
+     */
+    private final long healthCheckInterval;
+
+    private final int healthCheckTimeout;
+
+    /**
+     * Backends with a mean latency above the route median times this factor are ejected, 0 disables.
+     */
+    private final double outlierLatencyFactor;
+
+    /**
+     * Maximum share of the backends of a route in percent that is ejected for latency, if more are ejected
+     * (for errors or failed probes) the ejected backends are used again once no other can take a request.
+     */
+    private final int maxEjectionPercent;
+
+    /**
+     * Number of multiplexed connections opened to a new backend per I/O thread before it is selected, 0 disables warm-up.
+     */
+    private final int warmupConnections;
+
+    private final HealthPolicy healthPolicy;
+
+    /**
+     * Consecutive connect failures of a route after which its requests are rejected with 503, 0 disables.
+     */
+    private final int breakerFailures;
+
+    /**
+     * Time in milliseconds a tripped circuit breaker rejects requests before it lets a probe through.
+     */
+    private final long breakerOpenTime;
+
     /**
      * Maximum time to live for connections above the limit of connectionsPerThread.
      */
@@ -66,62 +240,245 @@ public class ProxyConfig implements ProxyConnectionPoolConfig
     {
         val parser = baseArguments.getOptionParser();
         val mapOption = parser.accepts("viceroy.map").withRequiredArg();
+        val balancerOption = parser.accepts("viceroy.balancer").withRequiredArg();
+        val cacheOption = parser.accepts("viceroy.cache").withRequiredArg();
+        val priorityOption = parser.accepts("viceroy.priority").withRequiredArg();
+        val hedgeOption = parser.accepts("viceroy.hedge").withRequiredArg();
+        val streamOption = parser.accepts("viceroy.stream").withRequiredArg();
+        val compressOption = parser.accepts("viceroy.compress").withRequiredArg();
+        val compressTypesOption = parser.accepts("viceroy.compressTypes").withRequiredArg();
+        val affinityOption = parser.accepts("viceroy.affinity").withRequiredArg();
+        val poolOption = parser.accepts("viceroy.pool").withRequiredArg();
+        val backendPoolOption = parser.accepts("viceroy.backendPool").withRequiredArg();
+        val rateOption = parser.accepts("viceroy.rate").withRequiredArg();
+        val rateKeyOption = parser.accepts("viceroy.rateKey").withRequiredArg();
+        val accessLogOption = parser.accepts("viceroy.accessLog").withRequiredArg().defaultsTo("");
+        val accessLogBufferOption = parser.accepts("viceroy.accessLogBuffer").withRequiredArg().ofType(Integer.TYPE).defaultsTo(64 * 1024);
+        val accessLogMaxSizeOption = parser.accepts("viceroy.accessLogMaxSize").withRequiredArg().ofType(Long.TYPE).defaultsTo(100L * 1024 * 1024);
+        val accessLogFilesOption = parser.accepts("viceroy.accessLogFiles").withRequiredArg().ofType(Integer.TYPE).defaultsTo(5);
+        val rateKeysOption = parser.accepts("viceroy.rateKeys").withRequiredArg().ofType(Integer.TYPE).defaultsTo(256 * 1024);
+        val compressLevelOption = parser.accepts("viceroy.compressLevel").withRequiredArg().ofType(Integer.TYPE).defaultsTo(6);
+        val streamBufferSizeOption = parser.accepts("viceroy.streamBufferSize").withRequiredArg().ofType(Integer.TYPE).defaultsTo(64 * 1024);
+        val streamPooledBuffersOption = parser.accepts("viceroy.streamPooledBuffers").withRequiredArg().ofType(Integer.TYPE).defaultsTo(256);
+        val hedgeRatioOption = parser.accepts("viceroy.hedgeRatio").withRequiredArg().ofType(Double.TYPE).defaultsTo(0.1);
+        val routesOption = parser.accepts("viceroy.routes").withRequiredArg().defaultsTo("");
+        val routesReloadOption = parser.accepts("viceroy.routesReload").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(2));
+        val concurrencyLimitOption = parser.accepts("viceroy.concurrencyLimit").withRequiredArg().ofType(Integer.TYPE).defaultsTo(0);
+        val maxConcurrencyLimitOption = parser.accepts("viceroy.maxConcurrencyLimit").withRequiredArg().ofType(Integer.TYPE).defaultsTo(1000);
+        val priorityHeaderOption = parser.accepts("viceroy.priorityHeader").withRequiredArg().defaultsTo("X-Priority");
+        val healthCheckPathOption = parser.accepts("viceroy.healthCheckPath").withRequiredArg().defaultsTo("");
+        val healthCheckIntervalOption = parser.accepts("viceroy.healthCheckInterval").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(5));
+        val healthCheckTimeoutOption = parser.accepts("viceroy.healthCheckTimeout").withRequiredArg().ofType(Integer.TYPE).defaultsTo(1000);
+        val outlierErrorsOption = parser.accepts("viceroy.outlierErrors").withRequiredArg().ofType(Integer.TYPE).defaultsTo(5);
+        val outlierLatencyFactorOption = parser.accepts("viceroy.outlierLatencyFactor").withRequiredArg().ofType(Double.TYPE).defaultsTo(3.0);
+        val maxEjectionPercentOption = parser.accepts("viceroy.maxEjectionPercent").withRequiredArg().ofType(Integer.TYPE).defaultsTo(50);
+        val ejectionTimeOption = parser.accepts("viceroy.ejectionTime").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(30));
+        val warmupConnectionsOption = parser.accepts("viceroy.warmupConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(0);
+        val slowStartOption = parser.accepts("viceroy.slowStart").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(30));
+        val breakerFailuresOption = parser.accepts("viceroy.breakerFailures").withRequiredArg().ofType(Integer.TYPE).defaultsTo(20);
+        val breakerOpenTimeOption = parser.accepts("viceroy.breakerOpenTime").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(5));
+        val cacheSizeOption = parser.accepts("viceroy.cacheSize").withRequiredArg().ofType(Long.TYPE).defaultsTo(64L * 1024 * 1024);
+        val cacheMaxEntrySizeOption = parser.accepts("viceroy.cacheMaxEntrySize").withRequiredArg().ofType(Integer.TYPE).defaultsTo(1024 * 1024);
         val softMaxConnectionsOption = parser.accepts("viceroy.softMaxConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(20);
         val maxConnectionsOption = parser.accepts("viceroy.maxConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(200);
         val maxQueueSizeOption = parser.accepts("viceroy.maxQueueSize").withRequiredArg().ofType(Integer.TYPE).defaultsTo(40);
         val maxCachedConnectionsOption = parser.accepts("viceroy.maxCachedConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(40);
+        val h2MaxConnectionsOption = parser.accepts("viceroy.h2MaxConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(2);
+        val h2MaxStreamsOption = parser.accepts("viceroy.h2MaxStreams").withRequiredArg().ofType(Integer.TYPE).defaultsTo(100);
+        val minIdleConnectionsOption = parser.accepts("viceroy.minIdleConnections").withRequiredArg().ofType(Integer.TYPE).defaultsTo(0);
         val ttlOption = parser.accepts("viceroy.ttl").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(53));
         val problemServerRetryOption = parser.accepts("viceroy.problemServerRetry").withRequiredArg().ofType(Integer.TYPE).defaultsTo(2);
         val maxRequestTimeOption = parser.accepts("viceroy.maxRequestTime").withRequiredArg().ofType(Integer.TYPE).defaultsTo(30000);
         val maxRetriesTimeOption = parser.accepts("viceroy.maxRetries").withRequiredArg().ofType(Integer.TYPE).defaultsTo(1);
+        val discoveryRefreshOption = parser.accepts("viceroy.discoveryRefresh").withRequiredArg().ofType(Long.TYPE).defaultsTo(500L);
+        val discoveryTimeoutOption = parser.accepts("viceroy.discoveryTimeout").withRequiredArg().ofType(Long.TYPE).defaultsTo(2000L);
+        val discoveryConcurrencyOption = parser.accepts("viceroy.discoveryConcurrency").withRequiredArg().ofType(Integer.TYPE).defaultsTo(2);
+        val metricsIntervalOption = parser.accepts("viceroy.metricsInterval").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.SECONDS.toMillis(10));
+        val poolIdleGraceOption = parser.accepts("viceroy.poolIdleGrace").withRequiredArg().ofType(Long.TYPE).defaultsTo(TimeUnit.MINUTES.toMillis(5));
 
         val options = baseArguments.parse();
 
         maxRetries = options.valueOf(maxRetriesTimeOption);
 
-        for (val map : options.valuesOf(mapOption))
-        {
-            val mapParts = map.split("=");
-            try
-            {
-                val prefix = mapParts[0];
-                val route = mapParts[1];
-                if (prefix != null && !Strings.isNullOrEmpty(route))
-                {
-                    pathPrefixToRoute.put(prefix, new RouteMatch(prefix, route));
-                    continue;
-                }
-            }
-            catch (ArrayIndexOutOfBoundsException e)
-            {
-                // throw below
-            }
+        val baseRoutes = new RouteTable.Definition()
+                .addAll("map", options.valuesOf(mapOption))
+                .addAll("balancer", options.valuesOf(balancerOption))
+                .addAll("cache", options.valuesOf(cacheOption))
+                .addAll("priority", options.valuesOf(priorityOption))
+                .addAll("hedge", options.valuesOf(hedgeOption))
+                .addAll("stream", options.valuesOf(streamOption))
+                .addAll("compress", options.valuesOf(compressOption))
+                .addAll("compressTypes", options.valuesOf(compressTypesOption))
+                .addAll("affinity", options.valuesOf(affinityOption))
+                .addAll("pool", options.valuesOf(poolOption))
+                .addAll("rate", options.valuesOf(rateOption))
+                .addAll("rateKey", options.valuesOf(rateKeyOption));
 
-            throw new IllegalArgumentException("invalid PREFIX=ROUTE mapping specified: " + map);
-        }
+        val routes = routesOption.value(options);
+        routesFile = Strings.isNullOrEmpty(routes) ? null : Paths.get(routes);
+        routesReload = routesReloadOption.value(options);
 
-        defaultRoute = pathPrefixToRoute.get("");
         sMaxConnections = softMaxConnectionsOption.value(options);
         maxConnections = maxConnectionsOption.value(options);
         maxQueueSize = maxQueueSizeOption.value(options);
         maxCachedConnections = maxCachedConnectionsOption.value(options);
+        h2MaxConnections = h2MaxConnectionsOption.value(options);
+        h2MaxStreams = h2MaxStreamsOption.value(options);
+        minIdleConnections = minIdleConnectionsOption.value(options);
         ttl = ttlOption.value(options);
         problemServerRetry = problemServerRetryOption.value(options);
         maxRequestTime = maxRequestTimeOption.value(options);
+        poolSettings = PoolSettings.builder()
+                .problemServerRetry(problemServerRetry)
+                .maxConnections(maxConnections)
+                .maxCachedConnections(maxCachedConnections)
+                .sMaxConnections(sMaxConnections)
+                .ttl(ttl)
+                .maxQueueSize(maxQueueSize)
+                .h2MaxConnections(h2MaxConnections)
+                .h2MaxStreams(h2MaxStreams)
+                .minIdleConnections(minIdleConnections)
+                .maxRequestTime(maxRequestTime)
+                .maxRetries(maxRetries)
+                .build()
+                .validate();
+
+        backendPoolOverrides = new HashMap<>();
+        for (val backendPool : options.valuesOf(backendPoolOption))
+        {
+            val separator = backendPool.indexOf('=');
+            if (separator <= 0 || backendPool.lastIndexOf(':', separator) <= 0)
+            {
+                throw new IllegalArgumentException("invalid HOST:PORT=OVERRIDES backend pool specified: " + backendPool);
+            }
+
+            val overrides = backendPool.substring(separator + 1);
+            poolSettings.withOverrides(overrides);
+            backendPoolOverrides.put(backendPool.substring(0, separator), overrides);
+        }
+        discoveryRefresh = discoveryRefreshOption.value(options);
+        discoveryTimeout = discoveryTimeoutOption.value(options);
+        if (discoveryTimeout <= 0)
+        {
+            throw new IllegalArgumentException("invalid viceroy.discoveryTimeout specified: " + discoveryTimeout);
+        }
+        discoveryConcurrency = discoveryConcurrencyOption.value(options);
+        if (discoveryConcurrency <= 0)
+        {
+            throw new IllegalArgumentException("invalid viceroy.discoveryConcurrency specified: " + discoveryConcurrency);
+        }
+        poolIdleGrace = poolIdleGraceOption.value(options);
+        metricsInterval = metricsIntervalOption.value(options);
+        cacheSize = cacheSizeOption.value(options);
+        cacheMaxEntrySize = cacheMaxEntrySizeOption.value(options);
+        concurrencyLimit = concurrencyLimitOption.value(options);
+        maxConcurrencyLimit = maxConcurrencyLimitOption.value(options);
+        priorityHeader = priorityHeaderOption.value(options);
+        val accessLogPath = accessLogOption.value(options);
+        accessLog = Strings.isNullOrEmpty(accessLogPath) ? null : Paths.get(accessLogPath);
+        accessLogBuffer = accessLogBufferOption.value(options);
+        accessLogMaxSize = accessLogMaxSizeOption.value(options);
+        accessLogFiles = accessLogFilesOption.value(options);
+        rateKeys = rateKeysOption.value(options);
+        if (rateKeys < 1)
+        {
+            throw new IllegalArgumentException("invalid number of rate limit keys specified: " + rateKeys);
+        }
+        hedgeRatio = hedgeRatioOption.value(options);
+        streamBufferSize = streamBufferSizeOption.value(options);
+        streamPooledBuffers = streamPooledBuffersOption.value(options);
+        compressLevel = compressLevelOption.value(options);
+        if (compressLevel < 1 || compressLevel > 9)
+        {
+            throw new IllegalArgumentException("invalid compression level specified: " + compressLevel);
+        }
+        healthCheckPath = healthCheckPathOption.value(options);
+        healthCheckInterval = healthCheckIntervalOption.value(options);
+        healthCheckTimeout = healthCheckTimeoutOption.value(options);
+        outlierLatencyFactor = outlierLatencyFactorOption.value(options);
+        maxEjectionPercent = maxEjectionPercentOption.value(options);
+        if (maxEjectionPercent < 0 || maxEjectionPercent > 100)
+        {
+            throw new IllegalArgumentException("invalid maximum ejection percentage specified: " + maxEjectionPercent);
+        }
+        warmupConnections = warmupConnectionsOption.value(options);
+        healthPolicy = HealthPolicy.builder()
+                .consecutiveErrors(outlierErrorsOption.value(options))
+                .ejectionNanos(TimeUnit.MILLISECONDS.toNanos(ejectionTimeOption.value(options)))
+                .warmup(warmupConnections > 0)
+                .slowStartNanos(TimeUnit.MILLISECONDS.toNanos(slowStartOption.value(options)))
+                .build();
+        breakerFailures = breakerFailuresOption.value(options);
+        breakerOpenTime = breakerOpenTimeOption.value(options);
+        if (breakerFailures > 0 && breakerOpenTime <= 0)
+        {
+            throw new IllegalArgumentException("invalid circuit breaker open time specified: " + breakerOpenTime);
+        }
+
+        routes = new RouteTableLoader(baseRoutes, routesFile, poolSettings);
+        try
+        {
+            routes.load();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("failed to read routes file: " + routesFile, e);
+        }
     }
 
 
     /**
-     * Locate a route by a request path prefix.
+     * Rebuild the route table from the command line options and the routes file and publish it atomically.
+     *
+     * @throws IOException              if the routes file can't be read
+     * @throws IllegalArgumentException if the resulting route definition is invalid, the current table is kept
      */
-    public RouteMatch findRouteByPathPrefix(String path)
+    public RouteTable reloadRoutes() throws IOException
     {
-        val entry = pathPrefixToRoute.floorEntry(path);
-        if (entry != null && path.startsWith(entry.getKey()))
-        {
-            return entry.getValue();
-        }
+        return routes.load();
+    }
+
+
+    /**
+     * Current route table, replaced as a whole when the routes file changes.
+     */
+    public RouteTable getRouteTable()
+    {
+        return routes.getRouteTable();
+    }
+
 
-        return defaultRoute;
+    /**
+     * Resolve the settings of the pool of a backend of a route, applying the overrides of the backend (if any).
+     */
+    public PoolSettings getBackendPoolSettings(InetSocketAddress socketAddress, PoolSettings routeSettings)
+    {
+        val overrides = backendPoolOverrides.get(socketAddress.getHostString() + ":" + socketAddress.getPort());
+
+        return (overrides != null) ? routeSettings.withOverrides(overrides) : routeSettings;
+    }
+
+
+    /**
+     * Map of path prefixes to routes of the current route table.
+     */
+    public NavigableMap<String, RouteMatch> getPathPrefixToRoute()
+    {
+        return getRouteTable().getPathPrefixToRoute();
+    }
+
+
+    public RouteMatch getDefaultRoute()
+    {
+        return getRouteTable().getDefaultRoute();
+    }
+
+
+    /**
+     * Locate a route by the longest prefix matching the request path at a segment boundary.
+     */
+    public RouteMatch findRouteByPathPrefix(String path)
+    {
+        return getRouteTable().findRouteByPathPrefix(path);
     }
 }
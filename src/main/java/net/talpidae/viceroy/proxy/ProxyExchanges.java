@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Transfer;
+import lombok.val;
+import org.xnio.ChannelListeners;
+
+import java.util.Set;
+
+
+/**
+ * Request and response forwarding shared by the handlers that talk to backends without ProxyHandler.
+ */
+final class ProxyExchanges
+{
+    private static final Set<HttpString> HOP_BY_HOP_HEADERS = Set.of(
+            Headers.CONNECTION, Headers.KEEP_ALIVE, Headers.PROXY_AUTHORIZATION, Headers.TE, Headers.TRAILER,
+            Headers.TRANSFER_ENCODING, Headers.UPGRADE);
+
+
+    private ProxyExchanges()
+    {
+
+    }
+
+
+    static void copyHeaders(HeaderMap from, HeaderMap to)
+    {
+        for (val values : from)
+        {
+            val name = values.getHeaderName();
+            if (!HOP_BY_HOP_HEADERS.contains(name))
+            {
+                to.putAll(name, values);
+            }
+        }
+    }
+
+
+    /**
+     * Index of the path in requestURI, skips scheme and host of absolute-form request URIs like ProxyHandler does.
+     */
+    private static int getPathStart(HttpServerExchange exchange, String requestURI)
+    {
+        if (exchange.isHostIncludedInRequestURI())
+        {
+            val authority = requestURI.indexOf("//");
+            if (authority >= 0)
+            {
+                val path = requestURI.indexOf('/', authority + 2);
+                return (path >= 0) ? path : requestURI.length();
+            }
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Match prefix against the raw path in requestURI starting at pathStart, percent-encoded characters are compared
+     * in their decoded form (except for '/' which Undertow doesn't decode either). The prefix has to end at a
+     * segment boundary.
+     *
+     * @return The index in requestURI right after the prefix or -1, if the raw path doesn't start with prefix.
+     */
+    static int findPrefixEnd(String requestURI, int pathStart, String prefix)
+    {
+        val length = requestURI.length();
+        val prefixLength = prefix.length();
+        int position = pathStart;
+        for (int i = 0; i < prefixLength; ++i)
+        {
+            if (position >= length)
+            {
+                return -1;
+            }
+
+            int c = requestURI.charAt(position);
+            int width = 1;
+            if (c == '%' && position + 2 < length)
+            {
+                val high = Character.digit(requestURI.charAt(position + 1), 16);
+                val low = Character.digit(requestURI.charAt(position + 2), 16);
+                if (high >= 0 && low >= 0)
+                {
+                    c = (high << 4) | low;
+                    width = 3;
+                    if (c == '/' || c >= 0x80)
+                    {
+                        return -1;
+                    }
+                }
+            }
+
+            if (c != prefix.charAt(i))
+            {
+                return -1;
+            }
+
+            position += width;
+        }
+
+        return (position == length || requestURI.charAt(position) == '/') ? position : -1;
+    }
+
+
+    /**
+     * Index in the request URI of exchange where the path sent to the backend starts, after host and prefix of route.
+     */
+    private static int getTargetPathStart(HttpServerExchange exchange, String requestURI, RouteMatch route)
+    {
+        val pathStart = getPathStart(exchange, requestURI);
+        val prefixEnd = findPrefixEnd(requestURI, pathStart, route.getStrippedPrefix());
+
+        return (prefixEnd >= 0) ? prefixEnd : pathStart;
+    }
+
+
+    /**
+     * Remove the prefix of route from the path ProxyHandler forwards to the backend.
+     * <p>
+     * ProxyHandler cuts the resolved path off the request URI itself (one substring there), so if the raw URI starts
+     * with the prefix literally only the (shared) prefix string of route is attached and nothing is allocated here.
+     * Prefixes matched in percent-encoded form copy the rest of the URI once. A path consisting of the prefix only
+     * is forwarded as "/". Must be called once per exchange.
+     */
+    static void stripPrefix(HttpServerExchange exchange, RouteMatch route)
+    {
+        val prefix = route.getStrippedPrefix();
+        if (prefix.isEmpty())
+        {
+            return;
+        }
+
+        val requestURI = exchange.getRequestURI();
+        val pathStart = getPathStart(exchange, requestURI);
+        val prefixEnd = findPrefixEnd(requestURI, pathStart, prefix);
+        if (prefixEnd < 0)
+        {
+            return;
+        }
+
+        if (prefixEnd == requestURI.length())
+        {
+            // never forward an empty path
+            exchange.setRequestURI("/", false);
+        }
+        else if (prefixEnd - pathStart == prefix.length())
+        {
+            exchange.setResolvedPath(prefix);
+        }
+        else
+        {
+            exchange.setRequestURI(requestURI.substring(prefixEnd), false);
+        }
+    }
+
+
+    /**
+     * Path and query of exchange as sent to the backend, without the prefix of route.
+     * Copies the request URI only if there is something to remove or append.
+     */
+    static String getTargetPath(HttpServerExchange exchange, RouteMatch route)
+    {
+        val requestURI = exchange.getRequestURI();
+        val length = requestURI.length();
+        val start = getTargetPathStart(exchange, requestURI, route);
+        val queryString = exchange.getQueryString();
+        if (queryString == null || queryString.isEmpty())
+        {
+            if (start == length)
+            {
+                return "/";
+            }
+
+            return (start == 0) ? requestURI : requestURI.substring(start);
+        }
+
+        val path = new StringBuilder(length - start + 2 + queryString.length());
+        if (start == length)
+        {
+            path.append('/');
+        }
+
+        return path.append(requestURI, start, length)
+                .append('?')
+                .append(queryString)
+                .toString();
+    }
+
+
+    /**
+     * Create the backend request for exchange with end-to-end headers and X-Forwarded-* like ProxyHandler.
+     */
+    static ClientRequest createRequest(HttpServerExchange exchange, String targetPath)
+    {
+        val request = new ClientRequest()
+                .setMethod(exchange.getRequestMethod())
+                .setPath(targetPath);
+
+        val requestHeaders = request.getRequestHeaders();
+        copyHeaders(exchange.getRequestHeaders(), requestHeaders);
+
+        val sourceAddress = exchange.getSourceAddress();
+        if (sourceAddress != null && sourceAddress.getAddress() != null)
+        {
+            requestHeaders.put(Headers.X_FORWARDED_FOR, sourceAddress.getAddress().getHostAddress());
+        }
+        requestHeaders.put(Headers.X_FORWARDED_PROTO, exchange.getRequestScheme());
+        requestHeaders.put(Headers.X_FORWARDED_HOST, exchange.getHostName());
+        requestHeaders.put(Headers.X_FORWARDED_PORT, exchange.getHostPort());
+
+        return request;
+    }
+
+
+    /**
+     * Copy status and headers of the backend response and stream its body to the client through bufferPool.
+     * The backend is only read as fast as the client accepts data.
+     */
+    static void forwardResponse(ClientExchange clientExchange, HttpServerExchange exchange, ByteBufferPool bufferPool)
+    {
+        val response = clientExchange.getResponse();
+        exchange.setStatusCode(response.getResponseCode());
+        copyHeaders(response.getResponseHeaders(), exchange.getResponseHeaders());
+
+        Transfer.initiateTransfer(clientExchange.getResponseChannel(),
+                exchange.getResponseChannel(),
+                ChannelListeners.closingChannelListener(),
+                ChannelListeners.writeShutdownChannelListener(
+                        ChannelListeners.flushingChannelListener(null, ChannelListeners.closingChannelExceptionHandler()),
+                        ChannelListeners.closingChannelExceptionHandler()),
+                ChannelListeners.closingChannelExceptionHandler(),
+                ChannelListeners.closingChannelExceptionHandler(),
+                bufferPool);
+    }
+
+
+    /**
+     * Account a finished backend request on pool.
+     */
+    static void completed(TargetPool pool, int statusCode, long latencyNanos, long now)
+    {
+        pool.getStats().complete(latencyNanos);
+        if (pool.getHealth().onResponse(statusCode, latencyNanos, now))
+        {
+            pool.getMetrics().ejected();
+        }
+
+        pool.getMetrics().completed(statusCode, latencyNanos);
+    }
+
+
+    /**
+     * Account a failed connection attempt or backend I/O error on pool.
+     */
+    static void failed(TargetPool pool)
+    {
+        if (pool.getHealth().onFailure(System.nanoTime()))
+        {
+            pool.getMetrics().ejected();
+        }
+    }
+}
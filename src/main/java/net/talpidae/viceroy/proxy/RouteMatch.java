@@ -18,15 +18,118 @@
 package net.talpidae.viceroy.proxy;
 
 import io.undertow.server.handlers.proxy.ProxyClient;
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
+import lombok.Builder;
 import lombok.Getter;
+import net.talpidae.viceroy.limit.Priority;
+import net.talpidae.viceroy.limit.RateLimit;
+import net.talpidae.viceroy.proxy.balancer.AffinityKey;
+import net.talpidae.viceroy.proxy.balancer.LoadBalancer;
 
+import java.util.List;
 
-@AllArgsConstructor
+
+/**
+ * Route of a path prefix with its settings. Built completely before the RouteTable containing it is published and
+ * never modified afterwards.
+ */
 @Getter
-public class RouteMatch implements ProxyClient.ProxyTarget
+public class RouteMatch implements ProxyClient.MaxRetriesProxyTarget
 {
+    public static final long HEDGE_DELAY_P95 = -1L;
+
     private final String prefix;
 
     private final String route;
+
+    private final LoadBalancer loadBalancer;
+
+    /**
+     * Part of prefix removed from request paths before forwarding: prefix without its trailing '/'.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final String strippedPrefix;
+
+    /**
+     * Maximum age in seconds of cached responses, 0 disables response caching.
+     */
+    private final long cacheMaxAge;
+
+    /**
+     * Delay in milliseconds after which idempotent requests are hedged, 0 disables hedging.
+     * HEDGE_DELAY_P95 uses the measured p95 response latency of the route.
+     */
+    private final long hedgeDelay;
+
+    /**
+     * Ceiling in bytes of the buffer memory held by streams of this route, 0 disables streaming mode.
+     */
+    private final long streamMemory;
+
+    /**
+     * Minimum size in bytes of responses to compress, 0 disables compression.
+     */
+    private final long compressMinSize;
+
+    /**
+     * Content type prefixes to compress, null for the defaults.
+     */
+    private final List<String> compressTypes;
+
+    /**
+     * Key that pins requests to a backend through the consistent hash ring, null to use the load balancer.
+     */
+    private final AffinityKey affinity;
+
+    /**
+     * Request rate limit of the route, null if requests are not rate limited.
+     */
+    private final RateLimit rateLimit;
+
+    /**
+     * Priority tier of requests that don't specify one.
+     */
+    private final Priority priority;
+
+    /**
+     * Connection pool and request parameters of the route, pools of its backends are created with these.
+     */
+    private final PoolSettings poolSettings;
+
+
+    @Builder(toBuilder = true)
+    private RouteMatch(String prefix,
+                       String route,
+                       LoadBalancer loadBalancer,
+                       long cacheMaxAge,
+                       long hedgeDelay,
+                       long streamMemory,
+                       long compressMinSize,
+                       List<String> compressTypes,
+                       AffinityKey affinity,
+                       RateLimit rateLimit,
+                       Priority priority,
+                       PoolSettings poolSettings)
+    {
+        this.prefix = prefix;
+        this.route = route;
+        this.loadBalancer = loadBalancer;
+        this.strippedPrefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        this.cacheMaxAge = cacheMaxAge;
+        this.hedgeDelay = hedgeDelay;
+        this.streamMemory = streamMemory;
+        this.compressMinSize = compressMinSize;
+        this.compressTypes = compressTypes;
+        this.affinity = affinity;
+        this.rateLimit = rateLimit;
+        this.priority = (priority != null) ? priority : Priority.NORMAL;
+        this.poolSettings = poolSettings;
+    }
+
+
+    @Override
+    public int getMaxRetries()
+    {
+        return poolSettings.getMaxRetries();
+    }
 }
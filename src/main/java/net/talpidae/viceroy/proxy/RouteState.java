@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.health.CircuitBreaker;
+import net.talpidae.viceroy.metrics.RouteMetrics;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Locally cached discovery state of a single route.
+ */
+public final class RouteState
+{
+    private static final long USAGE_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Getter
+    private final String route;
+
+    @Getter
+    private final RouteMetrics metrics;
+
+    @Getter(AccessLevel.PACKAGE)
+    private final HedgeState hedgeState = new HedgeState();
+
+    @Getter
+    private final CircuitBreaker circuitBreaker;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private final ConcurrentLinkedQueue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Backends last published for this route, null until the first lookup finished.
+     */
+    @Getter
+    private volatile BackendTable table;
+
+    @Getter
+    private volatile long refreshedAt;
+
+    private volatile long lastUsed = System.nanoTime();
+
+
+    RouteState(String route, CircuitBreaker circuitBreaker)
+    {
+        this.route = route;
+        this.metrics = new RouteMetrics(route);
+        this.circuitBreaker = circuitBreaker;
+    }
+
+
+    /**
+     * Account a successful connection attempt to one of the backends.
+     */
+    void connected(long connectNanos)
+    {
+        metrics.connected(connectNanos);
+        circuitBreaker.onSuccess();
+    }
+
+
+    /**
+     * Account a failed connection attempt to one of the backends, may open the circuit breaker.
+     */
+    void connectFailed(long now)
+    {
+        metrics.connectFailed();
+        if (circuitBreaker.onFailure(now))
+        {
+            metrics.breakerOpened();
+        }
+    }
+
+
+    boolean isResolved()
+    {
+        return table != null;
+    }
+
+
+    void markUsed(long now)
+    {
+        if (now - lastUsed > USAGE_GRANULARITY_NANOS)
+        {
+            lastUsed = now;
+        }
+    }
+
+
+    /**
+     * Forget the backends of this route if it has not been used within the grace period.
+     * It is resolved again on the next request.
+     */
+    void evictIfIdle(long now, long graceNanos)
+    {
+        if (now - lastUsed > graceNanos && tryBeginRefresh())
+        {
+            table = null;
+            refreshing.set(false);
+        }
+    }
+
+
+    boolean tryBeginRefresh()
+    {
+        return refreshing.compareAndSet(false, true);
+    }
+
+
+    void update(BackendTable table, long now)
+    {
+        this.table = table;
+        this.refreshedAt = now;
+    }
+
+
+    void endRefresh()
+    {
+        refreshing.set(false);
+        resumeWaiters();
+    }
+
+
+    /**
+     * Park a waiter until the next refresh finished. Runs it immediately if the route has been resolved meanwhile.
+     */
+    void await(Runnable waiter)
+    {
+        waiters.add(waiter);
+
+        // a concurrent refresh may have finished before we queued the waiter
+        if (isResolved() || !refreshing.get())
+        {
+            resumeWaiters();
+        }
+    }
+
+
+    private void resumeWaiters()
+    {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null)
+        {
+            waiter.run();
+        }
+    }
+}
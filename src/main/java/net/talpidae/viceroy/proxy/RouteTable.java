@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import com.google.common.base.Strings;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.limit.Priority;
+import net.talpidae.viceroy.limit.RateLimit;
+import net.talpidae.viceroy.proxy.balancer.AffinityKey;
+import net.talpidae.viceroy.proxy.balancer.LoadBalancer;
+import net.talpidae.viceroy.proxy.balancer.LoadBalancers;
+import net.talpidae.viceroy.proxy.balancer.RandomLoadBalancer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+
+/**
+ * Immutable snapshot of the path prefix to route mapping including per-route settings.
+ * <p>
+ * A new snapshot is built for every change and published as a whole, so lookups never need to lock.
+ */
+public final class RouteTable
+{
+    /**
+     * Map of path prefixes to routes. Only include routes here that are supposed to be exported to the outside world.
+     */
+    @Getter
+    private final NavigableMap<String, RouteMatch> pathPrefixToRoute;
+
+    /**
+     * Compiled form of pathPrefixToRoute used for request routing.
+     */
+    private final RouteTrie routeTrie;
+
+    @Getter
+    private final RouteMatch defaultRoute;
+
+    /**
+     * Pool and request parameters by route name, shared by all prefixes mapped to a route.
+     */
+    private final Map<String, PoolSettings> routeToPoolSettings;
+
+    /**
+     * Pool and request parameters of routes without overrides.
+     */
+    private final PoolSettings defaultPoolSettings;
+
+
+    private RouteTable(NavigableMap<String, RouteMatch> pathPrefixToRoute, Map<String, PoolSettings> routeToPoolSettings, PoolSettings defaultPoolSettings)
+    {
+        this.pathPrefixToRoute = Collections.unmodifiableNavigableMap(pathPrefixToRoute);
+        this.routeTrie = RouteTrie.build(pathPrefixToRoute.values());
+        this.defaultRoute = pathPrefixToRoute.get("");
+        this.routeToPoolSettings = routeToPoolSettings;
+        this.defaultPoolSettings = defaultPoolSettings;
+    }
+
+
+    /**
+     * Build a table from route definitions, poolSettings are the pool and request parameters of routes without overrides.
+     *
+     * @throws IllegalArgumentException if the definition is invalid
+     */
+    public static RouteTable build(Definition definition, PoolSettings poolSettings)
+    {
+        val prefixToBalancer = new HashMap<String, LoadBalancer>();
+        for (val entry : parsePrefixOptions(definition.balancers).entrySet())
+        {
+            prefixToBalancer.put(entry.getKey(), LoadBalancers.forName(entry.getValue()));
+        }
+
+        // routes are only published once all of their settings are applied
+        val pathPrefixToRoute = new TreeMap<String, RouteMatch.RouteMatchBuilder>();
+        val prefixToRouteName = new HashMap<String, String>();
+        for (val map : definition.maps)
+        {
+            val mapParts = map.split("=");
+            try
+            {
+                val prefix = mapParts[0];
+                val route = mapParts[1];
+                if (prefix != null && !Strings.isNullOrEmpty(route))
+                {
+                    val loadBalancer = prefixToBalancer.getOrDefault(prefix, RandomLoadBalancer.INSTANCE);
+                    pathPrefixToRoute.put(prefix, RouteMatch.builder()
+                            .prefix(prefix)
+                            .route(route)
+                            .loadBalancer(loadBalancer));
+                    prefixToRouteName.put(prefix, route);
+                    continue;
+                }
+            }
+            catch (ArrayIndexOutOfBoundsException e)
+            {
+                // throw below
+            }
+
+            throw new IllegalArgumentException("invalid PREFIX=ROUTE mapping specified: " + map);
+        }
+
+        requireMappedPrefixes(pathPrefixToRoute, prefixToBalancer.keySet(), "viceroy.balancer");
+
+        val routeToPoolSettings = resolvePoolSettings(prefixToRouteName, parsePrefixOptions(definition.pools), poolSettings);
+        for (val entry : pathPrefixToRoute.entrySet())
+        {
+            entry.getValue().poolSettings(routeToPoolSettings.getOrDefault(prefixToRouteName.get(entry.getKey()), poolSettings));
+        }
+
+        for (val entry : parsePrefixOptions(definition.caches).entrySet())
+        {
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.cache").cacheMaxAge(Long.parseLong(entry.getValue()));
+        }
+
+        for (val entry : parsePrefixOptions(definition.priorities).entrySet())
+        {
+            val priority = Priority.forName(entry.getValue());
+            if (priority == null)
+            {
+                throw new IllegalArgumentException("unknown priority specified: " + entry.getValue());
+            }
+
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.priority").priority(priority);
+        }
+
+        for (val entry : parsePrefixOptions(definition.hedges).entrySet())
+        {
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.hedge").hedgeDelay(parseHedgeDelay(entry.getValue()));
+        }
+
+        for (val entry : parsePrefixOptions(definition.streams).entrySet())
+        {
+            val streamMemory = Long.parseLong(entry.getValue());
+            if (streamMemory < 0)
+            {
+                throw new IllegalArgumentException("invalid stream memory ceiling specified: " + entry.getValue());
+            }
+
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.stream").streamMemory(streamMemory);
+        }
+
+        for (val entry : parsePrefixOptions(definition.compressions).entrySet())
+        {
+            val minSize = Long.parseLong(entry.getValue());
+            if (minSize < 0)
+            {
+                throw new IllegalArgumentException("invalid compression threshold specified: " + entry.getValue());
+            }
+
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.compress").compressMinSize(minSize);
+        }
+
+        for (val entry : parsePrefixOptions(definition.compressTypes).entrySet())
+        {
+            val types = new ArrayList<String>();
+            for (val type : entry.getValue().split(","))
+            {
+                if (!type.trim().isEmpty())
+                {
+                    types.add(type.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.compressTypes").compressTypes(List.copyOf(types));
+        }
+
+        for (val entry : parsePrefixOptions(definition.affinities).entrySet())
+        {
+            getMappedRoute(pathPrefixToRoute, entry.getKey(), "viceroy.affinity").affinity(AffinityKey.parse(entry.getValue()));
+        }
+
+        val prefixToRateKey = parsePrefixOptions(definition.rateKeys);
+        requireMappedPrefixes(pathPrefixToRoute, prefixToRateKey.keySet(), "viceroy.rateKey");
+        for (val entry : parsePrefixOptions(definition.rates).entrySet())
+        {
+            val prefix = entry.getKey();
+            val rateKey = prefixToRateKey.getOrDefault(prefix, "ip");
+            getMappedRoute(pathPrefixToRoute, prefix, "viceroy.rate").rateLimit(RateLimit.parse(prefix, entry.getValue(), rateKey));
+        }
+
+        val routes = new TreeMap<String, RouteMatch>();
+        for (val entry : pathPrefixToRoute.entrySet())
+        {
+            routes.put(entry.getKey(), entry.getValue().build());
+        }
+
+        return new RouteTable(routes, routeToPoolSettings, poolSettings);
+    }
+
+
+    /**
+     * Resolve the pool overrides of each route once, so all prefixes of a route share the same settings.
+     * Prefixes without overrides take those of the other prefixes of their route.
+     *
+     * @throws IllegalArgumentException if prefixes of the same route specify different settings
+     */
+    private static Map<String, PoolSettings> resolvePoolSettings(Map<String, String> prefixToRouteName, Map<String, String> prefixToOverrides, PoolSettings poolSettings)
+    {
+        requireMappedPrefixes(prefixToRouteName, prefixToOverrides.keySet(), "viceroy.pool");
+
+        val routeToPoolSettings = new HashMap<String, PoolSettings>();
+        for (val entry : new TreeMap<>(prefixToOverrides).entrySet())
+        {
+            val route = prefixToRouteName.get(entry.getKey());
+            val settings = poolSettings.withOverrides(entry.getValue());
+            val previous = routeToPoolSettings.putIfAbsent(route, settings);
+            if (previous != null && !previous.isSameAs(settings))
+            {
+                throw new IllegalArgumentException("conflicting viceroy.pool settings specified for route " + route + ": " + entry.getKey() + "=" + entry.getValue());
+            }
+        }
+
+        return routeToPoolSettings;
+    }
+
+
+    private static long parseHedgeDelay(String value)
+    {
+        if ("p95".equalsIgnoreCase(value))
+        {
+            return RouteMatch.HEDGE_DELAY_P95;
+        }
+
+        try
+        {
+            val delay = Long.parseLong(value);
+            if (delay >= 0)
+            {
+                return delay;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // throw below
+        }
+
+        throw new IllegalArgumentException("invalid hedge delay specified: " + value);
+    }
+
+
+    /**
+     * Parse PREFIX=VALUE style per-route options.
+     */
+    private static Map<String, String> parsePrefixOptions(List<String> values)
+    {
+        val prefixToValue = new HashMap<String, String>();
+        for (val value : values)
+        {
+            val separator = value.indexOf('=');
+            if (separator < 0 || separator == value.length() - 1)
+            {
+                throw new IllegalArgumentException("invalid PREFIX=VALUE option specified: " + value);
+            }
+
+            prefixToValue.put(value.substring(0, separator), value.substring(separator + 1));
+        }
+
+        return prefixToValue;
+    }
+
+
+    private static void requireMappedPrefixes(Map<String, ?> pathPrefixToRoute, Iterable<String> prefixes, String optionName)
+    {
+        for (val prefix : prefixes)
+        {
+            if (!pathPrefixToRoute.containsKey(prefix))
+            {
+                throw new IllegalArgumentException(optionName + " specified for unmapped prefix: " + prefix);
+            }
+        }
+    }
+
+
+    private static RouteMatch.RouteMatchBuilder getMappedRoute(Map<String, RouteMatch.RouteMatchBuilder> pathPrefixToRoute, String prefix, String optionName)
+    {
+        requireMappedPrefixes(pathPrefixToRoute, List.of(prefix), optionName);
+
+        return pathPrefixToRoute.get(prefix);
+    }
+
+
+    /**
+     * Locate a route by the longest prefix matching the request path at a segment boundary.
+     */
+    public RouteMatch findRouteByPathPrefix(String path)
+    {
+        return routeTrie.findLongestPrefix(path);
+    }
+
+
+    /**
+     * Get the pool and request parameters of a route, the defaults if the route is not (or no longer) mapped.
+     */
+    public PoolSettings getPoolSettings(String route)
+    {
+        return routeToPoolSettings.getOrDefault(route, defaultPoolSettings);
+    }
+
+
+    /**
+     * Raw per-prefix route options as specified on the command line or in a routes file.
+     */
+    public static final class Definition
+    {
+        private final List<String> maps = new ArrayList<>();
+
+        private final List<String> balancers = new ArrayList<>();
+
+        private final List<String> caches = new ArrayList<>();
+
+        private final List<String> priorities = new ArrayList<>();
+
+        private final List<String> hedges = new ArrayList<>();
+
+        private final List<String> streams = new ArrayList<>();
+
+        private final List<String> compressions = new ArrayList<>();
+
+        private final List<String> compressTypes = new ArrayList<>();
+
+        private final List<String> affinities = new ArrayList<>();
+
+        private final List<String> rates = new ArrayList<>();
+
+        private final List<String> rateKeys = new ArrayList<>();
+
+        private final List<String> pools = new ArrayList<>();
+
+
+        public Definition()
+        {
+
+        }
+
+
+        private Definition(Definition other)
+        {
+            maps.addAll(other.maps);
+            balancers.addAll(other.balancers);
+            caches.addAll(other.caches);
+            priorities.addAll(other.priorities);
+            hedges.addAll(other.hedges);
+            streams.addAll(other.streams);
+            compressions.addAll(other.compressions);
+            compressTypes.addAll(other.compressTypes);
+            affinities.addAll(other.affinities);
+            rates.addAll(other.rates);
+            rateKeys.addAll(other.rateKeys);
+            pools.addAll(other.pools);
+        }
+
+
+        public Definition copy()
+        {
+            return new Definition(this);
+        }
+
+
+        /**
+         * Add an option, name is the option name with or without the "viceroy." prefix (map, balancer, ...).
+         */
+        public Definition add(String name, String value)
+        {
+            switch (name.startsWith("viceroy.") ? name.substring("viceroy.".length()) : name)
+            {
+                case "map":
+                    maps.add(value);
+                    break;
+
+                case "balancer":
+                    balancers.add(value);
+                    break;
+
+                case "cache":
+                    caches.add(value);
+                    break;
+
+                case "priority":
+                    priorities.add(value);
+                    break;
+
+                case "hedge":
+                    hedges.add(value);
+                    break;
+
+                case "stream":
+                    streams.add(value);
+                    break;
+
+                case "compress":
+                    compressions.add(value);
+                    break;
+
+                case "compressTypes":
+                    compressTypes.add(value);
+                    break;
+
+                case "affinity":
+                    affinities.add(value);
+                    break;
+
+                case "rate":
+                    rates.add(value);
+                    break;
+
+                case "rateKey":
+                    rateKeys.add(value);
+                    break;
+
+                case "pool":
+                    pools.add(value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown route option specified: " + name);
+            }
+
+            return this;
+        }
+
+
+        public Definition addAll(String name, List<String> values)
+        {
+            for (val value : values)
+            {
+                add(name, value);
+            }
+
+            return this;
+        }
+
+
+        /**
+         * Add the options of a routes file: one "OPTION PREFIX=VALUE" per line, blank lines and lines starting
+         * with # are ignored. Options may be written like on the command line, e.g. "--viceroy.map /item=item".
+         */
+        public Definition read(Path file) throws IOException
+        {
+            int lineNumber = 0;
+            for (val rawLine : Files.readAllLines(file, StandardCharsets.UTF_8))
+            {
+                ++lineNumber;
+                val line = rawLine.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                val parts = line.split("\\s+", 2);
+                if (parts.length != 2)
+                {
+                    throw new IllegalArgumentException("invalid route option in " + file + " line " + lineNumber + ": " + line);
+                }
+
+                add(parts[0].startsWith("--") ? parts[0].substring(2) : parts[0], parts[1]);
+            }
+
+            return this;
+        }
+    }
+}
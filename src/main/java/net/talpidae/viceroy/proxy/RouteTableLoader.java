@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.Getter;
+import lombok.val;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+/**
+ * Builds route tables from the command line options and the routes file and holds the current snapshot.
+ */
+final class RouteTableLoader
+{
+    /**
+     * Route options given on the command line, the routes file (if any) is applied on top of these.
+     */
+    private final RouteTable.Definition baseRoutes;
+
+    /**
+     * Path of the routes file, null if none was specified.
+     */
+    private final Path routesFile;
+
+    /**
+     * Pool and request parameters of routes without overrides.
+     */
+    private final PoolSettings poolSettings;
+
+    /**
+     * Current route table, replaced as a whole on every successful load.
+     */
+    @Getter
+    private volatile RouteTable routeTable;
+
+
+    RouteTableLoader(RouteTable.Definition baseRoutes, Path routesFile, PoolSettings poolSettings)
+    {
+        this.baseRoutes = baseRoutes.copy();
+        this.routesFile = routesFile;
+        this.poolSettings = poolSettings;
+    }
+
+
+    /**
+     * Rebuild the route table from the command line options and the routes file and publish it atomically.
+     *
+     * @throws IOException              if the routes file can't be read
+     * @throws IllegalArgumentException if the resulting route definition is invalid, the current table is kept
+     */
+    RouteTable load() throws IOException
+    {
+        val definition = baseRoutes.copy();
+        if (routesFile != null)
+        {
+            definition.read(routesFile);
+        }
+
+        val table = RouteTable.build(definition, poolSettings);
+        routeTable = table;
+
+        return table;
+    }
+}
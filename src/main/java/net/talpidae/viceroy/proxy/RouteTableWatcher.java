@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.viceroy.control.ControlPlane;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Polls the routes file for modifications and publishes a new route table when it changes.
+ * <p>
+ * Route state, target pools, limiters and sticky connections are keyed by route name or backend address
+ * and therefore survive the swap, only prefixes and per-route options change. An invalid file is logged
+ * and the current table is kept.
+ */
+@Singleton
+@Slf4j
+public class RouteTableWatcher
+{
+    private final ProxyConfig proxyConfig;
+
+    private final ControlPlane controlPlane;
+
+    private final Path file;
+
+    private final long interval;
+
+    private FileTime lastModified;
+
+    private long lastSize;
+
+
+    @Inject
+    public RouteTableWatcher(ProxyConfig proxyConfig, ControlPlane controlPlane)
+    {
+        this.proxyConfig = proxyConfig;
+        this.controlPlane = controlPlane;
+        this.file = proxyConfig.getRoutesFile();
+        this.interval = proxyConfig.getRoutesReload();
+    }
+
+
+    /**
+     * Start watching, does nothing if no routes file was specified or the interval is not positive.
+     */
+    public void start()
+    {
+        if (file == null || interval <= 0)
+        {
+            return;
+        }
+
+        checkModified();
+        controlPlane.scheduleWithFixedDelay("route table reload", this::reloadIfModified, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Record the current file attributes, returns true if they differ from the last check.
+     */
+    private boolean checkModified()
+    {
+        FileTime modified = null;
+        long size = -1;
+        try
+        {
+            modified = Files.getLastModifiedTime(file);
+            size = Files.size(file);
+        }
+        catch (IOException e)
+        {
+            // treat as changed once it reappears
+        }
+
+        val changed = !Objects.equals(modified, lastModified) || size != lastSize;
+        lastModified = modified;
+        lastSize = size;
+
+        return changed && modified != null;
+    }
+
+
+    private void reloadIfModified()
+    {
+        if (!checkModified())
+        {
+            return;
+        }
+
+        try
+        {
+            val table = proxyConfig.reloadRoutes();
+            log.info("reloaded route table from {}: {} prefixes", file, table.getPathPrefixToRoute().size());
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            log.error("failed to reload route table from {}, keeping current routes: {}", file, e.getMessage());
+        }
+    }
+}
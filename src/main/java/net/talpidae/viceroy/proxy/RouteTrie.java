@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+
+
+/**
+ * Immutable radix trie mapping path prefixes to routes.
+ * <p>
+ * Lookups perform a true longest-prefix match in a single pass over the path without allocating. A prefix only
+ * matches at a path segment boundary, that is if the path ends right after the prefix, continues with a '/' or
+ * the prefix itself ends with '/'. The empty prefix matches every path.
+ */
+public final class RouteTrie
+{
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final char[] NO_CHARS = new char[0];
+
+    private final Node root;
+
+
+    private RouteTrie(Node root)
+    {
+        this.root = root;
+    }
+
+
+    /**
+     * Build a trie from the specified routes, later routes override earlier routes with the same prefix.
+     */
+    public static RouteTrie build(Collection<RouteMatch> routes)
+    {
+        val root = new BuildNode("");
+        for (val route : routes)
+        {
+            root.insert(route.getPrefix(), 0, route);
+        }
+
+        return new RouteTrie(root.freeze());
+    }
+
+
+    private static boolean isSegmentBoundary(String path, int position)
+    {
+        return position == 0
+                || position == path.length()
+                || path.charAt(position) == '/'
+                || path.charAt(position - 1) == '/';
+    }
+
+
+    /**
+     * Find the route with the longest prefix matching path at a segment boundary.
+     *
+     * @return The best matching route or null, if there is none.
+     */
+    public RouteMatch findLongestPrefix(String path)
+    {
+        val length = path.length();
+        RouteMatch best = null;
+        Node node = root;
+        int position = 0;
+        while (true)
+        {
+            if (node.route != null && isSegmentBoundary(path, position))
+            {
+                best = node.route;
+            }
+
+            if (position >= length)
+            {
+                break;
+            }
+
+            val child = node.findChild(path.charAt(position));
+            if (child == null || !child.isLabelAt(path, position))
+            {
+                break;
+            }
+
+            position += child.label.length;
+            node = child;
+        }
+
+        return best;
+    }
+
+
+    private static final class Node
+    {
+        private final char[] label;
+
+        private final char[] firstChars;
+
+        private final Node[] children;
+
+        private final RouteMatch route;
+
+
+        private Node(char[] label, char[] firstChars, Node[] children, RouteMatch route)
+        {
+            this.label = label;
+            this.firstChars = firstChars;
+            this.children = children;
+            this.route = route;
+        }
+
+
+        private Node findChild(char c)
+        {
+            val index = Arrays.binarySearch(firstChars, c);
+
+            return index >= 0 ? children[index] : null;
+        }
+
+
+        private boolean isLabelAt(String path, int position)
+        {
+            val labelLength = label.length;
+            if (path.length() - position < labelLength)
+            {
+                return false;
+            }
+
+            // first char already matched by findChild()
+            for (int i = 1; i < labelLength; ++i)
+            {
+                if (path.charAt(position + i) != label[i])
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+
+    /**
+     * Mutable node used during construction only.
+     */
+    private static final class BuildNode
+    {
+        private final TreeMap<Character, BuildNode> children = new TreeMap<>();
+
+        private String label;
+
+        private RouteMatch route;
+
+
+        private BuildNode(String label)
+        {
+            this.label = label;
+        }
+
+
+        private static int commonPrefixLength(String a, int aOffset, String b)
+        {
+            val max = Math.min(a.length() - aOffset, b.length());
+            int i = 0;
+            while (i < max && a.charAt(aOffset + i) == b.charAt(i))
+            {
+                ++i;
+            }
+
+            return i;
+        }
+
+
+        private void insert(String key, int offset, RouteMatch value)
+        {
+            if (offset == key.length())
+            {
+                route = value;
+                return;
+            }
+
+            val first = key.charAt(offset);
+            val child = children.get(first);
+            if (child == null)
+            {
+                val leaf = new BuildNode(key.substring(offset));
+                leaf.route = value;
+                children.put(first, leaf);
+                return;
+            }
+
+            val common = commonPrefixLength(key, offset, child.label);
+            if (common < child.label.length())
+            {
+                // split the edge at the first differing character
+                val intermediate = new BuildNode(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                intermediate.children.put(child.label.charAt(0), child);
+                children.put(first, intermediate);
+
+                intermediate.insert(key, offset + common, value);
+            }
+            else
+            {
+                child.insert(key, offset + common, value);
+            }
+        }
+
+
+        private Node freeze()
+        {
+            val size = children.size();
+            val firstChars = size > 0 ? new char[size] : NO_CHARS;
+            val frozenChildren = size > 0 ? new Node[size] : NO_CHILDREN;
+            int i = 0;
+            for (val entry : children.entrySet())
+            {
+                firstChars[i] = entry.getKey();
+                frozenChildren[i] = entry.getValue().freeze();
+                ++i;
+            }
+
+            return new Node(label.toCharArray(), firstChars, frozenChildren, route);
+        }
+    }
+}
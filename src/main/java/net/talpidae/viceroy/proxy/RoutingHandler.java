@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import lombok.val;
+
+
+/**
+ * Resolves the route of a request once and attaches it to the exchange.
+ * <p>
+ * Later stages read the attachment instead of walking the route trie again, and all of them (including retries)
+ * see the same RouteMatch of the same RouteTable snapshot, even if the table is reloaded meanwhile.
+ */
+public class RoutingHandler implements HttpHandler
+{
+    private static final AttachmentKey<RouteMatch> ROUTE_KEY = AttachmentKey.create(RouteMatch.class);
+
+    private final HttpHandler next;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ServerWorker serverWorker;
+
+
+    public RoutingHandler(HttpHandler next, ProxyConfig proxyConfig, ServerWorker serverWorker)
+    {
+        this.next = next;
+        this.proxyConfig = proxyConfig;
+        this.serverWorker = serverWorker;
+    }
+
+
+    /**
+     * Get the route resolved for exchange.
+     *
+     * @return The route or null, if no route matches the request path.
+     */
+    public static RouteMatch getRoute(HttpServerExchange exchange)
+    {
+        return exchange.getAttachment(ROUTE_KEY);
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        serverWorker.bind(exchange);
+
+        val route = proxyConfig.findRouteByPathPrefix(exchange.getRelativePath());
+        if (route != null)
+        {
+            exchange.putAttachment(ROUTE_KEY, route);
+        }
+
+        next.handleRequest(exchange);
+    }
+}
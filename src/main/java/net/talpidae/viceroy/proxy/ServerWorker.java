@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.HttpServerExchange;
+import lombok.val;
+import org.xnio.XnioWorker;
+
+import javax.inject.Singleton;
+import java.util.function.Consumer;
+
+
+/**
+ * I/O worker and buffer pool of the server, learned from the first request.
+ * <p>
+ * Multiplexed backend connections are bound to the I/O thread that uses them, so connections opened ahead of
+ * requests (warm-up, minimum idle connections) need the I/O threads of the server.
+ */
+@Singleton
+public class ServerWorker
+{
+    private volatile XnioWorker worker;
+
+    private volatile ByteBufferPool bufferPool;
+
+
+    /**
+     * Remember the worker and buffer pool serving exchange, only the first call has an effect.
+     */
+    void bind(HttpServerExchange exchange)
+    {
+        if (worker == null)
+        {
+            bufferPool = exchange.getConnection().getByteBufferPool();
+            worker = exchange.getIoThread().getWorker();
+        }
+    }
+
+
+    /**
+     * Open multiplexed connections to pool on every I/O thread of the server until each has count idle ones.
+     *
+     * @param done Called with false if no request has been served yet or a connection failed (may be null).
+     */
+    public void openIdle(TargetPool pool, int count, Consumer<Boolean> done)
+    {
+        val worker = this.worker;
+        if (worker == null)
+        {
+            if (done != null)
+            {
+                done.accept(false);
+            }
+
+            return;
+        }
+
+        pool.openIdle(worker, bufferPool, count, done);
+    }
+}
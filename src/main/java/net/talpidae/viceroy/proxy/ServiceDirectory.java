@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.base.insect.state.ServiceState;
+import net.talpidae.viceroy.control.ControlPlane;
+import net.talpidae.viceroy.health.CircuitBreaker;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Non-blocking view of Insect service discovery.
+ * <p>
+ * Serves locally cached route to service snapshots and performs all (possibly blocking) lookups in a bounded
+ * discovery lane of the control plane, so a slow registry can't starve other control plane tasks. Callers on an I/O thread never wait for discovery, they either use the cached snapshot or park
+ * until the first lookup for a route completes.
+ */
+@Singleton
+@Slf4j
+public class ServiceDirectory
+{
+    /**
+     * Time a pool dropped by discovery must have been unused for before it is closed.
+     */
+    private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final ServiceLookup serviceLookup;
+
+    private final TargetPools targetPools;
+
+    private final ProxyConfig proxyConfig;
+
+    private final Executor discovery;
+
+    private final long refreshIntervalNanos;
+
+    private final long lookupTimeoutMillis;
+
+    private final long idleGraceNanos;
+
+    private final int breakerFailures;
+
+    private final long breakerOpenNanos;
+
+    private final ConcurrentHashMap<String, RouteState> routeStates = new ConcurrentHashMap<>();
+
+    /**
+     * Serializes publishing of new backend tables with pool eviction.
+     */
+    private final Object membershipLock = new Object();
+
+
+    @Inject
+    public ServiceDirectory(ServiceLookup serviceLookup, TargetPools targetPools, ControlPlane controlPlane, ProxyConfig proxyConfig)
+    {
+        this.serviceLookup = serviceLookup;
+        this.targetPools = targetPools;
+        this.proxyConfig = proxyConfig;
+        this.discovery = controlPlane.newLane("discovery", proxyConfig.getDiscoveryConcurrency());
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(proxyConfig.getDiscoveryRefresh());
+        this.lookupTimeoutMillis = proxyConfig.getDiscoveryTimeout();
+        this.idleGraceNanos = TimeUnit.MILLISECONDS.toNanos(proxyConfig.getPoolIdleGrace());
+        this.breakerFailures = proxyConfig.getBreakerFailures();
+        this.breakerOpenNanos = TimeUnit.MILLISECONDS.toNanos(proxyConfig.getBreakerOpenTime());
+
+        val maintenanceInterval = Math.min(DRAIN_MILLIS, Math.max(1000L, proxyConfig.getPoolIdleGrace() / 4));
+        controlPlane.scheduleWithFixedDelay("pool maintenance", this::maintain, maintenanceInterval, TimeUnit.MILLISECONDS);
+        if (refreshIntervalNanos > 0)
+        {
+            controlPlane.scheduleWithFixedDelay("discovery refresh", this::refreshResolved, proxyConfig.getDiscoveryRefresh(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Get the state of the route the specified match points to.
+     */
+    public RouteState getRouteState(RouteMatch routeMatch)
+    {
+        val state = routeStates.get(routeMatch.getRoute());
+        if (state != null)
+        {
+            return state;
+        }
+
+        return routeStates.computeIfAbsent(routeMatch.getRoute(), route -> new RouteState(route, new CircuitBreaker(breakerFailures, breakerOpenNanos)));
+    }
+
+
+    /**
+     * Get the states of all routes requested so far.
+     */
+    public Collection<RouteState> getRouteStates()
+    {
+        return routeStates.values();
+    }
+
+
+    /**
+     * Get the cached backends for a route without blocking, schedules a refresh if the snapshot is stale.
+     *
+     * @return The last known backends or null, if the route has never been resolved.
+     */
+    public BackendTable lookup(RouteState state)
+    {
+        val now = System.nanoTime();
+        state.markUsed(now);
+
+        val table = state.getTable();
+        if (table == null || now - state.getRefreshedAt() > refreshIntervalNanos)
+        {
+            refreshAsync(state);
+        }
+
+        return table;
+    }
+
+
+    /**
+     * Run waiter once the next lookup for the route finished (whether it found services or not).
+     */
+    public void await(RouteState state, Runnable waiter)
+    {
+        refreshAsync(state);
+        state.await(waiter);
+    }
+
+
+    private void refreshAsync(RouteState state)
+    {
+        if (state.tryBeginRefresh())
+        {
+            discovery.execute(() -> refresh(state));
+        }
+    }
+
+
+    /**
+     * Refresh all resolved routes in the background, so membership changes are picked up within one refresh
+     * interval and requests rarely find a stale table. Each lookup runs as its own task in the discovery lane.
+     */
+    private void refreshResolved()
+    {
+        for (val state : routeStates.values())
+        {
+            if (state.isResolved())
+            {
+                refreshAsync(state);
+            }
+        }
+    }
+
+
+    /**
+     * Only build a new table (and version) if the set of instances or the pool limits of the route changed.
+     * Every route table reload creates new settings instances, so they are compared by value.
+     */
+    private BackendTable rebuildOnChange(BackendTable current, List<? extends ServiceState> services, PoolSettings poolSettings)
+    {
+        final List<? extends ServiceState> members = (services != null) ? services : Collections.emptyList();
+        if (current != null && current.getPoolSettings().hasSamePoolLimits(poolSettings) && current.hasSameMembers(members))
+        {
+            return current;
+        }
+
+        val version = (current != null) ? current.getVersion() + 1 : 1L;
+
+        return BackendTable.build(version, members, targetPools, poolSettings, current);
+    }
+
+
+    private void refresh(RouteState state)
+    {
+        try
+        {
+            val services = serviceLookup.findServices(state.getRoute(), lookupTimeoutMillis);
+            val poolSettings = proxyConfig.getRouteTable().getPoolSettings(state.getRoute());
+            synchronized (membershipLock)
+            {
+                state.update(rebuildOnChange(state.getTable(), services, poolSettings), System.nanoTime());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("failed to discover services for route {}: {}", state.getRoute(), e.getMessage());
+        }
+        finally
+        {
+            state.endRefresh();
+        }
+    }
+
+
+    /**
+     * Forget routes idle past the grace period, evict drained pools no longer referenced by any route and top up
+     * the idle connections of the remaining ones.
+     */
+    private void maintain()
+    {
+        val now = System.nanoTime();
+        synchronized (membershipLock)
+        {
+            val referenced = Collections.newSetFromMap(new IdentityHashMap<TargetPool, Boolean>());
+            for (val state : routeStates.values())
+            {
+                state.evictIfIdle(now, idleGraceNanos);
+
+                val table = state.getTable();
+                if (table != null)
+                {
+                    for (val backend : table.getBackends())
+                    {
+                        referenced.add(backend.getPool());
+                    }
+                }
+            }
+
+            targetPools.evictUnreferenced(referenced, now, TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS));
+        }
+
+        targetPools.openIdle();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import net.talpidae.base.insect.Slave;
+import net.talpidae.base.insect.state.ServiceState;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+
+
+/**
+ * Looks up services through the Insect Slave.
+ */
+@Singleton
+public class SlaveServiceLookup implements ServiceLookup
+{
+    private final Slave slave;
+
+
+    @Inject
+    public SlaveServiceLookup(Slave slave)
+    {
+        this.slave = slave;
+    }
+
+
+    @Override
+    public List<? extends ServiceState> findServices(String route, long timeoutMillis) throws InterruptedException
+    {
+        return slave.findServices(route, timeoutMillis);
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import io.undertow.util.Transfer;
+import lombok.val;
+import net.talpidae.viceroy.log.AccessLogHandler;
+import net.talpidae.viceroy.stream.StreamBudget;
+import org.xnio.ChannelListeners;
+import org.xnio.XnioExecutor;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.xnio.IoUtils.safeClose;
+
+
+/**
+ * A single streamed exchange: connects to a backend, uploads the request body and streams back the response.
+ * <p>
+ * Connection failures are retried on other backends up to maxRetries times, once the request has been sent its
+ * body is consumed and the exchange fails with the backend. All callbacks run on the I/O thread of the exchange.
+ * <p>
+ * maxRequestTime bounds the time until the response headers arrive. The response body may take longer, but the
+ * exchange is aborted once no body bytes were sent for maxRequestTime, so a stalled backend can't hold the stream
+ * budget reservation forever.
+ */
+final class StreamedRequest implements ExchangeCompletionListener, ProxyCallback<ProxyConnection>, ClientCallback<ClientExchange>
+{
+    private final HttpServerExchange exchange;
+
+    private final RouteMatch route;
+
+    private final RouteState routeState;
+
+    private final BackendTable table;
+
+    private final InsectProxyClient proxyClient;
+
+    private final ByteBufferPool bufferPool;
+
+    private final StreamBudget budget;
+
+    private final long reservation;
+
+    private final String targetPath;
+
+    private final long startNanos = System.nanoTime();
+
+    private TargetPool pool;
+
+    private long attemptNanos;
+
+    private int failures;
+
+    private ClientConnection connection;
+
+    private boolean responded;
+
+    private XnioExecutor.Key timeoutTimer;
+
+    private long bytesSent;
+
+
+    StreamedRequest(HttpServerExchange exchange,
+                    RouteMatch route,
+                    RouteState routeState,
+                    BackendTable table,
+                    InsectProxyClient proxyClient,
+                    ByteBufferPool bufferPool,
+                    StreamBudget budget,
+                    long reservation)
+    {
+        this.exchange = exchange;
+        this.route = route;
+        this.routeState = routeState;
+        this.table = table;
+        this.proxyClient = proxyClient;
+        this.bufferPool = bufferPool;
+        this.budget = budget;
+        this.reservation = reservation;
+        this.targetPath = ProxyExchanges.getTargetPath(exchange, route);
+    }
+
+
+    void start()
+    {
+        exchange.addExchangeCompleteListener(this);
+
+        val maxRequestTime = route.getPoolSettings().getMaxRequestTime();
+        if (maxRequestTime > 0)
+        {
+            timeoutTimer = exchange.getIoThread().executeAfter(this::timeout, maxRequestTime, TimeUnit.MILLISECONDS);
+        }
+
+        connect();
+    }
+
+
+    private void connect()
+    {
+        pool = proxyClient.selectBackend(route, table, exchange);
+        if (pool == null)
+        {
+            routeState.getMetrics().unresolved();
+            respond(StatusCodes.SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        pool.getStats().begin();
+        attemptNanos = System.nanoTime();
+
+        val maxRequestTime = route.getPoolSettings().getMaxRequestTime();
+        val remainingMillis = (maxRequestTime > 0)
+                ? Math.max(1L, maxRequestTime - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+                : -1L;
+
+        pool.connect(route, exchange, this, remainingMillis, TimeUnit.MILLISECONDS, false);
+    }
+
+
+    private void timeout()
+    {
+        timeoutTimer = null;
+        if (!responded)
+        {
+            safeClose(connection);
+            respond(StatusCodes.GATEWAY_TIME_OUT);
+        }
+    }
+
+
+    /**
+     * Abort the exchange if the response body made no progress since the last check.
+     */
+    private void idleTimeout()
+    {
+        timeoutTimer = null;
+        if (exchange.isComplete())
+        {
+            return;
+        }
+
+        val sent = exchange.getResponseBytesSent();
+        if (sent == bytesSent)
+        {
+            // truncates the response, the exchange completes and releases its reservation
+            safeClose(connection);
+            safeClose(exchange.getConnection());
+            return;
+        }
+
+        bytesSent = sent;
+        timeoutTimer = exchange.getIoThread().executeAfter(this::idleTimeout, route.getPoolSettings().getMaxRequestTime(), TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Finish the exchange without backend response.
+     */
+    private void respond(int statusCode)
+    {
+        responded = true;
+        if (!exchange.isResponseStarted())
+        {
+            exchange.setStatusCode(statusCode);
+        }
+
+        exchange.endExchange();
+    }
+
+
+    private void abandon()
+    {
+        if (pool != null)
+        {
+            pool.getStats().abandon();
+            pool = null;
+        }
+    }
+
+
+    @Override
+    public void completed(HttpServerExchange exchange, ProxyConnection result)
+    {
+        connection = result.getConnection();
+        if (responded)
+        {
+            return;
+        }
+
+        val connectNanos = System.nanoTime() - attemptNanos;
+        pool.getMetrics().connected(connectNanos);
+        routeState.connected(connectNanos);
+        pool.openStream(exchange, result);
+        AccessLogHandler.upstream(exchange, pool.getSocketAddress(), connectNanos);
+
+        val request = ProxyExchanges.createRequest(exchange, targetPath);
+        val hasBody = StreamingHandler.hasRequestBody(exchange);
+        if (hasBody && exchange.getRequestContentLength() < 0)
+        {
+            request.getRequestHeaders().put(Headers.TRANSFER_ENCODING, Headers.CHUNKED.toString());
+        }
+
+        connection.sendRequest(request, new ClientCallback<ClientExchange>()
+        {
+            @Override
+            public void completed(ClientExchange result)
+            {
+                result.setResponseListener(StreamedRequest.this);
+                if (hasBody)
+                {
+                    Transfer.initiateTransfer(exchange.getRequestChannel(),
+                            result.getRequestChannel(),
+                            ChannelListeners.closingChannelListener(),
+                            ChannelListeners.writeShutdownChannelListener(
+                                    ChannelListeners.flushingChannelListener(null, ChannelListeners.closingChannelExceptionHandler()),
+                                    ChannelListeners.closingChannelExceptionHandler()),
+                            ChannelListeners.closingChannelExceptionHandler(),
+                            ChannelListeners.closingChannelExceptionHandler(),
+                            bufferPool);
+                }
+            }
+
+
+            @Override
+            public void failed(IOException e)
+            {
+                StreamedRequest.this.failed(e);
+            }
+        });
+    }
+
+
+    @Override
+    public void failed(HttpServerExchange exchange)
+    {
+        if (pool == null)
+        {
+            return;
+        }
+
+        pool.getMetrics().connectFailed();
+        routeState.connectFailed(System.nanoTime());
+        ProxyExchanges.failed(pool);
+        abandon();
+
+        if (!responded && failures++ < route.getMaxRetries())
+        {
+            // nothing has been sent yet, try another backend
+            routeState.getMetrics().retried();
+            connect();
+            return;
+        }
+
+        respond(StatusCodes.SERVICE_UNAVAILABLE);
+    }
+
+
+    @Override
+    public void queuedRequestFailed(HttpServerExchange exchange)
+    {
+        abandon();
+        respond(StatusCodes.SERVICE_UNAVAILABLE);
+    }
+
+
+    @Override
+    public void couldNotResolveBackend(HttpServerExchange exchange)
+    {
+        abandon();
+        respond(StatusCodes.SERVICE_UNAVAILABLE);
+    }
+
+
+    @Override
+    public void completed(ClientExchange result)
+    {
+        if (responded)
+        {
+            safeClose(result.getResponseChannel());
+            return;
+        }
+
+        responded = true;
+        if (timeoutTimer != null)
+        {
+            timeoutTimer.remove();
+            timeoutTimer = null;
+        }
+
+        val maxRequestTime = route.getPoolSettings().getMaxRequestTime();
+        if (maxRequestTime > 0)
+        {
+            bytesSent = -1L;
+            timeoutTimer = exchange.getIoThread().executeAfter(this::idleTimeout, maxRequestTime, TimeUnit.MILLISECONDS);
+        }
+
+        ProxyExchanges.forwardResponse(result, exchange, bufferPool);
+    }
+
+
+    @Override
+    public void failed(IOException e)
+    {
+        safeClose(connection);
+        if (pool != null)
+        {
+            ProxyExchanges.failed(pool);
+            abandon();
+        }
+
+        if (!responded)
+        {
+            respond(StatusCodes.SERVICE_UNAVAILABLE);
+        }
+    }
+
+
+    @Override
+    public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+    {
+        try
+        {
+            budget.release(reservation);
+            responded = true;
+            if (timeoutTimer != null)
+            {
+                timeoutTimer.remove();
+                timeoutTimer = null;
+            }
+
+            val now = System.nanoTime();
+            val statusCode = exchange.getStatusCode();
+            if (pool != null)
+            {
+                ProxyExchanges.completed(pool, statusCode, now - attemptNanos, now);
+                pool = null;
+            }
+
+            routeState.getMetrics().completed(statusCode, now - startNanos);
+        }
+        finally
+        {
+            nextListener.proceed();
+        }
+    }
+}
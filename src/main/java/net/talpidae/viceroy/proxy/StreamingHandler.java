@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+import lombok.val;
+import net.talpidae.viceroy.stream.StreamBuffers;
+
+
+/**
+ * Streams request and response bodies of routes in streaming mode through the large direct buffers of StreamBuffers.
+ * <p>
+ * Every stream reserves one buffer per direction from the buffer memory ceiling of its route, streams exceeding
+ * the ceiling are rejected with 503 Service Unavailable. Requests of other routes, upgrade requests and requests
+ * of routes that have not been resolved yet are passed on to next.
+ */
+public class StreamingHandler implements HttpHandler
+{
+    private final HttpHandler next;
+
+    private final InsectProxyClient proxyClient;
+
+    private final StreamBuffers streamBuffers;
+
+
+    public StreamingHandler(HttpHandler next, InsectProxyClient proxyClient, StreamBuffers streamBuffers)
+    {
+        this.next = next;
+        this.proxyClient = proxyClient;
+        this.streamBuffers = streamBuffers;
+    }
+
+
+    static boolean hasRequestBody(HttpServerExchange exchange)
+    {
+        return exchange.getRequestContentLength() > 0 || exchange.getRequestHeaders().contains(Headers.TRANSFER_ENCODING);
+    }
+
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception
+    {
+        val route = RoutingHandler.getRoute(exchange);
+        if (route == null || route.getStreamMemory() <= 0 || exchange.getRequestHeaders().contains(Headers.UPGRADE))
+        {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val directory = proxyClient.getDirectory();
+        val routeState = directory.getRouteState(route);
+        val table = directory.lookup(routeState);
+        if (table == null)
+        {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        val reservation = (long) streamBuffers.getBufferSize() * (hasRequestBody(exchange) ? 2 : 1);
+        val budget = streamBuffers.getBudget(route.getRoute());
+        if (!budget.tryReserve(reservation, route.getStreamMemory()))
+        {
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            exchange.endExchange();
+            return;
+        }
+
+        val request = new StreamedRequest(exchange, route, routeState, table, proxyClient, streamBuffers.getPool(), budget, reservation);
+        exchange.dispatch(SameThreadExecutor.INSTANCE, request::start);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.UndertowOptions;
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.UndertowClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ConnectionPoolErrorHandler;
+import io.undertow.server.handlers.proxy.ConnectionPoolManager;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyClient;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.server.handlers.proxy.ProxyConnectionPool;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.val;
+import net.talpidae.viceroy.health.BackendHealth;
+import net.talpidae.viceroy.health.HealthPolicy;
+import net.talpidae.viceroy.metrics.BackendMetrics;
+import net.talpidae.viceroy.proxy.balancer.BackendStats;
+import net.talpidae.viceroy.proxy.balancer.HashRing;
+import org.xnio.OptionMap;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.AVAILABLE;
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.FULL;
+
+
+/**
+ * Connection pool and error state of a single backend service instance.
+ */
+@Getter
+public class TargetPool extends ConnectionPoolErrorHandler.SimpleConnectionPoolErrorHandler implements ConnectionPoolManager
+{
+    private static final OptionMap DEFAULT_HTTP2_BACKEND_OPTIONS = OptionMap.builder()
+            .set(UndertowOptions.BUFFER_PIPELINED_DATA, true)
+            .set(UndertowOptions.ENABLE_HTTP2, true)
+            .set(UndertowOptions.HTTP2_SETTINGS_ENABLE_PUSH, false)
+            .getMap();
+
+    private static final long USAGE_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+
+    private final InetSocketAddress socketAddress;
+
+    private final ProxyConnectionPool connectionPool;
+
+    private final BackendStats stats = new BackendStats();
+
+    private final BackendMetrics metrics;
+
+    private final BackendHealth health;
+
+    /**
+     * Pool parameters resolved for this backend when the pool was created.
+     */
+    private final PoolSettings settings;
+
+    /**
+     * Positions of this backend on consistent hash rings, derived from its address only.
+     */
+    private final long[] ringPoints;
+
+    @Getter(AccessLevel.NONE)
+    private final UndertowClient client;
+
+    @Getter(AccessLevel.NONE)
+    private final URI uri;
+
+    @Getter(AccessLevel.NONE)
+    private final OptionMap optionMap;
+
+    /**
+     * Multiplexed connections by I/O thread.
+     */
+    @Getter(AccessLevel.NONE)
+    private final ConcurrentHashMap<Thread, MultiplexedConnections> multiplexedConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Last time (System.nanoTime()) this pool was selected, updated with coarse granularity only.
+     */
+    private volatile long lastUsed = System.nanoTime();
+
+
+    protected TargetPool(InetSocketAddress socketAddress, PoolSettings settings, UndertowClient client)
+    {
+        this(socketAddress, settings, HealthPolicy.DISABLED, client);
+    }
+
+
+    protected TargetPool(InetSocketAddress socketAddress, PoolSettings settings, HealthPolicy healthPolicy, UndertowClient client)
+    {
+        this.socketAddress = socketAddress;
+        this.settings = settings;
+        this.metrics = new BackendMetrics(socketAddress);
+        this.health = new BackendHealth(healthPolicy);
+        this.ringPoints = HashRing.pointsOf(socketAddress);
+        this.client = client;
+
+        this.uri = URI.create("http://" + socketAddress.getHostString() + ":" + socketAddress.getPort());
+        this.optionMap = OptionMap.builder().addAll(DEFAULT_HTTP2_BACKEND_OPTIONS)
+                .getMap();
+
+        this.connectionPool = new ProxyConnectionPool(this, uri, client, optionMap);
+    }
+
+
+    /**
+     * Get the current availability of this pool for the calling I/O thread.
+     */
+    public ProxyConnectionPool.AvailabilityType available()
+    {
+        // the connection pool counts connections only, multiplexed ones are full once all their streams are taken
+        val connectionAvailability = connectionPool.available();
+        val connections = getConnections((XnioIoThread) Thread.currentThread());
+        val availability = (connectionAvailability == AVAILABLE && connections.isSaturated(settings.getH2MaxConnections(), settings.getH2MaxStreams()))
+                ? FULL
+                : connectionAvailability;
+
+        // availability is per I/O thread, so are its transitions
+        if (availability != connections.getLastAvailability())
+        {
+            connections.setLastAvailability(availability);
+            metrics.availabilityChanged(availability);
+        }
+
+        return availability;
+    }
+
+
+    /**
+     * Get the state of this pool for ioThread, creating it if necessary. Must be called on ioThread.
+     */
+    private MultiplexedConnections getConnections(XnioIoThread ioThread)
+    {
+        MultiplexedConnections connections = multiplexedConnections.get(ioThread);
+        if (connections == null)
+        {
+            connections = new MultiplexedConnections(ioThread);
+            multiplexedConnections.put(ioThread, connections);
+        }
+
+        return connections;
+    }
+
+
+    /**
+     * Get a connection to this backend for exchange.
+     * <p>
+     * Non-exclusive exchanges go to the least loaded multiplexed connection of the I/O thread that has a free stream.
+     * If all are busy another one is opened (up to h2MaxConnections), the ProxyConnectionPool is asked otherwise.
+     */
+    void connect(ProxyClient.ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit, boolean exclusive)
+    {
+        if (!exclusive)
+        {
+            val connections = multiplexedConnections.get(exchange.getIoThread());
+            if (connections != null)
+            {
+                val connection = connections.select(settings.getH2MaxStreams());
+                if (connection != null)
+                {
+                    callback.completed(exchange, connection);
+                    return;
+                }
+
+                if (connections.tryBeginOpen(settings.getH2MaxConnections()))
+                {
+                    openMultiplexed(connections, exchange, callback);
+                    return;
+                }
+            }
+        }
+
+        connectionPool.connect(target, exchange, callback, timeout, timeUnit, exclusive);
+    }
+
+
+    private void openMultiplexed(MultiplexedConnections connections, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback)
+    {
+        client.connect(new ClientCallback<ClientConnection>()
+        {
+            @Override
+            public void completed(ClientConnection result)
+            {
+                val connection = new ProxyConnection(result, (uri.getPath() == null) ? "/" : uri.getPath());
+                connections.endOpen(connection);
+                callback.completed(exchange, connection);
+            }
+
+
+            @Override
+            public void failed(IOException e)
+            {
+                connections.endOpen(null);
+                callback.failed(exchange);
+            }
+        }, uri, exchange.getIoThread(), exchange.getConnection().getByteBufferPool(), optionMap);
+    }
+
+
+    /**
+     * Open multiplexed connections on every I/O thread of worker until each has count idle ones (at most
+     * h2MaxConnections), so requests don't wait for connection setup. Backends without HTTP/2 support are connected
+     * to once per thread only, these connections are closed again.
+     *
+     * @param done Called once all threads are done, with false if a connection failed (may be null).
+     */
+    public void openIdle(XnioWorker worker, ByteBufferPool bufferPool, int count, Consumer<Boolean> done)
+    {
+        val threads = worker.getIoThreadCount();
+        val remaining = new AtomicInteger(threads);
+        val succeeded = new AtomicBoolean(true);
+        final Consumer<Boolean> threadDone = success ->
+        {
+            if (!success)
+            {
+                succeeded.set(false);
+            }
+
+            if (remaining.decrementAndGet() == 0 && done != null)
+            {
+                done.accept(succeeded.get());
+            }
+        };
+
+        for (int i = 0; i < threads; ++i)
+        {
+            val ioThread = worker.getIoThread(i);
+            ioThread.execute(() -> openIdle(getConnections(ioThread), bufferPool, count, threadDone));
+        }
+    }
+
+
+    /**
+     * Open idle connections one after another until count are idle. Must be called on the I/O thread of connections.
+     */
+    private void openIdle(MultiplexedConnections connections, ByteBufferPool bufferPool, int count, Consumer<Boolean> done)
+    {
+        if (!connections.tryBeginOpenIdle(count, settings.getH2MaxConnections()))
+        {
+            done.accept(true);
+            return;
+        }
+
+        client.connect(new ClientCallback<ClientConnection>()
+        {
+            @Override
+            public void completed(ClientConnection result)
+            {
+                if (connections.endOpenIdle(new ProxyConnection(result, (uri.getPath() == null) ? "/" : uri.getPath())))
+                {
+                    openIdle(connections, bufferPool, count, done);
+                }
+                else
+                {
+                    done.accept(true);
+                }
+            }
+
+
+            @Override
+            public void failed(IOException e)
+            {
+                connections.endOpenIdle(null);
+                done.accept(false);
+            }
+        }, uri, connections.getIoThread(), bufferPool, optionMap);
+    }
+
+
+    /**
+     * Account a stream opened for exchange on connection until the exchange completes, if connection is multiplexed.
+     * Must be called on the I/O thread of exchange once a connection was obtained.
+     */
+    void openStream(HttpServerExchange exchange, ProxyConnection connection)
+    {
+        val streams = getConnections(exchange.getIoThread());
+        if (!connection.getConnection().isMultiplexingSupported() && !streams.contains(connection))
+        {
+            return;
+        }
+
+        streams.begin(connection);
+        exchange.addExchangeCompleteListener((completedExchange, nextListener) ->
+        {
+            try
+            {
+                streams.end(connection, settings.getMinIdleConnections());
+            }
+            finally
+            {
+                nextListener.proceed();
+            }
+        });
+    }
+
+
+    /**
+     * Record usage of this pool, avoids writing the shared field more than once per millisecond.
+     */
+    void markUsed()
+    {
+        val now = System.nanoTime();
+        if (now - lastUsed > USAGE_GRANULARITY_NANOS)
+        {
+            lastUsed = now;
+        }
+    }
+
+
+    boolean isIdle(long now, long graceNanos)
+    {
+        return now - lastUsed > graceNanos && stats.getOutstanding() == 0;
+    }
+
+
+    /**
+     * Close this pool. Connections still in use are closed when they are returned.
+     */
+    void retire()
+    {
+        connectionPool.close();
+
+        for (val connections : multiplexedConnections.values())
+        {
+            connections.getIoThread().execute(connections::closeAll);
+        }
+    }
+
+    @Override
+    public int getProblemServerRetry()
+    {
+        return settings.getProblemServerRetry();
+    }
+
+    @Override
+    public int getMaxConnections()
+    {
+        return settings.getMaxConnections();
+    }
+
+    @Override
+    public int getMaxCachedConnections()
+    {
+        return settings.getMaxCachedConnections();
+    }
+
+    @Override
+    public int getSMaxConnections()
+    {
+        return settings.getSMaxConnections();
+    }
+
+    @Override
+    public long getTtl()
+    {
+        return settings.getTtl();
+    }
+
+    @Override
+    public int getMaxQueueSize()
+    {
+        return settings.getMaxQueueSize();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.UndertowClient;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.talpidae.viceroy.health.BackendWarmer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Registry of the connection pools of all known backend instances.
+ * <p>
+ * There is a single pool per backend address, shared by all routes to the backend, so health, metrics and ring
+ * positions are per backend. Its limits are resolved once when the pool is created: the settings of the route that
+ * resolved the backend first, with the overrides of the backend taking precedence. Routes (or reloaded route
+ * settings) asking for different limits get the existing pool and a warning, the new limits apply once no route
+ * uses the backend anymore and its pool has been evicted.
+ */
+@Singleton
+@Slf4j
+public class TargetPools
+{
+    private final UndertowClient client = UndertowClient.getInstance();
+
+    private final ConcurrentHashMap<InetSocketAddress, TargetPool> serviceToState = new ConcurrentHashMap<>();
+
+    private final ProxyConfig config;
+
+    private final BackendWarmer warmer;
+
+    private final ServerWorker serverWorker;
+
+    /**
+     * Pools a settings mismatch has been reported for already.
+     */
+    private final Set<TargetPool> mismatchReported = ConcurrentHashMap.newKeySet();
+
+
+    @Inject
+    public TargetPools(ProxyConfig config, BackendWarmer warmer, ServerWorker serverWorker)
+    {
+        this.config = config;
+        this.warmer = warmer;
+        this.serverWorker = serverWorker;
+    }
+
+
+    /**
+     * Get the pool for a backend address, creating (and warming up) it if necessary.
+     * New pools are created with routeSettings and the overrides of the backend, existing pools keep their settings.
+     */
+    public TargetPool get(InetSocketAddress targetServiceAddress, PoolSettings routeSettings)
+    {
+        val settings = config.getBackendPoolSettings(targetServiceAddress, (routeSettings != null) ? routeSettings : config.getPoolSettings());
+        val existing = serviceToState.get(targetServiceAddress);
+        if (existing != null)
+        {
+            reportMismatch(existing, settings);
+            return existing;
+        }
+
+        val created = new TargetPool(targetServiceAddress, settings, config.getHealthPolicy(), client);
+        val pool = serviceToState.putIfAbsent(targetServiceAddress, created);
+        if (pool != null)
+        {
+            // lost the race, nothing to clean up as the pool never connected
+            return pool;
+        }
+
+        warmer.warm(created);
+
+        return created;
+    }
+
+
+    private void reportMismatch(TargetPool pool, PoolSettings requested)
+    {
+        val settings = pool.getSettings();
+        if (settings != requested && !settings.hasSamePoolLimits(requested) && mismatchReported.add(pool))
+        {
+            log.warn("pool for {} is shared by routes with different limits, keeping maxConnections={}, maxQueueSize={}, h2MaxConnections={}, h2MaxStreams={} while it is in use",
+                    pool.getSocketAddress(), settings.getMaxConnections(), settings.getMaxQueueSize(), settings.getH2MaxConnections(), settings.getH2MaxStreams());
+        }
+    }
+
+
+    /**
+     * Get all pools currently alive.
+     */
+    public Collection<TargetPool> getPools()
+    {
+        return serviceToState.values();
+    }
+
+
+    /**
+     * Get the number of pools currently alive.
+     */
+    public int getLivePoolCount()
+    {
+        return serviceToState.size();
+    }
+
+
+    /**
+     * Top up the idle multiplexed connections of all pools to their minimum, ejected backends are skipped.
+     */
+    void openIdle()
+    {
+        for (val pool : serviceToState.values())
+        {
+            val minIdle = pool.getSettings().getMinIdleConnections();
+            if (minIdle > 0 && !pool.getHealth().isEjected())
+            {
+                serverWorker.openIdle(pool, minIdle, null);
+            }
+        }
+    }
+
+
+    /**
+     * Retire and remove all pools that are not referenced and have been unused for drainNanos.
+     */
+    void evictUnreferenced(Set<TargetPool> referenced, long now, long drainNanos)
+    {
+        for (val pool : serviceToState.values())
+        {
+            if (!referenced.contains(pool) && pool.isIdle(now, drainNanos))
+            {
+                if (serviceToState.remove(pool.getSocketAddress(), pool))
+                {
+                    mismatchReported.remove(pool);
+                    pool.retire();
+                    log.debug("evicted pool for {}, {} pools alive", pool.getSocketAddress(), serviceToState.size());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import lombok.val;
+
+
+/**
+ * Request attribute that pins requests of a route to a backend: a header, a cookie, a path segment or the client address.
+ * <p>
+ * Hashing reads the attribute in place, no strings are extracted from the request.
+ */
+public final class AffinityKey
+{
+    /**
+     * Returned by hash() for requests that don't carry the key.
+     */
+    public static final long NO_KEY = 0L;
+
+    private final Source source;
+
+    private final HttpString header;
+
+    private final String cookie;
+
+    private final int segment;
+
+
+    private AffinityKey(Source source, HttpString header, String cookie, int segment)
+    {
+        this.source = source;
+        this.header = header;
+        this.cookie = cookie;
+        this.segment = segment;
+    }
+
+
+    /**
+     * Parse a key specification (header:NAME, cookie:NAME, path:INDEX or ip), path segments are counted from 1.
+     */
+    public static AffinityKey parse(String spec)
+    {
+        val colon = spec.indexOf(':');
+        val kind = (colon >= 0) ? spec.substring(0, colon).trim() : spec.trim();
+        val argument = (colon >= 0) ? spec.substring(colon + 1).trim() : "";
+        switch (kind)
+        {
+            case "header":
+                return new AffinityKey(Source.HEADER, new HttpString(requireArgument(spec, argument)), null, 0);
+
+            case "cookie":
+                return new AffinityKey(Source.COOKIE, null, requireArgument(spec, argument), 0);
+
+            case "path":
+                try
+                {
+                    val segment = Integer.parseInt(requireArgument(spec, argument));
+                    if (segment >= 1)
+                    {
+                        return new AffinityKey(Source.PATH, null, null, segment);
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    // fall through
+                }
+                throw new IllegalArgumentException("invalid path segment specified for affinity: " + spec);
+
+            case "ip":
+                if (argument.isEmpty())
+                {
+                    return new AffinityKey(Source.IP, null, null, 0);
+                }
+                // fall through
+
+            default:
+                throw new IllegalArgumentException("unknown affinity key specified: " + spec);
+        }
+    }
+
+
+    private static String requireArgument(String spec, String argument)
+    {
+        if (argument.isEmpty())
+        {
+            throw new IllegalArgumentException("missing name for affinity key: " + spec);
+        }
+
+        return argument;
+    }
+
+
+    private static long nonZero(long hash)
+    {
+        return (hash != NO_KEY) ? hash : 1L;
+    }
+
+
+    /**
+     * Hash of the key carried by exchange.
+     *
+     * @return The 64 bit hash or NO_KEY, if the request doesn't carry the key.
+     */
+    public long hash(HttpServerExchange exchange)
+    {
+        switch (source)
+        {
+            case HEADER:
+            {
+                val value = exchange.getRequestHeaders().getFirst(header);
+                return (value != null) ? nonZero(HashRing.hash(value, 0, value.length())) : NO_KEY;
+            }
+
+            case COOKIE:
+                return hashCookie(exchange);
+
+            case PATH:
+                return hashSegment(exchange.getRelativePath());
+
+            case IP:
+            {
+                val sourceAddress = exchange.getSourceAddress();
+                val address = (sourceAddress != null) ? sourceAddress.getAddress() : null;
+                return (address != null) ? nonZero(HashRing.mix(address.hashCode())) : NO_KEY;
+            }
+
+            default:
+                return NO_KEY;
+        }
+    }
+
+
+    private long hashCookie(HttpServerExchange exchange)
+    {
+        val values = exchange.getRequestHeaders().get(Headers.COOKIE);
+        if (values == null)
+        {
+            return NO_KEY;
+        }
+
+        // indexed access, iterating HeaderValues allocates
+        val nameLength = cookie.length();
+        for (int i = 0; i < values.size(); ++i)
+        {
+            val value = values.get(i);
+            val length = value.length();
+            int start = 0;
+            while (start < length)
+            {
+                while (start < length && (value.charAt(start) == ' ' || value.charAt(start) == ';'))
+                {
+                    ++start;
+                }
+
+                int end = value.indexOf(';', start);
+                if (end < 0)
+                {
+                    end = length;
+                }
+
+                val valueStart = start + nameLength;
+                if (valueStart < end && value.charAt(valueStart) == '=' && value.startsWith(cookie, start))
+                {
+                    return nonZero(HashRing.hash(value, valueStart + 1, end));
+                }
+
+                start = end + 1;
+            }
+        }
+
+        return NO_KEY;
+    }
+
+
+    private long hashSegment(String path)
+    {
+        val length = path.length();
+        int start = 0;
+        for (int i = 0; i < segment; ++i)
+        {
+            // skip to the first character of the next segment
+            while (start < length && path.charAt(start) == '/')
+            {
+                ++start;
+            }
+
+            if (start >= length)
+            {
+                return NO_KEY;
+            }
+
+            int end = start;
+            while (end < length && path.charAt(end) != '/' && path.charAt(end) != '?')
+            {
+                ++end;
+            }
+
+            if (i == segment - 1)
+            {
+                return nonZero(HashRing.hash(path, start, end));
+            }
+
+            start = end;
+        }
+
+        return NO_KEY;
+    }
+
+
+    private enum Source
+    {
+        HEADER,
+        COOKIE,
+        PATH,
+        IP
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import lombok.val;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lock-free load counters of a single backend, updated by all I/O threads.
+ */
+public final class BackendStats
+{
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Latency assumed for backends that have not completed any request yet.
+     */
+    private static final double INITIAL_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicLong peakEwmaBits = new AtomicLong(Double.doubleToRawLongBits(INITIAL_LATENCY_NANOS));
+
+    private final AtomicLong lastObservation = new AtomicLong(System.nanoTime());
+
+
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+
+    /**
+     * Get the peak-EWMA latency in nanoseconds.
+     */
+    public double getPeakEwma()
+    {
+        return Double.longBitsToDouble(peakEwmaBits.get());
+    }
+
+
+    /**
+     * Get the expected cost of sending one more request to this backend.
+     */
+    public double getCost()
+    {
+        return getPeakEwma() * (getOutstanding() + 1);
+    }
+
+
+    /**
+     * A request has been sent to this backend.
+     */
+    public void begin()
+    {
+        outstanding.incrementAndGet();
+    }
+
+
+    /**
+     * A request failed before completion (no latency sample).
+     */
+    public void abandon()
+    {
+        outstanding.decrementAndGet();
+    }
+
+
+    /**
+     * A request completed after latencyNanos.
+     */
+    public void complete(long latencyNanos)
+    {
+        outstanding.decrementAndGet();
+
+        val now = System.nanoTime();
+        val elapsed = Math.max(0L, now - lastObservation.getAndSet(now));
+        val weight = Math.exp(-elapsed / DECAY_NANOS);
+        while (true)
+        {
+            val bits = peakEwmaBits.get();
+            val ewma = Double.longBitsToDouble(bits);
+            val updated = (latencyNanos > ewma) ? latencyNanos : ewma * weight + latencyNanos * (1.0 - weight);
+            if (peakEwmaBits.compareAndSet(bits, Double.doubleToRawLongBits(updated)))
+            {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Source of non-cryptographic randomness for backend selection.
+ * <p>
+ * Backed by per-thread state, so the I/O threads never contend on a shared seed (unlike AtomicXorShiftRandom).
+ */
+public final class CheapRandom
+{
+    private CheapRandom()
+    {
+
+    }
+
+
+    /**
+     * Get a random int in the range [0, bound).
+     */
+    public static int nextInt(int bound)
+    {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.util.AttachmentList;
+import lombok.val;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+
+/**
+ * Consistent hash ring over the backends of a route with bounded load.
+ * <p>
+ * Every backend owns a fixed number of points derived from its address only, so a membership change moves about
+ * 1/N of the keys. Points are packed into a sorted long[] as hash bits with the owner index in the low bits. A rebuild
+ * after a membership change keeps the surviving points in order and merges in the points of new backends, without
+ * hashing or sorting everything again. Lookups walk the ring from the key and skip backends that are ineligible or
+ * above LOAD_FACTOR times the mean load. Each backend is checked once per lookup, a lookup only allocates (a bit set
+ * of checked backends) if the owner of the key can't take the request.
+ */
+public final class HashRing
+{
+    public static final int POINTS_PER_BACKEND = 128;
+
+    private static final int OWNER_BITS = 16;
+
+    private static final long OWNER_MASK = (1L << OWNER_BITS) - 1;
+
+    private static final int MAX_BACKENDS = 1 << OWNER_BITS;
+
+    private static final double LOAD_FACTOR = 1.25;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long[] points;
+
+    private final TargetPool[] owners;
+
+
+    private HashRing(long[] points, TargetPool[] owners)
+    {
+        this.points = points;
+        this.owners = owners;
+    }
+
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of a weak hash.
+     */
+    public static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+
+    /**
+     * 64 bit hash of the characters from (inclusive) to (exclusive) of s.
+     */
+    public static long hash(CharSequence s, int from, int to)
+    {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = from; i < to; ++i)
+        {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+
+        return mix(h);
+    }
+
+
+    /**
+     * Sorted ring positions of a backend, the owner bits are cleared.
+     */
+    public static long[] pointsOf(InetSocketAddress socketAddress)
+    {
+        val host = socketAddress.getHostString();
+        val seed = hash(host, 0, host.length()) ^ mix(socketAddress.getPort());
+
+        val points = new long[POINTS_PER_BACKEND];
+        for (int i = 0; i < points.length; ++i)
+        {
+            points[i] = mix(seed + i * GOLDEN_GAMMA) & ~OWNER_MASK;
+        }
+        Arrays.sort(points);
+
+        return points;
+    }
+
+
+    private static int indexOf(TargetPool[] pools, TargetPool pool)
+    {
+        for (int i = 0; i < pools.length; ++i)
+        {
+            if (pools[i] == pool)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Build the ring of backends, reusing the ordered points of previous (may be null).
+     */
+    public static HashRing build(HashRing previous, Backend[] backends)
+    {
+        val owners = new TargetPool[Math.min(backends.length, MAX_BACKENDS)];
+        for (int i = 0; i < owners.length; ++i)
+        {
+            owners[i] = backends[i].getPool();
+        }
+
+        // surviving points keep their order, only the owner index changes
+        val known = new boolean[owners.length];
+        val kept = new long[(previous != null) ? previous.points.length : 0];
+        int keptCount = 0;
+        if (previous != null)
+        {
+            val remap = new int[previous.owners.length];
+            for (int i = 0; i < remap.length; ++i)
+            {
+                remap[i] = indexOf(owners, previous.owners[i]);
+                if (remap[i] >= 0)
+                {
+                    known[remap[i]] = true;
+                }
+            }
+
+            for (val point : previous.points)
+            {
+                val owner = remap[(int) (point & OWNER_MASK)];
+                if (owner >= 0)
+                {
+                    kept[keptCount++] = (point & ~OWNER_MASK) | owner;
+                }
+            }
+        }
+
+        int addedCount = 0;
+        for (val isKnown : known)
+        {
+            if (!isKnown)
+            {
+                addedCount += POINTS_PER_BACKEND;
+            }
+        }
+
+        val added = new long[addedCount];
+        addedCount = 0;
+        for (int i = 0; i < owners.length; ++i)
+        {
+            if (!known[i])
+            {
+                for (val point : owners[i].getRingPoints())
+                {
+                    added[addedCount++] = point | i;
+                }
+            }
+        }
+        Arrays.sort(added);
+
+        // merge both sorted runs
+        val points = new long[keptCount + addedCount];
+        int k = 0;
+        int a = 0;
+        for (int i = 0; i < points.length; ++i)
+        {
+            points[i] = (a >= addedCount || (k < keptCount && kept[k] <= added[a])) ? kept[k++] : added[a++];
+        }
+
+        return new HashRing(points, owners);
+    }
+
+
+    /**
+     * Index of the first point at or after keyHash, wrapping around.
+     */
+    private int pointIndexOf(long keyHash)
+    {
+        int index = Arrays.binarySearch(points, keyHash & ~OWNER_MASK);
+        if (index < 0)
+        {
+            index = -index - 1;
+        }
+
+        return (index < points.length) ? index : 0;
+    }
+
+
+    /**
+     * Get the backend owning keyHash, regardless of its eligibility and load.
+     *
+     * @return The owner or null, if the ring is empty.
+     */
+    TargetPool getOwner(long keyHash)
+    {
+        return (points.length > 0) ? owners[(int) (points[pointIndexOf(keyHash)] & OWNER_MASK)] : null;
+    }
+
+
+    /**
+     * Select the backend owning keyHash, or the next eligible one along the ring if it is ineligible or overloaded.
+     * The walk ends once every backend has been checked, callers fall back to their load balancer on null.
+     *
+     * @return The selected pool or null, if none is eligible.
+     */
+    public TargetPool select(long keyHash, AttachmentList<TargetPool> attempted)
+    {
+        if (points.length == 0)
+        {
+            return null;
+        }
+
+        long outstanding = 0;
+        for (val owner : owners)
+        {
+            outstanding += owner.getStats().getOutstanding();
+        }
+        val bound = (long) Math.ceil(LOAD_FACTOR * (outstanding + 1) / owners.length);
+
+        int index = pointIndexOf(keyHash);
+        TargetPool overloaded = null;
+        long[] checked = null;
+        int checkedCount = 0;
+        for (int i = 0; i < points.length; ++i)
+        {
+            if (index >= points.length)
+            {
+                index = 0;
+            }
+
+            val owner = (int) (points[index] & OWNER_MASK);
+            if (checked == null || (checked[owner >>> 6] & (1L << owner)) == 0)
+            {
+                val pool = owners[owner];
+                if (LoadBalancer.isEligible(pool, attempted))
+                {
+                    if (pool.getStats().getOutstanding() < bound)
+                    {
+                        return pool;
+                    }
+
+                    if (overloaded == null)
+                    {
+                        overloaded = pool;
+                    }
+                }
+
+                // skip further points of this backend, its availability won't change during the walk
+                if (++checkedCount >= owners.length)
+                {
+                    break;
+                }
+
+                if (checked == null)
+                {
+                    checked = new long[(owners.length + 63) >>> 6];
+                }
+                checked[owner >>> 6] |= 1L << owner;
+            }
+
+            ++index;
+        }
+
+        return overloaded;
+    }
+}
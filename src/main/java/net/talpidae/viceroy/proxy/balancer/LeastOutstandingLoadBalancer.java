@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.util.AttachmentList;
+import lombok.val;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+
+/**
+ * Picks the eligible backend with the fewest outstanding requests, ties are broken by a random start index.
+ */
+public final class LeastOutstandingLoadBalancer implements LoadBalancer
+{
+    public static final LeastOutstandingLoadBalancer INSTANCE = new LeastOutstandingLoadBalancer();
+
+
+    private LeastOutstandingLoadBalancer()
+    {
+
+    }
+
+
+    @Override
+    public TargetPool select(Backend[] backends, AttachmentList<TargetPool> attempted)
+    {
+        TargetPool best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+
+        val size = backends.length;
+        if (size > 0)
+        {
+            val startIndex = CheapRandom.nextInt(size);
+            for (int i = 0; i < size; ++i)
+            {
+                int index = startIndex + i;
+                if (index >= size)
+                {
+                    index -= size;
+                }
+
+                val pool = backends[index].getPool();
+                val outstanding = pool.getStats().getOutstanding();
+                if (outstanding < bestOutstanding && LoadBalancer.isEligible(pool, attempted))
+                {
+                    best = pool;
+                    bestOutstanding = outstanding;
+                    if (outstanding == 0)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.util.AttachmentList;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+import static io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType.AVAILABLE;
+
+
+/**
+ * Strategy for picking one backend of a route for a new request.
+ * <p>
+ * Implementations are stateless and shared across all I/O threads, any per-backend counters live in the
+ * BackendStats of the respective TargetPool.
+ */
+public interface LoadBalancer
+{
+    /**
+     * Check if a pool has not been tried yet for the current exchange, is not ejected (or throttled by slow-start)
+     * and is able to take a request right now.
+     */
+    static boolean isEligible(TargetPool pool, AttachmentList<TargetPool> attempted)
+    {
+        return (attempted == null || !attempted.contains(pool))
+                && pool.getHealth().isSelectable()
+                && pool.available() == AVAILABLE;
+    }
+
+
+    /**
+     * Select an eligible backend pool.
+     *
+     * @param backends  Current backends of the route, must not be modified.
+     * @param attempted Pools already tried for the exchange, may be null.
+     * @return The selected pool or null, if none is eligible.
+     */
+    TargetPool select(Backend[] backends, AttachmentList<TargetPool> attempted);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+
+/**
+ * Lookup of the available load balancing strategies by their configuration name.
+ */
+public final class LoadBalancers
+{
+    private LoadBalancers()
+    {
+
+    }
+
+
+    /**
+     * Get the strategy named by name (random, least, p2c, ewma).
+     */
+    public static LoadBalancer forName(String name)
+    {
+        switch (name)
+        {
+            case "random":
+                return RandomLoadBalancer.INSTANCE;
+
+            case "least":
+                return LeastOutstandingLoadBalancer.INSTANCE;
+
+            case "p2c":
+                return PowerOfTwoChoicesLoadBalancer.INSTANCE;
+
+            case "ewma":
+                return PeakEwmaLoadBalancer.INSTANCE;
+
+            default:
+                throw new IllegalArgumentException("unknown load balancer specified: " + name);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import net.talpidae.viceroy.proxy.TargetPool;
+
+
+/**
+ * Power of two choices by peak-EWMA latency weighted with the number of outstanding requests.
+ * <p>
+ * Reacts to latency spikes immediately while slowly forgetting them, which moves traffic away from slow
+ * instances before their queues build up.
+ */
+public final class PeakEwmaLoadBalancer extends PowerOfTwoChoicesLoadBalancer
+{
+    public static final PeakEwmaLoadBalancer INSTANCE = new PeakEwmaLoadBalancer();
+
+
+    private PeakEwmaLoadBalancer()
+    {
+
+    }
+
+
+    @Override
+    protected double load(TargetPool pool)
+    {
+        return pool.getStats().getCost();
+    }
+}
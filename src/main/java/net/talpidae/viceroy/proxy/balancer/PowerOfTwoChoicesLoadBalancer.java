@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.util.AttachmentList;
+import lombok.val;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+
+/**
+ * Samples two random backends and picks the one with fewer outstanding requests.
+ * <p>
+ * If neither sample is eligible the balancer falls back to a random scan.
+ */
+public class PowerOfTwoChoicesLoadBalancer implements LoadBalancer
+{
+    public static final PowerOfTwoChoicesLoadBalancer INSTANCE = new PowerOfTwoChoicesLoadBalancer();
+
+
+    protected PowerOfTwoChoicesLoadBalancer()
+    {
+
+    }
+
+
+    /**
+     * Load metric to compare the two samples by, lower is better.
+     */
+    protected double load(TargetPool pool)
+    {
+        return pool.getStats().getOutstanding();
+    }
+
+
+    @Override
+    public TargetPool select(Backend[] backends, AttachmentList<TargetPool> attempted)
+    {
+        val size = backends.length;
+        if (size <= 1)
+        {
+            return RandomLoadBalancer.INSTANCE.select(backends, attempted);
+        }
+
+        val first = CheapRandom.nextInt(size);
+        int second = CheapRandom.nextInt(size - 1);
+        if (second >= first)
+        {
+            ++second;
+        }
+
+        val a = backends[first].getPool();
+        val b = backends[second].getPool();
+        val aEligible = LoadBalancer.isEligible(a, attempted);
+        val bEligible = LoadBalancer.isEligible(b, attempted);
+        if (aEligible && bEligible)
+        {
+            return (load(b) < load(a)) ? b : a;
+        }
+        else if (aEligible)
+        {
+            return a;
+        }
+        else if (bEligible)
+        {
+            return b;
+        }
+
+        return RandomLoadBalancer.INSTANCE.select(backends, attempted);
+    }
+}
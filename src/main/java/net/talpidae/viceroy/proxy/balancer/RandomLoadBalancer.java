@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.util.AttachmentList;
+import lombok.val;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.TargetPool;
+
+
+/**
+ * Picks the first eligible backend starting at a random index.
+ */
+public final class RandomLoadBalancer implements LoadBalancer
+{
+    public static final RandomLoadBalancer INSTANCE = new RandomLoadBalancer();
+
+
+    private RandomLoadBalancer()
+    {
+
+    }
+
+
+    @Override
+    public TargetPool select(Backend[] backends, AttachmentList<TargetPool> attempted)
+    {
+        val size = backends.length;
+        if (size > 0)
+        {
+            val startIndex = CheapRandom.nextInt(size);
+            for (int i = 0; i < size; ++i)
+            {
+                int index = startIndex + i;
+                if (index >= size)
+                {
+                    index -= size;
+                }
+
+                val pool = backends[index].getPool();
+                if (LoadBalancer.isEligible(pool, attempted))
+                {
+                    return pool;
+                }
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.stream;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Buffer memory reserved by the in-flight streams of a single route.
+ */
+@Getter
+public final class StreamBudget
+{
+    private final String route;
+
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Streams rejected because the ceiling was reached.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+
+    StreamBudget(String route)
+    {
+        this.route = route;
+    }
+
+
+    /**
+     * Reserve bytes unless that would exceed ceiling.
+     */
+    public boolean tryReserve(long bytes, long ceiling)
+    {
+        long current;
+        do
+        {
+            current = reserved.get();
+            if (current + bytes > ceiling)
+            {
+                rejected.increment();
+                return false;
+            }
+        }
+        while (!reserved.compareAndSet(current, current + bytes));
+
+        return true;
+    }
+
+
+    public void release(long bytes)
+    {
+        reserved.addAndGet(-bytes);
+    }
+}
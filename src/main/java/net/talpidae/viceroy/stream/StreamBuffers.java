@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.stream;
+
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.DefaultByteBufferPool;
+import lombok.Getter;
+import net.talpidae.viceroy.proxy.ProxyConfig;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Direct buffer pool used to stream bodies of routes in streaming mode and the buffer budgets of those routes.
+ * <p>
+ * Each stream holds at most one buffer per direction at any time, data is read from one channel into the buffer
+ * and written from it to the other channel without heap copies. Reading stops while the buffer can't be written,
+ * so slow peers apply backpressure instead of growing memory.
+ */
+@Singleton
+public class StreamBuffers implements Closeable
+{
+    /**
+     * Number of buffers each I/O thread keeps for itself in addition to the shared pool.
+     */
+    private static final int THREAD_LOCAL_CACHE_SIZE = 4;
+
+    @Getter
+    private final ByteBufferPool pool;
+
+    @Getter
+    private final int bufferSize;
+
+    private final ConcurrentHashMap<String, StreamBudget> routeToBudget = new ConcurrentHashMap<>();
+
+
+    @Inject
+    public StreamBuffers(ProxyConfig proxyConfig)
+    {
+        this.bufferSize = proxyConfig.getStreamBufferSize();
+        this.pool = new DefaultByteBufferPool(true, bufferSize, proxyConfig.getStreamPooledBuffers(), THREAD_LOCAL_CACHE_SIZE);
+    }
+
+
+    /**
+     * Get the budget of route, creating it if necessary.
+     */
+    public StreamBudget getBudget(String route)
+    {
+        return routeToBudget.computeIfAbsent(route, StreamBudget::new);
+    }
+
+
+    public Collection<StreamBudget> getBudgets()
+    {
+        return routeToBudget.values();
+    }
+
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.cache;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import lombok.val;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ResponseCacheTest
+{
+    private static final String KEY = "/item/42";
+
+    private static final long CACHE_SIZE = 4L * 1024 * 1024;
+
+    private static final int BODY_SIZE = 16 * 1024;
+
+
+    private static CachedResponse response(String acceptEncoding, String eTag, long bornAt, long lifetimeMillis)
+    {
+        val varyNames = new HttpString[]{Headers.ACCEPT_ENCODING};
+        val varyValues = new String[]{acceptEncoding};
+        val headerNames = (eTag != null) ? new HttpString[]{Headers.ETAG} : new HttpString[0];
+        val headerValues = (eTag != null) ? new String[]{eTag} : new String[0];
+
+        return new CachedResponse(KEY, varyNames, varyValues, 200, headerNames, headerValues, ByteBuffer.allocate(16), bornAt, lifetimeMillis);
+    }
+
+
+    private static CachedResponse entry(String key)
+    {
+        return new CachedResponse(key, new HttpString[0], new String[0], 200, new HttpString[0], new String[0], ByteBuffer.allocate(BODY_SIZE), 0L, 1000L);
+    }
+
+
+    /**
+     * Look up key like a request would and store it on a miss.
+     */
+    private static void request(ResponseCache cache, String key)
+    {
+        if (cache.get(key, new HeaderMap()) == null)
+        {
+            cache.put(entry(key));
+        }
+    }
+
+
+    private static HeaderMap headers(HttpString name, String value)
+    {
+        val headers = new HeaderMap();
+        if (value != null)
+        {
+            headers.put(name, value);
+        }
+
+        return headers;
+    }
+
+
+    @Test
+    public void freshUntilLifetimeExpires()
+    {
+        val cached = response(null, null, 1000L, 1000L);
+
+        assertTrue(cached.isFresh(1999L, -1L));
+        assertFalse(cached.isFresh(2000L, -1L));
+    }
+
+
+    @Test
+    public void clientMaxAgeLimitsFreshness()
+    {
+        val cached = response(null, null, 0L, 60_000L);
+
+        assertTrue(cached.isFresh(30_000L, 60L));
+        assertFalse(cached.isFresh(30_000L, 10L));
+        assertEquals(30L, cached.getAgeSeconds(30_000L));
+    }
+
+
+    @Test
+    public void freshenRestartsLifetime()
+    {
+        val cached = response(null, "\"v1\"", 0L, 1000L);
+        assertFalse(cached.isFresh(5000L, -1L));
+
+        cached.freshen(5000L, 1000L);
+
+        assertTrue(cached.isFresh(5500L, -1L));
+        assertEquals(1000L, cached.getLifetimeMillis());
+    }
+
+
+    @Test
+    public void variantsAreSelectedByVaryHeaders()
+    {
+        val cache = new ResponseCache(1024 * 1024, 64 * 1024);
+        val gzip = response("gzip", null, 0L, 1000L);
+        val identity = response(null, null, 0L, 1000L);
+        cache.put(gzip);
+        cache.put(identity);
+
+        assertSame(gzip, cache.get(KEY, headers(Headers.ACCEPT_ENCODING, "gzip")));
+        assertSame(identity, cache.get(KEY, headers(Headers.ACCEPT_ENCODING, null)));
+        assertNull(cache.get(KEY, headers(Headers.ACCEPT_ENCODING, "br")));
+    }
+
+
+    @Test
+    public void sameVariantIsReplaced()
+    {
+        val cache = new ResponseCache(1024 * 1024, 64 * 1024);
+        val first = response("gzip", "\"v1\"", 0L, 1000L);
+        val second = response("gzip", "\"v2\"", 0L, 1000L);
+        cache.put(first);
+        cache.put(second);
+
+        assertSame(second, cache.get(KEY, headers(Headers.ACCEPT_ENCODING, "gzip")));
+    }
+
+
+    @Test
+    public void invalidateRemovesAllVariants()
+    {
+        val cache = new ResponseCache(1024 * 1024, 64 * 1024);
+        cache.put(response("gzip", null, 0L, 1000L));
+        cache.put(response(null, null, 0L, 1000L));
+
+        cache.invalidate(KEY);
+
+        assertNull(cache.get(KEY, headers(Headers.ACCEPT_ENCODING, "gzip")));
+        assertNull(cache.get(KEY, headers(Headers.ACCEPT_ENCODING, null)));
+    }
+
+
+    @Test
+    public void sizeStaysBoundedWhenFilledPastCapacity()
+    {
+        val cache = new ResponseCache(CACHE_SIZE, 64 * 1024);
+        for (int i = 0; i < 1000; ++i)
+        {
+            request(cache, "/scan/" + i);
+
+            assertTrue("size " + cache.getSize(), cache.getSize() <= CACHE_SIZE);
+        }
+
+        assertTrue(cache.getSize() > CACHE_SIZE / 2);
+    }
+
+
+    @Test
+    public void evictionsAreCounted()
+    {
+        val cache = new ResponseCache(CACHE_SIZE, 64 * 1024);
+        for (int i = 0; i < 1000; ++i)
+        {
+            request(cache, "/scan/" + i);
+        }
+
+        int stored = 0;
+        for (int i = 0; i < 1000; ++i)
+        {
+            if (cache.get("/scan/" + i, new HeaderMap()) != null)
+            {
+                ++stored;
+            }
+        }
+
+        assertTrue(stored > 0);
+        assertEquals(1000L - stored, cache.getEvictions().sum());
+    }
+
+
+    @Test
+    public void hotEntrySurvivesScanOfOneHitKeys()
+    {
+        val cache = new ResponseCache(CACHE_SIZE, 64 * 1024);
+        val hot = "/hot";
+        for (int i = 0; i < 10; ++i)
+        {
+            request(cache, hot);
+        }
+
+        for (int i = 0; i < 1000; ++i)
+        {
+            request(cache, "/scan/" + i);
+        }
+
+        // the scan exceeds the capacity several times, but one-hit keys are not admitted over the popular entry
+        assertTrue(cache.getEvictions().sum() > 0);
+        assertTrue(cache.get(hot, new HeaderMap()) != null);
+    }
+
+
+    @Test
+    public void notModifiedWithSameETagRefersToStoredEntry()
+    {
+        val cached = response(null, "\"v1\"", 0L, 1000L);
+
+        assertTrue(ResponseCacheHandler.isSameRepresentation(headers(Headers.ETAG, "\"v1\""), cached, true));
+        assertTrue(ResponseCacheHandler.isSameRepresentation(headers(Headers.ETAG, "\"v1\""), cached, false));
+    }
+
+
+    @Test
+    public void notModifiedWithOtherETagDoesNotReferToStoredEntry()
+    {
+        val cached = response(null, "\"v1\"", 0L, 1000L);
+
+        // in reply to our own validator this must not be passed on, the handler answers 502
+        assertFalse(ResponseCacheHandler.isSameRepresentation(headers(Headers.ETAG, "\"v2\""), cached, true));
+    }
+
+
+    @Test
+    public void notModifiedWithoutETagOnlyMatchesOwnValidator()
+    {
+        val cached = response(null, "\"v1\"", 0L, 1000L);
+
+        assertTrue(ResponseCacheHandler.isSameRepresentation(new HeaderMap(), cached, true));
+        assertFalse(ResponseCacheHandler.isSameRepresentation(new HeaderMap(), cached, false));
+    }
+
+
+    @Test
+    public void coalescedRequestsResumeOnceLeaderFinished()
+    {
+        val resumed = new ArrayList<HttpServerExchange>();
+        val flight = new ResponseCacheHandler.Flight(resumed::add);
+        val first = new HttpServerExchange(null);
+        val second = new HttpServerExchange(null);
+
+        assertTrue(flight.park(first));
+        assertTrue(flight.park(second));
+        assertTrue(resumed.isEmpty());
+
+        flight.release();
+
+        assertEquals(2, resumed.size());
+        assertSame(first, resumed.get(0));
+        assertSame(second, resumed.get(1));
+    }
+
+
+    @Test
+    public void requestsArrivingAfterLeaderFinishedAreNotParked()
+    {
+        val resumed = new ArrayList<HttpServerExchange>();
+        val flight = new ResponseCacheHandler.Flight(resumed::add);
+        flight.release();
+
+        assertFalse(flight.park(new HttpServerExchange(null)));
+        assertTrue(resumed.isEmpty());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class BackendHealthTest
+{
+    private static final long HOUR_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private static final int SAMPLES = 10_000;
+
+
+    private static BackendHealth health(long ejectionNanos, long slowStartNanos, boolean warmup)
+    {
+        return new BackendHealth(HealthPolicy.builder()
+                .consecutiveErrors(3)
+                .ejectionNanos(ejectionNanos)
+                .slowStartNanos(slowStartNanos)
+                .warmup(warmup)
+                .build());
+    }
+
+
+    private static int countSelectable(BackendHealth health)
+    {
+        int selectable = 0;
+        for (int i = 0; i < SAMPLES; ++i)
+        {
+            if (health.isSelectable())
+            {
+                ++selectable;
+            }
+        }
+
+        return selectable;
+    }
+
+
+    @Test
+    public void ejectsAfterConsecutiveErrors()
+    {
+        val health = health(HOUR_NANOS, 1L, false);
+        val now = System.nanoTime();
+
+        assertFalse(health.onResponse(503, 0L, now));
+        assertFalse(health.onFailure(now));
+        assertTrue(health.isSelectable());
+        assertTrue(health.onResponse(500, 0L, now));
+
+        assertTrue(health.isEjected());
+        assertFalse(health.isSelectable());
+        assertFalse(health.eject(now));
+    }
+
+
+    @Test
+    public void successfulResponseResetsErrorCount()
+    {
+        val health = health(HOUR_NANOS, 1L, false);
+        val now = System.nanoTime();
+
+        health.onFailure(now);
+        health.onFailure(now);
+        assertFalse(health.onResponse(200, 1000L, now));
+        assertFalse(health.onFailure(now));
+        assertFalse(health.onFailure(now));
+
+        assertFalse(health.isEjected());
+    }
+
+
+    @Test
+    public void slowStartReceivesShareOfTraffic()
+    {
+        val health = health(TimeUnit.MILLISECONDS.toNanos(1), HOUR_NANOS, false);
+        assertTrue(health.eject(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2)));
+
+        // about 10% at the start of slow-start
+        val selectable = countSelectable(health);
+        assertFalse(health.isEjected());
+        assertTrue(selectable > SAMPLES / 20);
+        assertTrue(selectable < SAMPLES / 5);
+    }
+
+
+    @Test
+    public void healthyAgainAfterSlowStart()
+    {
+        val millis = TimeUnit.MILLISECONDS.toNanos(1);
+        val health = health(millis, millis, false);
+        assertTrue(health.eject(System.nanoTime() - 10 * millis));
+
+        assertEquals(SAMPLES, countSelectable(health));
+    }
+
+
+    @Test
+    public void repeatedEjectionsLastLonger()
+    {
+        val health = health(HOUR_NANOS, 1L, false);
+
+        // first ejection expired half an hour ago
+        assertTrue(health.eject(System.nanoTime() - HOUR_NANOS - HOUR_NANOS / 2));
+        health.isSelectable();
+        assertFalse(health.isEjected());
+
+        // the second one lasts twice as long, so it is still in effect
+        assertTrue(health.eject(System.nanoTime() - HOUR_NANOS - HOUR_NANOS / 2));
+        assertTrue(health.isEjected());
+        assertFalse(health.isSelectable());
+    }
+
+
+    @Test
+    public void failedProbeKeepsBackendEjected()
+    {
+        val health = health(TimeUnit.MILLISECONDS.toNanos(1), 1L, false);
+        val now = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1);
+        health.eject(now - HOUR_NANOS);
+
+        assertTrue(health.onProbe(false, now));
+        assertFalse(health.onProbe(false, now));
+        assertTrue(health.isEjected());
+        assertFalse(health.isSelectable());
+
+        assertTrue(health.onProbe(true, now));
+        assertFalse(health.isEjected());
+        assertTrue(health.isSelectable());
+    }
+
+
+    @Test
+    public void warmingBackendIsNotSelectedUntilWarmedUp()
+    {
+        val health = health(HOUR_NANOS, 1L, true);
+
+        assertFalse(health.isSelectable());
+        assertFalse(health.isEjected());
+
+        health.warmedUp(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertTrue(health.isSelectable());
+    }
+}
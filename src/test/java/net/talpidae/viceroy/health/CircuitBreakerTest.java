@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.health;
+
+import lombok.val;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CircuitBreakerTest
+{
+    private static final long OPEN_NANOS = 1000L;
+
+
+    private static CircuitBreaker openedAt(long now)
+    {
+        val breaker = new CircuitBreaker(3, OPEN_NANOS);
+        breaker.onFailure(now);
+        breaker.onFailure(now);
+        assertTrue(breaker.onFailure(now));
+
+        return breaker;
+    }
+
+
+    @Test
+    public void opensAfterConsecutiveFailures()
+    {
+        val breaker = new CircuitBreaker(3, OPEN_NANOS);
+
+        assertFalse(breaker.onFailure(0L));
+        assertFalse(breaker.onFailure(0L));
+        assertTrue(breaker.tryAcquire(0L));
+        assertTrue(breaker.onFailure(0L));
+
+        assertFalse(breaker.tryAcquire(500L));
+        assertEquals(500L, breaker.getRemainingNanos(500L));
+    }
+
+
+    @Test
+    public void successResetsFailureCount()
+    {
+        val breaker = new CircuitBreaker(3, OPEN_NANOS);
+        breaker.onFailure(0L);
+        breaker.onFailure(0L);
+        breaker.onSuccess();
+
+        assertFalse(breaker.onFailure(0L));
+        assertFalse(breaker.onFailure(0L));
+        assertTrue(breaker.tryAcquire(0L));
+    }
+
+
+    @Test
+    public void halfOpenAdmitsSingleProbe()
+    {
+        val breaker = openedAt(0L);
+
+        assertTrue(breaker.tryAcquire(OPEN_NANOS));
+        assertFalse(breaker.tryAcquire(OPEN_NANOS));
+        assertFalse(breaker.tryAcquire(OPEN_NANOS + 1L));
+    }
+
+
+    @Test
+    public void successfulProbeCloses()
+    {
+        val breaker = openedAt(0L);
+        assertTrue(breaker.tryAcquire(OPEN_NANOS));
+
+        breaker.onSuccess();
+
+        assertTrue(breaker.tryAcquire(OPEN_NANOS + 1L));
+        assertTrue(breaker.tryAcquire(OPEN_NANOS + 2L));
+    }
+
+
+    @Test
+    public void failedProbeReopens()
+    {
+        val breaker = openedAt(0L);
+        assertTrue(breaker.tryAcquire(OPEN_NANOS));
+
+        assertTrue(breaker.onFailure(OPEN_NANOS + 100L));
+
+        assertFalse(breaker.tryAcquire(OPEN_NANOS + 500L));
+        assertTrue(breaker.tryAcquire(2 * OPEN_NANOS + 100L));
+    }
+
+
+    @Test
+    public void lostProbeIsReplacedAfterOpenTime()
+    {
+        val breaker = openedAt(0L);
+        assertTrue(breaker.tryAcquire(OPEN_NANOS));
+
+        assertFalse(breaker.tryAcquire(OPEN_NANOS + OPEN_NANOS / 2));
+        assertTrue(breaker.tryAcquire(2 * OPEN_NANOS));
+    }
+
+
+    @Test
+    public void zeroThresholdNeverOpens()
+    {
+        val breaker = new CircuitBreaker(0, OPEN_NANOS);
+        for (int i = 0; i < 100; ++i)
+        {
+            assertFalse(breaker.onFailure(0L));
+        }
+
+        assertTrue(breaker.tryAcquire(0L));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConcurrencyLimiterTest
+{
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Start of the first window, after the one the limiter started at construction.
+     */
+    private long now = System.nanoTime() + WINDOW_NANOS;
+
+
+    /**
+     * Use the whole limit for one window, then release all requests with the specified outcome.
+     */
+    private void window(ConcurrencyLimiter limiter, int requests, long latencyNanos, boolean failed)
+    {
+        for (int i = 0; i < requests; ++i)
+        {
+            assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+        }
+
+        now += WINDOW_NANOS;
+        for (int i = 0; i < requests; ++i)
+        {
+            limiter.release(latencyNanos, failed, now);
+        }
+    }
+
+
+    @Test
+    public void limitGrowsWhileUsedAtLowLatency()
+    {
+        val limiter = new ConcurrencyLimiter("item", 20, 100);
+        for (int i = 0; i < 20; ++i)
+        {
+            window(limiter, limiter.getLimit(), FAST_NANOS, false);
+        }
+
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() > 20);
+        assertTrue(limiter.getLimit() <= 100);
+    }
+
+
+    @Test
+    public void limitDoesNotGrowWhileUnused()
+    {
+        val limiter = new ConcurrencyLimiter("item", 20, 100);
+        for (int i = 0; i < 20; ++i)
+        {
+            window(limiter, 2, FAST_NANOS, false);
+        }
+
+        assertEquals(20, limiter.getLimit());
+    }
+
+
+    @Test
+    public void limitShrinksOnLatencyInflation()
+    {
+        val limiter = new ConcurrencyLimiter("item", 20, 100);
+        for (int i = 0; i < 5; ++i)
+        {
+            window(limiter, limiter.getLimit(), FAST_NANOS, false);
+        }
+        val settled = limiter.getLimit();
+
+        for (int i = 0; i < 5; ++i)
+        {
+            window(limiter, limiter.getLimit(), SLOW_NANOS, false);
+        }
+
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < settled);
+    }
+
+
+    @Test
+    public void limitBacksOffOnBackendFailure()
+    {
+        val limiter = new ConcurrencyLimiter("item", 20, 100);
+
+        window(limiter, 1, FAST_NANOS, true);
+        assertEquals(18, limiter.getLimit());
+
+        window(limiter, 1, FAST_NANOS, true);
+        assertEquals(16, limiter.getLimit());
+    }
+
+
+    @Test
+    public void limitNeverDropsBelowOne()
+    {
+        val limiter = new ConcurrencyLimiter("item", 2, 100);
+        for (int i = 0; i < 50; ++i)
+        {
+            window(limiter, 1, FAST_NANOS, true);
+        }
+
+        assertEquals(1, limiter.getLimit());
+        assertTrue(limiter.tryAcquire(Priority.BACKGROUND));
+    }
+
+
+    @Test
+    public void backgroundIsShedBeforeCritical()
+    {
+        val limiter = new ConcurrencyLimiter("item", 10, 100);
+        for (int i = 0; i < 5; ++i)
+        {
+            assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+        }
+
+        // background may use 50% of the limit, normal 90%, critical all of it
+        assertFalse(limiter.tryAcquire(Priority.BACKGROUND));
+        assertTrue(limiter.tryAcquire(Priority.NORMAL));
+        assertTrue(limiter.tryAcquire(Priority.NORMAL));
+        assertTrue(limiter.tryAcquire(Priority.NORMAL));
+        assertTrue(limiter.tryAcquire(Priority.NORMAL));
+        assertFalse(limiter.tryAcquire(Priority.NORMAL));
+        assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+        assertFalse(limiter.tryAcquire(Priority.CRITICAL));
+
+        assertEquals(3L, limiter.getShed().sum());
+        assertEquals(10, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.limit;
+
+import lombok.val;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class TokenBucketTableTest
+{
+    private static final long INTERVAL = 100L;
+
+    /**
+     * Allows a burst of three requests.
+     */
+    private static final long TOLERANCE = 2 * INTERVAL;
+
+
+    @Test
+    public void burstThenOneTokenPerInterval()
+    {
+        val table = new TokenBucketTable(16);
+
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1000L));
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1000L));
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1000L));
+        assertEquals(INTERVAL, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1000L));
+
+        // rejected requests take no token
+        assertEquals(INTERVAL - 40L, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1040L));
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1100L));
+        assertEquals(INTERVAL, table.tryAcquire(1L, INTERVAL, TOLERANCE, 1100L));
+    }
+
+
+    @Test
+    public void keysHaveSeparateBuckets()
+    {
+        val table = new TokenBucketTable(16);
+        for (int i = 0; i < 3; ++i)
+        {
+            table.tryAcquire(1L, INTERVAL, TOLERANCE, 0L);
+        }
+
+        assertEquals(INTERVAL, table.tryAcquire(1L, INTERVAL, TOLERANCE, 0L));
+        assertEquals(0L, table.tryAcquire(2L, INTERVAL, TOLERANCE, 0L));
+    }
+
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwoAboveProbeLength()
+    {
+        assertEquals(16, new TokenBucketTable(16).getCapacity());
+        assertEquals(32, new TokenBucketTable(17).getCapacity());
+        assertEquals(16, new TokenBucketTable(1).getCapacity());
+    }
+
+
+    @Test
+    public void newKeyIsAdmittedWhenAllBucketsAreBusy()
+    {
+        val table = new TokenBucketTable(8);
+        for (long key = 1L; key <= 1000L; ++key)
+        {
+            for (int i = 0; i < 3; ++i)
+            {
+                table.tryAcquire(key, INTERVAL, TOLERANCE, 0L);
+            }
+        }
+
+        // the fullest bucket is replaced by a new one
+        assertEquals(0L, table.tryAcquire(5000L, INTERVAL, TOLERANCE, 0L));
+    }
+
+
+    @Test
+    public void idleBucketIsEvictedAsFull()
+    {
+        val table = new TokenBucketTable(8);
+        for (int i = 0; i < 3; ++i)
+        {
+            table.tryAcquire(1L, INTERVAL, TOLERANCE, 0L);
+        }
+
+        // other keys may take over the slot of the idle key once its bucket refilled
+        val now = 10 * INTERVAL;
+        for (long key = 2L; key <= 100L; ++key)
+        {
+            table.tryAcquire(key, INTERVAL, TOLERANCE, now);
+        }
+
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, now));
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, now));
+        assertEquals(0L, table.tryAcquire(1L, INTERVAL, TOLERANCE, now));
+        assertEquals(INTERVAL, table.tryAcquire(1L, INTERVAL, TOLERANCE, now));
+    }
+}
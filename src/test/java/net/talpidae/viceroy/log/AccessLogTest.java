@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.log;
+
+import io.undertow.util.Methods;
+import lombok.val;
+import net.talpidae.viceroy.control.ControlPlane;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class AccessLogTest
+{
+    /**
+     * Never drains on its own, the tests call drain() explicitly.
+     */
+    private final ControlPlane controlPlane = new ControlPlane()
+    {
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task, long delay, TimeUnit unit)
+        {
+            return null;
+        }
+    };
+
+    private Path file;
+
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = Files.createTempFile("viceroy-access", ".log");
+    }
+
+
+    @After
+    public void deleteFile() throws IOException
+    {
+        controlPlane.close();
+        Files.deleteIfExists(file);
+    }
+
+
+    private AccessLog start(int bufferSize) throws IOException
+    {
+        val accessLog = new AccessLog(file, 1L << 20, 1, bufferSize, controlPlane);
+        accessLog.start();
+
+        return accessLog;
+    }
+
+
+    private static void append(AccessLog accessLog, int statusCode)
+    {
+        accessLog.append(0L, Methods.GET, "/item", "item", null, statusCode, 0L, 0L, 0L);
+    }
+
+
+    private List<String> statusCodes() throws IOException
+    {
+        return Files.readAllLines(file).stream().map(line -> line.split(" ")[3]).collect(Collectors.toList());
+    }
+
+
+    @Test
+    public void fullRingDropsRecords() throws IOException
+    {
+        val accessLog = start(4);
+        for (int statusCode = 200; statusCode < 206; ++statusCode)
+        {
+            append(accessLog, statusCode);
+        }
+
+        assertEquals(2L, accessLog.getDropped().sum());
+
+        accessLog.close();
+        assertEquals(List.of("200", "201", "202", "203"), statusCodes());
+    }
+
+
+    @Test
+    public void drainedSlotsAreReusedAfterWrap() throws IOException
+    {
+        val accessLog = start(4);
+        for (int statusCode = 200; statusCode < 203; ++statusCode)
+        {
+            append(accessLog, statusCode);
+        }
+        accessLog.drain();
+
+        // positions 3 to 6 wrap around the end of the ring
+        for (int statusCode = 203; statusCode < 208; ++statusCode)
+        {
+            append(accessLog, statusCode);
+        }
+        assertEquals(1L, accessLog.getDropped().sum());
+
+        accessLog.drain();
+        append(accessLog, 208);
+
+        accessLog.close();
+        assertEquals(List.of("200", "201", "202", "203", "204", "205", "206", "208"), statusCodes());
+    }
+
+
+    @Test
+    public void bufferSizeIsRoundedUpToPowerOfTwo() throws IOException
+    {
+        val accessLog = start(3);
+        for (int statusCode = 200; statusCode < 205; ++statusCode)
+        {
+            append(accessLog, statusCode);
+        }
+
+        assertEquals(1L, accessLog.getDropped().sum());
+        accessLog.close();
+    }
+
+
+    @Test
+    public void formatsRecord() throws IOException
+    {
+        val accessLog = start(4);
+        accessLog.append(1000L, Methods.POST, "/item/42", "item", new InetSocketAddress("127.0.0.1", 8080), 201, 17L, 3_000L, 5_500_000L);
+        accessLog.append(2000L, Methods.GET, "/unknown", null, null, 404, 0L, 0L, 12_000L);
+        accessLog.close();
+
+        assertEquals(List.of("1970-01-01T00:00:01Z POST /item/42 201 17 item 127.0.0.1:8080 3 5500",
+                "1970-01-01T00:00:02Z GET /unknown 404 0 - - 0 12"),
+                Files.readAllLines(file));
+    }
+
+
+    @Test
+    public void disabledWithoutFile()
+    {
+        assertFalse(new AccessLog(null, 0L, 0, 4, controlPlane).isEnabled());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.client.ClientConnection;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import lombok.val;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class MultiplexedConnectionsTest
+{
+    private static final int MAX_CONNECTIONS = 2;
+
+    private static final int MAX_STREAMS = 2;
+
+
+    private static ProxyConnection connection()
+    {
+        return connection(true);
+    }
+
+
+    /**
+     * Connection that is open until closed, all other methods do nothing.
+     */
+    private static ProxyConnection connection(boolean multiplexed)
+    {
+        val open = new AtomicBoolean(true);
+        val clientConnection = (ClientConnection) Proxy.newProxyInstance(ClientConnection.class.getClassLoader(), new Class<?>[]{ClientConnection.class}, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "isOpen":
+                    return open.get();
+
+                case "isMultiplexingSupported":
+                    return multiplexed;
+
+                case "close":
+                    open.set(false);
+                    return null;
+
+                default:
+                    return (method.getReturnType() == boolean.class) ? Boolean.FALSE : null;
+            }
+        });
+
+        return new ProxyConnection(clientConnection, "/");
+    }
+
+
+    private static void begin(MultiplexedConnections connections, ProxyConnection connection, int streams)
+    {
+        for (int i = 0; i < streams; ++i)
+        {
+            connections.begin(connection);
+        }
+    }
+
+
+    @Test
+    public void selectsLeastLoadedConnection()
+    {
+        val connections = new MultiplexedConnections(null);
+        val a = connection();
+        val b = connection();
+        begin(connections, a, 2);
+        begin(connections, b, 1);
+
+        assertSame(b, connections.select(10));
+
+        begin(connections, b, 2);
+        assertSame(a, connections.select(10));
+    }
+
+
+    @Test
+    public void selectSkipsBusyAndClosedConnections() throws IOException
+    {
+        val connections = new MultiplexedConnections(null);
+        val a = connection();
+        val b = connection();
+        begin(connections, a, MAX_STREAMS);
+        begin(connections, b, 1);
+
+        assertSame(b, connections.select(MAX_STREAMS));
+
+        b.getConnection().close();
+        assertNull(connections.select(MAX_STREAMS));
+        assertFalse(connections.contains(b));
+    }
+
+
+    @Test
+    public void saturatedOnceAllStreamsOfAllConnectionsAreTaken()
+    {
+        val connections = new MultiplexedConnections(null);
+        val a = connection();
+        val b = connection();
+
+        begin(connections, a, MAX_STREAMS);
+        assertFalse("fewer than maxConnections", connections.isSaturated(MAX_CONNECTIONS, MAX_STREAMS));
+
+        begin(connections, b, MAX_STREAMS - 1);
+        assertFalse(connections.isSaturated(MAX_CONNECTIONS, MAX_STREAMS));
+
+        connections.begin(b);
+        assertTrue(connections.isSaturated(MAX_CONNECTIONS, MAX_STREAMS));
+        assertNull(connections.select(MAX_STREAMS));
+    }
+
+
+    @Test
+    public void endReleasesStream()
+    {
+        val connections = new MultiplexedConnections(null);
+        val a = connection();
+        val b = connection();
+        begin(connections, a, MAX_STREAMS);
+        begin(connections, b, MAX_STREAMS);
+        assertTrue(connections.isSaturated(MAX_CONNECTIONS, MAX_STREAMS));
+
+        connections.end(a, 0);
+
+        assertFalse(connections.isSaturated(MAX_CONNECTIONS, MAX_STREAMS));
+        assertSame(a, connections.select(MAX_STREAMS));
+    }
+
+
+    @Test
+    public void opensOneConnectionAtATimeUpToMaxConnections()
+    {
+        val connections = new MultiplexedConnections(null);
+        assertFalse("nothing to multiplex yet", connections.tryBeginOpen(MAX_CONNECTIONS));
+
+        begin(connections, connection(), MAX_STREAMS);
+        assertTrue(connections.tryBeginOpen(MAX_CONNECTIONS));
+        assertFalse("already opening", connections.tryBeginOpen(MAX_CONNECTIONS));
+        assertFalse("not saturated while opening", connections.isSaturated(1, MAX_STREAMS));
+
+        connections.endOpen(connection());
+        assertFalse(connections.tryBeginOpen(MAX_CONNECTIONS));
+    }
+
+
+    @Test
+    public void failedOpenAllowsAnotherAttempt()
+    {
+        val connections = new MultiplexedConnections(null);
+        begin(connections, connection(), 1);
+        assertTrue(connections.tryBeginOpen(MAX_CONNECTIONS));
+
+        connections.endOpen(null);
+
+        assertTrue(connections.tryBeginOpen(MAX_CONNECTIONS));
+    }
+
+
+    @Test
+    public void idleOwnedConnectionIsClosedWhileOthersRemain()
+    {
+        val connections = new MultiplexedConnections(null);
+        val pooled = connection();
+        val owned = connection();
+        begin(connections, pooled, 1);
+        connections.endOpen(owned);
+
+        connections.begin(owned);
+        connections.end(owned, 0);
+
+        assertFalse(owned.getConnection().isOpen());
+        assertFalse(connections.contains(owned));
+        assertTrue(connections.contains(pooled));
+    }
+
+
+    @Test
+    public void idleOwnedConnectionsAreKeptUpToMinimum()
+    {
+        val connections = new MultiplexedConnections(null);
+        val a = connection();
+        val b = connection();
+        connections.endOpen(a);
+        connections.endOpen(b);
+        connections.begin(a);
+        connections.begin(b);
+
+        connections.end(a, 1);
+        assertTrue(a.getConnection().isOpen());
+
+        connections.end(b, 1);
+        assertFalse(b.getConnection().isOpen());
+        assertTrue(connections.contains(a));
+        assertEquals(1, connections.countIdle());
+    }
+
+
+    @Test
+    public void opensIdleConnectionsOneAtATimeUpToMinimum()
+    {
+        val connections = new MultiplexedConnections(null);
+        assertTrue(connections.tryBeginOpenIdle(2, MAX_CONNECTIONS));
+        assertFalse("already opening", connections.tryBeginOpenIdle(2, MAX_CONNECTIONS));
+
+        assertTrue(connections.endOpenIdle(connection()));
+        assertTrue("opened connections allow opening more on demand", connections.tryBeginOpen(MAX_CONNECTIONS));
+        connections.endOpen(null);
+
+        assertTrue(connections.tryBeginOpenIdle(2, MAX_CONNECTIONS));
+        assertTrue(connections.endOpenIdle(connection()));
+        assertFalse(connections.tryBeginOpenIdle(2, MAX_CONNECTIONS));
+        assertEquals(2, connections.countIdle());
+    }
+
+
+    @Test
+    public void idleMinimumIsCappedByMaxConnections()
+    {
+        val connections = new MultiplexedConnections(null);
+        assertTrue(connections.tryBeginOpenIdle(5, 1));
+        assertTrue(connections.endOpenIdle(connection()));
+
+        assertFalse(connections.tryBeginOpenIdle(5, 1));
+    }
+
+
+    @Test
+    public void busyConnectionsDontCountAsIdle()
+    {
+        val connections = new MultiplexedConnections(null);
+        begin(connections, connection(), 1);
+
+        assertTrue(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+    }
+
+
+    @Test
+    public void notMultiplexedIdleConnectionIsClosedAndStopsOpening()
+    {
+        val connections = new MultiplexedConnections(null);
+        val plain = connection(false);
+        assertTrue(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+
+        assertFalse(connections.endOpenIdle(plain));
+
+        assertFalse(plain.getConnection().isOpen());
+        assertFalse(connections.contains(plain));
+        assertFalse(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+    }
+
+
+    @Test
+    public void failedIdleConnectionAllowsAnotherAttempt()
+    {
+        val connections = new MultiplexedConnections(null);
+        assertTrue(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+
+        assertFalse(connections.endOpenIdle(null));
+
+        assertTrue(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+    }
+
+
+    @Test
+    public void idleConnectionOpenedAfterCloseAllIsClosed()
+    {
+        val connections = new MultiplexedConnections(null);
+        assertTrue(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+        connections.closeAll();
+
+        val late = connection();
+        assertFalse(connections.endOpenIdle(late));
+
+        assertFalse(late.getConnection().isOpen());
+        assertFalse(connections.tryBeginOpenIdle(1, MAX_CONNECTIONS));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PoolSettingsTest
+{
+    private static final PoolSettings DEFAULTS = PoolSettings.builder()
+            .problemServerRetry(2)
+            .maxConnections(200)
+            .maxCachedConnections(40)
+            .sMaxConnections(20)
+            .ttl(53000L)
+            .maxQueueSize(40)
+            .h2MaxConnections(2)
+            .h2MaxStreams(100)
+            .maxRequestTime(30000)
+            .maxRetries(1)
+            .build();
+
+
+    private static void assertRejected(String overrides)
+    {
+        try
+        {
+            DEFAULTS.withOverrides(overrides);
+            fail("accepted " + overrides);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void overridesNamedParametersOnly()
+    {
+        val settings = DEFAULTS.withOverrides("maxConnections=400, maxQueueSize = 1000,maxRequestTime=300000,maxRetries=0");
+
+        assertEquals(400, settings.getMaxConnections());
+        assertEquals(1000, settings.getMaxQueueSize());
+        assertEquals(300000, settings.getMaxRequestTime());
+        assertEquals(0, settings.getMaxRetries());
+
+        assertEquals(2, settings.getProblemServerRetry());
+        assertEquals(40, settings.getMaxCachedConnections());
+        assertEquals(20, settings.getSMaxConnections());
+        assertEquals(53000L, settings.getTtl());
+        assertEquals(2, settings.getH2MaxConnections());
+        assertEquals(100, settings.getH2MaxStreams());
+
+        // the defaults are left alone
+        assertEquals(200, DEFAULTS.getMaxConnections());
+    }
+
+
+    @Test
+    public void acceptsEveryOptionName()
+    {
+        val settings = DEFAULTS.withOverrides("problemServerRetry=5,maxCachedConnections=8,softMaxConnections=4,ttl=1000,h2MaxConnections=3,h2MaxStreams=50,minIdleConnections=1");
+
+        assertEquals(5, settings.getProblemServerRetry());
+        assertEquals(8, settings.getMaxCachedConnections());
+        assertEquals(4, settings.getSMaxConnections());
+        assertEquals(1000L, settings.getTtl());
+        assertEquals(3, settings.getH2MaxConnections());
+        assertEquals(50, settings.getH2MaxStreams());
+        assertEquals(1, settings.getMinIdleConnections());
+    }
+
+
+    @Test
+    public void lastOverrideWins()
+    {
+        assertEquals(7, DEFAULTS.withOverrides("maxRetries=3,maxRetries=7").getMaxRetries());
+    }
+
+
+    @Test
+    public void rejectsMalformedOverrides()
+    {
+        assertRejected("maxConnections");
+        assertRejected("=400");
+        assertRejected(",maxConnections=400");
+        assertRejected("maxConnection=400");
+        assertRejected("sMaxConnections=4");
+    }
+
+
+    @Test
+    public void rejectsInvalidValues()
+    {
+        assertRejected("maxConnections=many");
+        assertRejected("ttl=1.5");
+        assertRejected("h2MaxStreams=0");
+        assertRejected("h2MaxConnections=-1");
+        assertRejected("minIdleConnections=-1");
+    }
+
+
+    @Test
+    public void invalidNumberKeepsCause()
+    {
+        try
+        {
+            DEFAULTS.withOverrides("maxQueueSize=x");
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+}
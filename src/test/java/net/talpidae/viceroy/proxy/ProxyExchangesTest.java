@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import io.undertow.server.HttpServerExchange;
+import lombok.val;
+import net.talpidae.viceroy.proxy.balancer.RandomLoadBalancer;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+
+public class ProxyExchangesTest
+{
+    private static final int ITERATIONS = 100_000;
+
+
+    private static RouteMatch route(String prefix)
+    {
+        return RouteMatch.builder().prefix(prefix).route("help-service").loadBalancer(RandomLoadBalancer.INSTANCE).build();
+    }
+
+
+    private static HttpServerExchange exchange(String requestURI, String queryString)
+    {
+        val exchange = new HttpServerExchange(null);
+        exchange.setRequestURI(requestURI);
+        exchange.setQueryString(queryString);
+
+        return exchange;
+    }
+
+
+    /**
+     * Bytes allocated by the current thread while running task ITERATIONS times.
+     */
+    private static long measureAllocatedBytes(Runnable task)
+    {
+        val threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        val threadId = Thread.currentThread().getId();
+        for (int i = 0; i < ITERATIONS; ++i)
+        {
+            task.run();
+        }
+
+        val before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i)
+        {
+            task.run();
+        }
+
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+
+    @Test
+    public void literalPrefixBecomesResolvedPath()
+    {
+        val exchange = exchange("/app/help/articles/4711", "lang=en");
+        ProxyExchanges.stripPrefix(exchange, route("/app/help/"));
+
+        assertEquals("/app/help", exchange.getResolvedPath());
+        assertEquals("/app/help/articles/4711", exchange.getRequestURI());
+        assertEquals("lang=en", exchange.getQueryString());
+    }
+
+
+    @Test
+    public void encodedPrefixIsStripped()
+    {
+        val exchange = exchange("/app/%68elp/articles/%2F4711", "lang=en");
+        ProxyExchanges.stripPrefix(exchange, route("/app/help"));
+
+        assertEquals("", exchange.getResolvedPath());
+        assertEquals("/articles/%2F4711", exchange.getRequestURI());
+    }
+
+
+    @Test
+    public void pathEqualToPrefixIsForwardedAsRoot()
+    {
+        val literal = exchange("/app/help", "");
+        ProxyExchanges.stripPrefix(literal, route("/app/help"));
+        assertEquals("/", literal.getRequestURI());
+        assertEquals("", literal.getResolvedPath());
+
+        val encoded = exchange("/app/%68elp", "");
+        ProxyExchanges.stripPrefix(encoded, route("/app/help"));
+        assertEquals("/", encoded.getRequestURI());
+
+        assertEquals("/", ProxyExchanges.getTargetPath(exchange("/app/help", ""), route("/app/help")));
+        assertEquals("/?lang=en", ProxyExchanges.getTargetPath(exchange("/app/help", "lang=en"), route("/app/help")));
+    }
+
+
+    @Test
+    public void prefixOnlyMatchesAtSegmentBoundary()
+    {
+        assertEquals(-1, ProxyExchanges.findPrefixEnd("/app/helpdesk", 0, "/app/help"));
+        assertEquals(-1, ProxyExchanges.findPrefixEnd("/app%2Fhelp/x", 0, "/app/help"));
+        assertEquals(9, ProxyExchanges.findPrefixEnd("/app/help/x", 0, "/app/help"));
+        assertEquals(0, ProxyExchanges.findPrefixEnd("/x", 0, ""));
+    }
+
+
+    @Test
+    public void targetPathKeepsQueryAndEncoding()
+    {
+        assertEquals("/articles/%C3%A4?lang=en&q=a%20b", ProxyExchanges.getTargetPath(exchange("/app/help/articles/%C3%A4", "lang=en&q=a%20b"), route("/app/help/")));
+        assertEquals("/articles", ProxyExchanges.getTargetPath(exchange("/app/%68elp/articles", ""), route("/app/help")));
+        assertEquals("/other", ProxyExchanges.getTargetPath(exchange("/other", ""), route("/app/help")));
+    }
+
+
+    @Test
+    public void absoluteFormRequestURIIsStrippedAfterHost()
+    {
+        val exchange = new HttpServerExchange(null);
+        exchange.setRequestURI("http://example.com/app/help/articles", true);
+        exchange.setQueryString("");
+
+        assertEquals("/articles", ProxyExchanges.getTargetPath(exchange, route("/app/help")));
+    }
+
+
+    @Test
+    public void literalPrefixStripDoesNotAllocate()
+    {
+        val exchange = exchange("/app/help/articles/4711", "lang=en");
+        val route = route("/app/help/");
+
+        val allocated = measureAllocatedBytes(() ->
+        {
+            exchange.setResolvedPath("");
+            ProxyExchanges.stripPrefix(exchange, route);
+        });
+
+        // any allocation per call would add up to at least 16 bytes per iteration
+        assertTrue("allocated " + allocated + " bytes", allocated < ITERATIONS);
+        assertEquals("/app/help", exchange.getResolvedPath());
+    }
+
+
+    @Test
+    public void prefixMatchingDoesNotAllocate()
+    {
+        val route = route("/app/help");
+
+        val allocated = measureAllocatedBytes(() -> ProxyExchanges.findPrefixEnd("/app/%68elp/articles/4711", 0, route.getStrippedPrefix()));
+
+        assertTrue("allocated " + allocated + " bytes", allocated < ITERATIONS);
+    }
+
+
+    @Test
+    public void targetPathWithoutPrefixOrQueryDoesNotAllocate()
+    {
+        val exchange = exchange("/other/4711", "");
+        val route = route("/app/help");
+
+        val allocated = measureAllocatedBytes(() -> ProxyExchanges.getTargetPath(exchange, route));
+
+        assertTrue("allocated " + allocated + " bytes", allocated < ITERATIONS);
+    }
+}
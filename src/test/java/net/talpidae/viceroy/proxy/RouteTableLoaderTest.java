@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RouteTableLoaderTest
+{
+    private static final PoolSettings DEFAULTS = PoolSettings.builder()
+            .maxConnections(200)
+            .maxQueueSize(40)
+            .h2MaxConnections(2)
+            .h2MaxStreams(100)
+            .maxRequestTime(30000)
+            .maxRetries(1)
+            .build();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+
+    private Path routesFile(String... lines) throws IOException
+    {
+        val file = folder.getRoot().toPath().resolve("routes");
+        Files.write(file, List.of(lines), StandardCharsets.UTF_8);
+
+        return file;
+    }
+
+
+    @Test
+    public void routesFileIsAppliedOnTopOfBaseRoutes() throws IOException
+    {
+        val base = new RouteTable.Definition().add("map", "/item=item");
+        val loader = new RouteTableLoader(base, routesFile("map /cart=cart"), DEFAULTS);
+
+        val table = loader.load();
+
+        assertSame(table, loader.getRouteTable());
+        assertEquals("item", table.findRouteByPathPrefix("/item/42").getRoute());
+        assertEquals("cart", table.findRouteByPathPrefix("/cart/1").getRoute());
+    }
+
+
+    @Test
+    public void reloadPublishesChangedRoutes() throws IOException
+    {
+        val base = new RouteTable.Definition().add("map", "/item=item");
+        val file = routesFile("map /cart=cart");
+        val loader = new RouteTableLoader(base, file, DEFAULTS);
+        val before = loader.load();
+
+        routesFile("map /basket=cart", "map /item/v2=item-v2");
+        val after = loader.load();
+
+        assertSame(after, loader.getRouteTable());
+        assertNull(after.findRouteByPathPrefix("/cart/1"));
+        assertEquals("cart", after.findRouteByPathPrefix("/basket/1").getRoute());
+        assertEquals("item-v2", after.findRouteByPathPrefix("/item/v2/42").getRoute());
+        assertEquals("item", after.findRouteByPathPrefix("/item/42").getRoute());
+
+        // the old snapshot is left untouched for requests still using it
+        assertEquals("cart", before.findRouteByPathPrefix("/cart/1").getRoute());
+        assertNull(before.findRouteByPathPrefix("/basket/1"));
+    }
+
+
+    @Test
+    public void invalidRoutesFileKeepsCurrentTable() throws IOException
+    {
+        val base = new RouteTable.Definition().add("map", "/item=item");
+        val loader = new RouteTableLoader(base, routesFile("map /cart=cart"), DEFAULTS);
+        val current = loader.load();
+
+        routesFile("map /cart=cart", "cache /basket=60");
+        try
+        {
+            loader.load();
+            fail("accepted option for unmapped prefix");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        assertSame(current, loader.getRouteTable());
+        assertEquals("cart", loader.getRouteTable().findRouteByPathPrefix("/cart/1").getRoute());
+    }
+
+
+    @Test
+    public void missingRoutesFileKeepsCurrentTable() throws IOException
+    {
+        val file = routesFile("map /cart=cart");
+        val loader = new RouteTableLoader(new RouteTable.Definition(), file, DEFAULTS);
+        val current = loader.load();
+
+        Files.delete(file);
+        try
+        {
+            loader.load();
+            fail("loaded missing routes file");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+
+        assertSame(current, loader.getRouteTable());
+    }
+
+
+    @Test
+    public void reloadKeepsPoolLimitsOfUnchangedRoutes() throws IOException
+    {
+        val base = new RouteTable.Definition().add("map", "/item=item").add("pool", "/item=maxConnections=50");
+        val loader = new RouteTableLoader(base, routesFile("map /cart=cart"), DEFAULTS);
+        val before = loader.load();
+
+        routesFile("map /basket=cart", "map /item/v2=item");
+        val after = loader.load();
+
+        // backend tables, and the pools they reference, are only rebuilt if the limits of their route changed
+        assertTrue(before.getPoolSettings("item").hasSamePoolLimits(after.getPoolSettings("item")));
+        assertSame(after.getPoolSettings("item"), after.findRouteByPathPrefix("/item/v2/1").getPoolSettings());
+        assertTrue(before.getPoolSettings("cart").hasSamePoolLimits(after.getPoolSettings("cart")));
+    }
+
+
+    @Test
+    public void baseRoutesAreNotModifiedByLoading() throws IOException
+    {
+        val base = new RouteTable.Definition().add("map", "/item=item");
+        val loader = new RouteTableLoader(base, routesFile("map /cart=cart"), DEFAULTS);
+        loader.load();
+
+        routesFile("map /basket=cart");
+        val table = loader.load();
+
+        assertNull(table.findRouteByPathPrefix("/cart"));
+        assertEquals(2, table.getPathPrefixToRoute().size());
+    }
+}
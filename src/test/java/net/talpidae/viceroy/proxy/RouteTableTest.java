@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import net.talpidae.viceroy.limit.Priority;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RouteTableTest
+{
+    private static final PoolSettings DEFAULTS = PoolSettings.builder()
+            .maxConnections(200)
+            .maxQueueSize(40)
+            .h2MaxConnections(2)
+            .h2MaxStreams(100)
+            .maxRequestTime(30000)
+            .maxRetries(1)
+            .build();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+
+    private static void assertRejected(RouteTable.Definition definition)
+    {
+        try
+        {
+            RouteTable.build(definition, DEFAULTS);
+            fail("accepted invalid definition");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void buildsRoutesWithTheirOptions()
+    {
+        val definition = new RouteTable.Definition()
+                .add("viceroy.map", "/item=item")
+                .add("map", "=fallback")
+                .add("cache", "/item=60")
+                .add("priority", "/item=critical")
+                .add("pool", "/item=maxConnections=50");
+
+        val table = RouteTable.build(definition, DEFAULTS);
+        val item = table.findRouteByPathPrefix("/item/42");
+
+        assertEquals("item", item.getRoute());
+        assertEquals(60L, item.getCacheMaxAge());
+        assertSame(Priority.CRITICAL, item.getPriority());
+        assertEquals(50, item.getPoolSettings().getMaxConnections());
+
+        val fallback = table.findRouteByPathPrefix("/other");
+        assertSame(table.getDefaultRoute(), fallback);
+        assertEquals("fallback", fallback.getRoute());
+        assertSame(Priority.NORMAL, fallback.getPriority());
+        assertSame(DEFAULTS, fallback.getPoolSettings());
+    }
+
+
+    @Test
+    public void poolOverridesApplyToAllPrefixesOfRoute()
+    {
+        val definition = new RouteTable.Definition()
+                .add("map", "/api=item")
+                .add("map", "/api/v2=item")
+                .add("map", "/cart=cart")
+                .add("pool", "/api=maxConnections=50");
+
+        val table = RouteTable.build(definition, DEFAULTS);
+        val settings = table.getPoolSettings("item");
+
+        assertEquals(50, settings.getMaxConnections());
+        assertSame(settings, table.findRouteByPathPrefix("/api/1").getPoolSettings());
+        assertSame(settings, table.findRouteByPathPrefix("/api/v2/1").getPoolSettings());
+        assertSame(DEFAULTS, table.getPoolSettings("cart"));
+        assertSame(DEFAULTS, table.getPoolSettings("unmapped"));
+    }
+
+
+    @Test
+    public void rejectsConflictingPoolOverridesOfRoute()
+    {
+        val definition = new RouteTable.Definition()
+                .add("map", "/api=item")
+                .add("map", "/api/v2=item")
+                .add("pool", "/api=maxConnections=50")
+                .add("pool", "/api/v2=maxConnections=60");
+
+        assertRejected(definition);
+
+        // the same settings spelled differently are fine
+        val same = new RouteTable.Definition()
+                .add("map", "/api=item")
+                .add("map", "/api/v2=item")
+                .add("pool", "/api=maxConnections=50")
+                .add("pool", "/api/v2=maxConnections = 50");
+
+        assertEquals(50, RouteTable.build(same, DEFAULTS).getPoolSettings("item").getMaxConnections());
+    }
+
+
+    @Test
+    public void rejectsInvalidDefinitions()
+    {
+        assertRejected(new RouteTable.Definition().add("map", "/item"));
+        assertRejected(new RouteTable.Definition().add("map", "/item="));
+        assertRejected(new RouteTable.Definition().add("map", "/item=item").add("cache", "/items=60"));
+        assertRejected(new RouteTable.Definition().add("map", "/item=item").add("priority", "/item=urgent"));
+        assertRejected(new RouteTable.Definition().add("map", "/item=item").add("hedge", "/item=-5"));
+        assertRejected(new RouteTable.Definition().add("map", "/item=item").add("pool", "/item=maxConnection=5"));
+
+        try
+        {
+            new RouteTable.Definition().add("viceroy.mapping", "/item=item");
+            fail("accepted unknown option");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void readsRoutesFile() throws IOException
+    {
+        val file = folder.newFile("routes").toPath();
+        Files.write(file, List.of(
+                "# item service",
+                "--viceroy.map /item=item",
+                "",
+                "   map /cart=cart   ",
+                "viceroy.hedge /cart=p95"), StandardCharsets.UTF_8);
+
+        val table = RouteTable.build(new RouteTable.Definition().read(file), DEFAULTS);
+
+        assertEquals("item", table.findRouteByPathPrefix("/item").getRoute());
+        assertEquals("cart", table.findRouteByPathPrefix("/cart/1").getRoute());
+        assertEquals(RouteMatch.HEDGE_DELAY_P95, table.findRouteByPathPrefix("/cart").getHedgeDelay());
+        assertNull(table.getDefaultRoute());
+        assertNull(table.findRouteByPathPrefix("/other"));
+    }
+
+
+    @Test
+    public void rejectsMalformedRoutesFileLine() throws IOException
+    {
+        val file = folder.newFile("routes").toPath();
+        Files.write(file, List.of("--viceroy.map /item=item", "/cart=cart"), StandardCharsets.UTF_8);
+
+        try
+        {
+            new RouteTable.Definition().read(file);
+            fail("accepted line without option name");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+}
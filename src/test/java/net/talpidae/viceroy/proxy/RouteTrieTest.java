@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy;
+
+import lombok.val;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class RouteTrieTest
+{
+    private static RouteMatch route(String prefix)
+    {
+        return RouteMatch.builder().prefix(prefix).route("service-" + prefix).build();
+    }
+
+
+    @Test
+    public void prefixMatchesOnlyAtSegmentBoundary()
+    {
+        val item = route("/item");
+        val items = route("/items");
+        val trie = RouteTrie.build(List.of(item, items));
+
+        assertSame(item, trie.findLongestPrefix("/item"));
+        assertSame(item, trie.findLongestPrefix("/item/42"));
+        assertSame(items, trie.findLongestPrefix("/items"));
+        assertSame(items, trie.findLongestPrefix("/items/42"));
+        assertNull(trie.findLongestPrefix("/itemx"));
+        assertNull(trie.findLongestPrefix("/itemsx/42"));
+        assertNull(trie.findLongestPrefix("/ite"));
+    }
+
+
+    @Test
+    public void longestMatchingPrefixWins()
+    {
+        val root = route("/");
+        val api = route("/api");
+        val v1 = route("/api/v1");
+        val trie = RouteTrie.build(List.of(v1, root, api));
+
+        assertSame(v1, trie.findLongestPrefix("/api/v1/users"));
+        assertSame(api, trie.findLongestPrefix("/api/v2/users"));
+        assertSame(api, trie.findLongestPrefix("/api/v10"));
+        assertSame(root, trie.findLongestPrefix("/apis"));
+        assertSame(root, trie.findLongestPrefix("/"));
+    }
+
+
+    @Test
+    public void prefixEndingWithSlashRequiresIt()
+    {
+        val assets = route("/assets/");
+        val trie = RouteTrie.build(List.of(assets));
+
+        assertSame(assets, trie.findLongestPrefix("/assets/app.js"));
+        assertSame(assets, trie.findLongestPrefix("/assets/"));
+        assertNull(trie.findLongestPrefix("/assets"));
+    }
+
+
+    @Test
+    public void emptyPrefixMatchesEveryPath()
+    {
+        val fallback = route("");
+        val trie = RouteTrie.build(List.of(fallback, route("/item")));
+
+        assertSame(fallback, trie.findLongestPrefix("/anything"));
+        assertSame(fallback, trie.findLongestPrefix("/items"));
+        assertSame(fallback, trie.findLongestPrefix(""));
+    }
+
+
+    @Test
+    public void laterRouteOverridesSamePrefix()
+    {
+        val replacement = route("/item");
+        val trie = RouteTrie.build(List.of(route("/item"), replacement));
+
+        assertSame(replacement, trie.findLongestPrefix("/item/1"));
+    }
+
+
+    @Test
+    public void emptyTrieMatchesNothing()
+    {
+        assertNull(RouteTrie.build(List.of()).findLongestPrefix("/item"));
+    }
+}
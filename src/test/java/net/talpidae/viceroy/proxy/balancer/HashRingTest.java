@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017  Jonas Zeiger <jonas.zeiger@talpidae.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.talpidae.viceroy.proxy.balancer;
+
+import io.undertow.client.UndertowClient;
+import lombok.val;
+import net.talpidae.viceroy.proxy.Backend;
+import net.talpidae.viceroy.proxy.PoolSettings;
+import net.talpidae.viceroy.proxy.TargetPool;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class HashRingTest
+{
+    private static final int KEYS = 100_000;
+
+    private static final PoolSettings SETTINGS = PoolSettings.builder().h2MaxConnections(2).h2MaxStreams(100).build();
+
+
+    private static Backend[] backends(int count)
+    {
+        val backends = new Backend[count];
+        for (int i = 0; i < count; ++i)
+        {
+            final TargetPool pool = new TargetPool(InetSocketAddress.createUnresolved("backend-" + i, 8080), SETTINGS, UndertowClient.getInstance())
+            {
+            };
+            backends[i] = new Backend(null, pool);
+        }
+
+        return backends;
+    }
+
+
+    private static long key(int i)
+    {
+        val key = "user-" + i;
+
+        return HashRing.hash(key, 0, key.length());
+    }
+
+
+    private static TargetPool[] owners(HashRing ring)
+    {
+        val owners = new TargetPool[KEYS];
+        for (int i = 0; i < KEYS; ++i)
+        {
+            owners[i] = ring.getOwner(key(i));
+        }
+
+        return owners;
+    }
+
+
+    @Test
+    public void addedBackendTakesAboutItsShareOfKeys()
+    {
+        val backends = backends(11);
+        val before = owners(HashRing.build(null, Arrays.copyOf(backends, 10)));
+        val after = owners(HashRing.build(HashRing.build(null, Arrays.copyOf(backends, 10)), backends));
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; ++i)
+        {
+            if (before[i] != after[i])
+            {
+                // keys only ever move to the new backend
+                assertSame(backends[10].getPool(), after[i]);
+                ++moved;
+            }
+        }
+
+        // expect 1/11 of the keys to move
+        assertTrue("moved " + moved, moved > KEYS / 20 && moved < KEYS * 3 / 20);
+    }
+
+
+    @Test
+    public void removedBackendOnlyLosesItsKeys()
+    {
+        val backends = backends(10);
+        val previous = HashRing.build(null, backends);
+        val before = owners(previous);
+
+        val remaining = new Backend[9];
+        System.arraycopy(backends, 0, remaining, 0, 3);
+        System.arraycopy(backends, 4, remaining, 3, 6);
+        val after = owners(HashRing.build(previous, remaining));
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; ++i)
+        {
+            if (before[i] != after[i])
+            {
+                assertSame(backends[3].getPool(), before[i]);
+                ++moved;
+            }
+        }
+
+        // expect 1/10 of the keys to move
+        assertTrue("moved " + moved, moved > KEYS / 20 && moved < KEYS * 3 / 20);
+    }
+
+
+    @Test
+    public void incrementalRebuildEqualsFreshBuild()
+    {
+        val backends = backends(8);
+        val incremental = HashRing.build(HashRing.build(null, Arrays.copyOfRange(backends, 2, 8)), backends);
+        val fresh = HashRing.build(null, backends);
+
+        for (int i = 0; i < KEYS; ++i)
+        {
+            assertSame(fresh.getOwner(key(i)), incremental.getOwner(key(i)));
+        }
+    }
+
+
+    @Test
+    public void backendsOwnSimilarShares()
+    {
+        val backends = backends(4);
+        val owners = owners(HashRing.build(null, backends));
+
+        for (val backend : backends)
+        {
+            val share = Arrays.stream(owners).filter(owner -> owner == backend.getPool()).count();
+            assertTrue("share " + share, share > KEYS / 8 && share < KEYS * 3 / 8);
+        }
+    }
+
+
+    @Test
+    public void emptyRingHasNoOwner()
+    {
+        val ring = HashRing.build(null, new Backend[0]);
+
+        assertNull(ring.getOwner(key(1)));
+        assertNull(ring.select(key(1), null));
+    }
+
+
+    @Test
+    public void pointsDependOnAddressOnly()
+    {
+        val address = InetSocketAddress.createUnresolved("backend-1", 8080);
+
+        assertEquals(HashRing.POINTS_PER_BACKEND, HashRing.pointsOf(address).length);
+        assertTrue(Arrays.equals(HashRing.pointsOf(address), HashRing.pointsOf(InetSocketAddress.createUnresolved("backend-1", 8080))));
+    }
+}